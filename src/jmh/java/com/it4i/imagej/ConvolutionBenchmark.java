@@ -0,0 +1,173 @@
+package com.it4i.imagej;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the convolution loops of {@link ImageConvolution}, the
+ * engine chosen for a run and the helpers for padding, cropping, reading and
+ * saving frames. Frames are square, random and 8-bit. Nothing here loads MPI,
+ * the buffers are allocated by {@link ImageConvolution#newBuffer}.
+ * <p>
+ * Run with {@code mvn -Pjmh compile exec:exec}, the JMH arguments are taken
+ * from the jmh.args property, e.g.
+ * {@code -Djmh.args="ConvolutionBenchmark.direct -p size=2048 -p kernel=9"}.
+ * Convolutions are measured for every kernel of the slider, the helpers only
+ * for the frame sizes.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class ConvolutionBenchmark {
+
+	//Number of nodes the frame is padded for, odd so most sizes need padding.
+	private static final int PADDING_NODES = 7;
+
+	@State(Scope.Benchmark)
+	public static class Frame {
+
+		//Columns and rows of the frame.
+		@Param({"256", "1024"})
+		public int size;
+
+		ByteBuffer pixels;
+		ByteBuffer padded;
+		int padding;
+		//Raw file of three frames, the middle one is read.
+		File raw;
+		File saved;
+
+		@Setup(Level.Trial)
+		public void setup() throws IOException
+		{
+			byte[] data = new byte[size * size];
+			new Random(1).nextBytes(data);
+			pixels = ImageConvolution.newBuffer(data.length);
+			pixels.put(data);
+			pixels.clear();
+			padded = ImageConvolution.padImage(pixels, size, size, PADDING_NODES);
+			padding = (size + PADDING_NODES - 1) / PADDING_NODES * PADDING_NODES - size;
+
+			raw = File.createTempFile("benchmark", ".raw");
+			try(FileOutputStream out = new FileOutputStream(raw))
+			{
+				for(int frame = 0; frame < 3; frame++)
+				{
+					out.write(data);
+				}
+			}
+			saved = File.createTempFile("benchmark", ".raw");
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown()
+		{
+			raw.delete();
+			saved.delete();
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Kernel {
+
+		//Kernel number of the slider, see KernelRegistry.
+		@Param({"1", "2", "3", "4", "5", "6", "7", "8", "9", "10", "11", "12", "13", "14", "15", "16", "17", "18"})
+		public int kernel;
+
+		int[][] matrix;
+		long denom;
+		long passDenom;
+		ConvolutionEngine engine;
+		//Horizontal pass of the frame, input of the vertical pass.
+		ByteBuffer horizontal;
+
+		@Setup(Level.Trial)
+		public void setup(Frame frame)
+		{
+			KernelDescriptor descriptor = KernelRegistry.get(kernel);
+			matrix = descriptor.getKernel();
+			denom = descriptor.getDenom();
+			passDenom = descriptor.getPassDenom();
+			engine = ImageConvolution.createEngine(descriptor, frame.size, frame.size, false);
+			horizontal = ImageConvolution.twoDconvolutionHorPass(frame.pixels, frame.size, frame.size, matrix, passDenom);
+		}
+	}
+
+	//Direct loops over the whole kernel.
+	@Benchmark
+	public ByteBuffer direct(Frame frame, Kernel kernel)
+	{
+		return ImageConvolution.twoDconvolution(frame.pixels, frame.size, frame.size, kernel.matrix, kernel.denom, null, null);
+	}
+
+	//Horizontal and vertical pass. Kernels that are not separable give a wrong result here, only the cost of the passes is measured.
+	@Benchmark
+	public ByteBuffer separable(Frame frame, Kernel kernel)
+	{
+		return ImageConvolution.twoDconvolutionFastHor(frame.pixels, frame.size, frame.size, kernel.matrix, kernel.passDenom, null, null);
+	}
+
+	@Benchmark
+	public ByteBuffer horizontalPass(Frame frame, Kernel kernel)
+	{
+		return ImageConvolution.twoDconvolutionHorPass(frame.pixels, frame.size, frame.size, kernel.matrix, kernel.passDenom);
+	}
+
+	@Benchmark
+	public ByteBuffer verticalPass(Frame frame, Kernel kernel)
+	{
+		return ImageConvolution.twoDconvolutionFastVerInterior(kernel.horizontal, frame.size, frame.size, kernel.matrix, kernel.passDenom);
+	}
+
+	//Engine a run would choose for the whole frame: box filter, FFT, separable, low-rank or direct.
+	@Benchmark
+	public ByteBuffer engine(Frame frame, Kernel kernel)
+	{
+		return kernel.engine.convolve(frame.pixels, frame.size, frame.size, null, null);
+	}
+
+	@Benchmark
+	public ByteBuffer padImage(Frame frame)
+	{
+		return ImageConvolution.padImage(frame.pixels, frame.size, frame.size, PADDING_NODES);
+	}
+
+	@Benchmark
+	public ByteBuffer cropImage(Frame frame)
+	{
+		return ImageConvolution.cropImage(frame.padded, frame.size, frame.size, frame.padding);
+	}
+
+	@Benchmark
+	public ByteBuffer getArrFromRaw(Frame frame)
+	{
+		return ImageConvolution.getArrFromRaw(frame.raw, frame.size, frame.size, 1);
+	}
+
+	@Benchmark
+	public void saveImg(Frame frame)
+	{
+		ImageConvolution.saveImg(frame.pixels, frame.saved.getPath());
+	}
+}
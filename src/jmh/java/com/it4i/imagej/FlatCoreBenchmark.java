@@ -0,0 +1,128 @@
+package com.it4i.imagej;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the flat array core of {@link DirectConvolutionEngine}
+ * and {@link SeparableConvolutionEngine} against the buffer loops of
+ * {@link ImageConvolution}, for the interior of a random frame. The setup
+ * checks that both give the same result.
+ * <p>
+ * Run with {@code mvn -Pjmh compile exec:exec -Djmh.args="FlatCoreBenchmark"},
+ * e.g. {@code -Djmh.args="FlatCoreBenchmark -p kernel=random9 -p threads=4"}.
+ * Sharpen and the random kernels go through the direct loops, the triangle
+ * kernels of rank 1 through the separable passes.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class FlatCoreBenchmark {
+
+	//Columns and rows of the frame.
+	@Param({"2048"})
+	public int size;
+
+	//Kernel name followed by its size, sharpen is 3x3.
+	@Param({"sharpen", "random5", "random9", "random15", "triangle3", "triangle9", "triangle21", "triangle51"})
+	public String kernel;
+
+	//Threads of the row bands.
+	@Param({"1"})
+	public int threads;
+
+	private ByteBuffer frame;
+	private int[][] matrix;
+	private boolean separable;
+	private long denom;
+	private ConvolutionEngine engine;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		RowBandExecutor.setParallelism(threads);
+		Random random = new Random(1);
+		byte[] pixels = new byte[size * size];
+		random.nextBytes(pixels);
+		frame = ImageConvolution.newBuffer(pixels.length);
+		frame.put(pixels);
+		frame.clear();
+
+		if(kernel.equals("sharpen"))
+		{
+			matrix = new int[][] {{0, -1, 0}, {-1, 5, -1}, {0, -1, 0}};
+		}
+		else if(kernel.startsWith("random"))
+		{
+			matrix = randomKernel(Integer.parseInt(kernel.substring("random".length())), random);
+		}
+		else
+		{
+			matrix = ImageConvolution.createKernel(Integer.parseInt(kernel.substring("triangle".length())));
+			separable = true;
+		}
+		denom = separable ? (long)Math.sqrt(ImageConvolution.getDenom(matrix)) : 0;
+		engine = separable ? new SeparableConvolutionEngine(matrix, denom) : new DirectConvolutionEngine(matrix, denom);
+
+		//Border rows are filled by the engine only, the rest must match.
+		ByteBuffer expected = bufferLoops();
+		ByteBuffer actual = flatCore();
+		int overlay = matrix.length / 2;
+		for(int i = overlay * size; i < (size - overlay) * size; i++)
+		{
+			if(expected.get(i) != actual.get(i))
+			{
+				throw new IllegalStateException("Flat core differs from the buffer loops for " + kernel + " at " + i);
+			}
+		}
+	}
+
+	@Benchmark
+	public ByteBuffer bufferLoops()
+	{
+		if(separable)
+		{
+			ByteBuffer horizontal = ImageConvolution.twoDconvolutionHorPass(frame, size, size, matrix, denom);
+			return ImageConvolution.twoDconvolutionFastVerInterior(horizontal, size, size, matrix, denom);
+		}
+		return ImageConvolution.twoDconvolutionInterior(frame, size, size, matrix, denom);
+	}
+
+	@Benchmark
+	public ByteBuffer flatCore()
+	{
+		return engine.convolveInterior(frame, size, size);
+	}
+
+	private static int[][] randomKernel(int size, Random random)
+	{
+		int[][] kernel = new int[size][size];
+		for(int i = 0; i < size; i++)
+		{
+			for(int j = 0; j <= i; j++)
+			{
+				kernel[i][j] = random.nextInt(9) - 4;
+				kernel[j][i] = kernel[i][j];
+			}
+		}
+		return kernel;
+	}
+}
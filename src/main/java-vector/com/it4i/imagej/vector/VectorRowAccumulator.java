@@ -0,0 +1,52 @@
+package com.it4i.imagej.vector;
+
+import com.it4i.imagej.FlatConvolutionCore;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Multiply-add of one kernel tap over a row with the Java Vector API. Pixels
+ * are loaded as bytes, widened to ints and masked to unsigned values, so the
+ * sums are the same as those of the scalar loop.
+ * <p>
+ * Built by the {@code vector} profile for Java 17 and newer and loaded by
+ * {@link FlatConvolutionCore} at runtime, when the JVM is started with
+ * {@code --add-modules jdk.incubator.vector}.
+ * </p>
+ */
+public class VectorRowAccumulator implements FlatConvolutionCore.RowAccumulator {
+
+	private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+	//Bytes are loaded by as many lanes as the int vector has. The shortest byte vector has 8 lanes.
+	private static final VectorSpecies<Byte> BYTES = INTS.length() >= 8 ? VectorSpecies.of(byte.class, VectorShape.forBitSize(INTS.length() * 8)) : null;
+
+	public VectorRowAccumulator()
+	{
+		if(BYTES == null)
+		{
+			throw new UnsupportedOperationException("Int vectors of " + INTS.length() + " lanes are too short");
+		}
+	}
+
+	@Override
+	public void accumulate(int[] acc, byte[] inputArray, int index, int weight, int length)
+	{
+		IntVector weights = IntVector.broadcast(INTS, weight);
+		int bound = INTS.loopBound(length);
+		int col = 0;
+		for(; col < bound; col += INTS.length())
+		{
+			IntVector pixels = ((IntVector)ByteVector.fromArray(BYTES, inputArray, index + col).convertShape(VectorOperators.B2I, INTS, 0)).and(0xFF);
+			IntVector.fromArray(INTS, acc, col).add(pixels.mul(weights)).intoArray(acc, col);
+		}
+		//Tail shorter than a vector.
+		for(; col < length; col++)
+		{
+			acc[col] += weight * (inputArray[index + col] & 0xFF);
+		}
+	}
+}
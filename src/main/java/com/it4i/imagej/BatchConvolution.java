@@ -0,0 +1,321 @@
+package com.it4i.imagej;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import mpi.MPI;
+import mpi.MPIException;
+import mpi.Status;
+
+/**
+ * Headless batch mode, convolving all images of a manifest in one MPI job.
+ * <p>
+ * Usage: {@code mpirun -np N java -cp ... com.it4i.imagej.BatchConvolution manifest}.
+ * Every line of the manifest is {@code path columns rows frames kernel output [type]},
+ * with type UINT8 (default), UINT16 or FLOAT32. Empty lines and lines starting
+ * with # are skipped.
+ * </p>
+ * <p>
+ * Images of at least {@link #SPLIT_BYTES} are convolved one after another by
+ * all nodes together, split into strips, blocks or frames as by
+ * {@link ImageConvolution#convolve}. Smaller images are handed out whole from a
+ * queue on rank 0: every other node asks for the next image whenever it is
+ * done with the previous one, so a mix of image sizes keeps all nodes busy.
+ * Rank 0 only serves the queue, unless it runs alone.
+ * </p>
+ * <p>
+ * Every node reads the manifest and the images, so they must be on a filesystem
+ * shared by all nodes. A failed image is reported, counted in the summary and
+ * the batch goes on.
+ * </p>
+ */
+public class BatchConvolution {
+
+	//Images of this size in bytes and bigger are split between all nodes. Set by the imageconvolution.batchSplitBytes system property.
+	public static final long SPLIT_BYTES = Long.getLong("imageconvolution.batchSplitBytes", 256L * 1024 * 1024);
+
+	private static final int REQUEST_TAG = 200;
+	private static final int ASSIGN_TAG = 201;
+
+	//One line of the manifest.
+	static class Entry {
+		final String path;
+		final int columns;
+		final int rows;
+		final int frames;
+		final int kernel;
+		final File output;
+		final PixelType type;
+
+		Entry(String path, int columns, int rows, int frames, int kernel, File output, PixelType type)
+		{
+			this.path = path;
+			this.columns = columns;
+			this.rows = rows;
+			this.frames = frames;
+			this.kernel = kernel;
+			this.output = output;
+			this.type = type;
+		}
+
+		long getBytes()
+		{
+			return (long)columns * rows * frames * type.getBytes();
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		MPI.Init(args);
+		try
+		{
+			int world_rank = MPI.COMM_WORLD.getRank();
+			if(args.length != 1)
+			{
+				if(world_rank == 0)
+				{
+					System.out.println("Expected the manifest as the only parameter, got " + args.length + "!");
+				}
+				return;
+			}
+			List<Entry> entries;
+			try
+			{
+				entries = readManifest(new File(args[0]));
+			}
+			catch(IOException | IllegalArgumentException e)
+			{
+				//Every node reads the same manifest, so all of them stop here.
+				if(world_rank == 0)
+				{
+					System.out.println("Invalid manifest: " + e.getMessage());
+				}
+				return;
+			}
+			run(entries);
+		}
+		finally
+		{
+			MPI.Finalize();
+		}
+	}
+
+	static List<Entry> readManifest(File manifest) throws IOException
+	{
+		List<Entry> entries = new ArrayList<Entry>();
+		try(BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), StandardCharsets.UTF_8)))
+		{
+			String line;
+			int lineNumber = 0;
+			while((line = in.readLine()) != null)
+			{
+				lineNumber++;
+				line = line.trim();
+				if(line.isEmpty() || line.startsWith("#"))
+				{
+					continue;
+				}
+				String[] words = line.split("\\s+");
+				if(words.length < 6 || words.length > 7)
+				{
+					throw new IllegalArgumentException("Line " + lineNumber + ": expected path columns rows frames kernel output [type]");
+				}
+				try
+				{
+					entries.add(new Entry(words[0], Integer.parseInt(words[1]), Integer.parseInt(words[2]), Integer.parseInt(words[3]),
+							Integer.parseInt(words[4]), new File(words[5]), words.length > 6 ? PixelType.valueOf(words[6]) : PixelType.UINT8));
+				}
+				catch(IllegalArgumentException e)
+				{
+					throw new IllegalArgumentException("Line " + lineNumber + ": " + e.getMessage());
+				}
+			}
+		}
+		return entries;
+	}
+
+	//Convolves the big images together, then the small ones from the queue.
+	static void run(List<Entry> entries) throws MPIException, IOException, InterruptedException
+	{
+		int world_rank = MPI.COMM_WORLD.getRank(),
+        world_size = MPI.COMM_WORLD.getSize();
+		long startTime = System.nanoTime();
+
+		List<Integer> queue = new ArrayList<Integer>();
+		int split = 0;
+		int failed = 0;
+		for(int i = 0; i < entries.size(); i++)
+		{
+			Entry entry = entries.get(i);
+			if(world_size > 1 && entry.getBytes() >= SPLIT_BYTES)
+			{
+				split++;
+				failed += convolveSplit(entry) ? 0 : 1;
+			}
+			else
+			{
+				queue.add(i);
+			}
+		}
+
+		if(world_size == 1)
+		{
+			for(int index : queue)
+			{
+				failed += convolveWhole(entries.get(index)) ? 0 : 1;
+			}
+		}
+		else if(world_rank == 0)
+		{
+			failed += serveQueue(queue, world_size - 1);
+		}
+		else
+		{
+			work(entries);
+		}
+
+		MPI.COMM_WORLD.barrier();
+		if(world_rank == 0)
+		{
+			System.out.println("Batch of " + entries.size() + " images done in " + (System.nanoTime() - startTime) / 1000000 + " ms, "
+					+ split + " split between all nodes, " + queue.size() + " handed out whole, " + failed + " failed.");
+		}
+	}
+
+	//Convolves the image split between all nodes. The image is checked on every node and the result file opened
+	//by ImageConvolution#openWriter, both agreed by all nodes before any collective call, so a failed image fails
+	//on all of them together and the batch goes on. Returns false if it failed.
+	static boolean convolveSplit(Entry entry) throws MPIException, InterruptedException
+	{
+		int world_rank = MPI.COMM_WORLD.getRank(),
+        world_size = MPI.COMM_WORLD.getSize();
+		if(world_rank == 0)
+		{
+			System.out.println("Image " + entry.path + " is split between all nodes.");
+		}
+		try
+		{
+			Exception failure = null;
+			File inputFile = new File(entry.path);
+			KernelDescriptor descriptor = KernelRegistry.get(entry.kernel);
+			if(!inputFile.exists() || inputFile.length() != entry.getBytes())
+			{
+				failure = new IOException("does not exist or does not match the input dimensions!");
+			}
+			//Same limit as convolve, which splits the frames between the nodes unless there is a frame per node.
+			else if(BlockDecomposition.choose(entry.columns, entry.rows, entry.frames >= world_size ? 1 : world_size, descriptor.getSize() / 2) == null)
+			{
+				failure = new IllegalArgumentException("Kernel too big!");
+			}
+			ImageConvolution.agree(failure);
+			ImageConvolution.convolve(entry.path, entry.columns, entry.rows, entry.frames, entry.kernel, entry.type, false, entry.output);
+		}
+		catch(IOException | RuntimeException e)
+		{
+			if(world_rank == 0)
+			{
+				System.out.println("Image " + entry.path + " failed: " + e.getMessage());
+			}
+			return false;
+		}
+		return true;
+	}
+
+	//Hands out the queued images to the workers as they ask for them. A request carries the result of the previous image,
+	//the reply is the next index or -1 once the queue is empty. Returns the number of failed images.
+	private static int serveQueue(List<Integer> queue, int workers) throws MPIException
+	{
+		int next = 0;
+		int failed = 0;
+		int finished = 0;
+		int[] request = new int[1];
+		int[] assign = new int[1];
+		while(finished < workers)
+		{
+			Status status = MPI.COMM_WORLD.recv(request, 1, MPI.INT, MPI.ANY_SOURCE, REQUEST_TAG);
+			if(request[0] < 0)
+			{
+				failed++;
+			}
+			assign[0] = next < queue.size() ? queue.get(next++) : -1;
+			if(assign[0] < 0)
+			{
+				finished++;
+			}
+			MPI.COMM_WORLD.send(assign, 1, MPI.INT, status.getSource(), ASSIGN_TAG);
+		}
+		return failed;
+	}
+
+	//Asks rank 0 for images until the queue is empty.
+	private static void work(List<Entry> entries) throws MPIException
+	{
+		//First request has no result, 1 stands for success and -1 for a failure.
+		int[] request = {1};
+		int[] assign = new int[1];
+		while(true)
+		{
+			MPI.COMM_WORLD.send(request, 1, MPI.INT, 0, REQUEST_TAG);
+			MPI.COMM_WORLD.recv(assign, 1, MPI.INT, 0, ASSIGN_TAG);
+			if(assign[0] < 0)
+			{
+				return;
+			}
+			request[0] = convolveWhole(entries.get(assign[0])) ? 1 : -1;
+		}
+	}
+
+	//Convolves all frames of the image on this node alone. Returns false if it failed.
+	static boolean convolveWhole(Entry entry)
+	{
+		long startTime = System.nanoTime();
+		File inputFile = new File(entry.path);
+		if(!inputFile.exists() || inputFile.length() != entry.getBytes())
+		{
+			System.out.println("Image " + entry.path + " does not exist or does not match the input dimensions!");
+			return false;
+		}
+		KernelDescriptor descriptor = KernelRegistry.get(entry.kernel);
+		//Same limit as convolve for a whole frame, a single block.
+		if(BlockDecomposition.choose(entry.columns, entry.rows, 1, descriptor.getSize() / 2) == null)
+		{
+			System.out.println("Image " + entry.path + ": Kernel too big!");
+			return false;
+		}
+		ConvolutionEngine engine = ImageConvolution.createEngine(descriptor, entry.columns, entry.rows, entry.type, false);
+		try(RawImageReader reader = new RawImageReader(inputFile, entry.columns, entry.rows, entry.frames, entry.type);
+				RawImageWriter writer = new RawImageWriter(entry.output, entry.columns, entry.rows, entry.type))
+		{
+			//Next frames are read and previous ones written in the background while a frame is convolved.
+			FramePipeline pipeline = new FramePipeline(reader, writer, entry.columns, entry.rows, entry.type, 0, entry.frames, FramePipeline.DEFAULT_DEPTH);
+			try
+			{
+				for(int frameNum = 0; frameNum < entry.frames; frameNum++)
+				{
+					ByteBuffer in = pipeline.getFrame(frameNum);
+					ByteBuffer convolved = engine.convolve(in, entry.columns, entry.rows, null, null);
+					pipeline.releaseFrame(in);
+					pipeline.writeFrame(frameNum, convolved);
+				}
+			}
+			finally
+			{
+				pipeline.close();
+			}
+		}
+		catch(IOException | RuntimeException e)
+		{
+			System.out.println("Image " + entry.path + " failed: " + (e.getMessage() != null ? e.getMessage() : e.toString()));
+			return false;
+		}
+		System.out.println("Image " + entry.path + " with " + descriptor.getName() + " done in " + (System.nanoTime() - startTime) / 1000000 + " ms.");
+		return true;
+	}
+}
@@ -0,0 +1,132 @@
+package com.it4i.imagej;
+
+/**
+ * Split of a frame into a {@code gridRows x gridColumns} grid of rectangular
+ * blocks, one per node. Rows and columns are split the same way as in
+ * {@link StripDecomposition}, the first blocks of the grid get one row or
+ * column more than the others.
+ * <p>
+ * A grid with a single column is the strip decomposition. The grid is chosen
+ * by {@link #choose(int, int, int, int)} so that the halo exchanged by each
+ * node, which grows with the perimeter of its block, is as small as possible.
+ * </p>
+ */
+public class BlockDecomposition {
+
+	private final int gridRows;
+	private final int gridColumns;
+	private final int[] blockRows;
+	private final int[] firstRow;
+	private final int[] blockColumns;
+	private final int[] firstColumn;
+
+	public BlockDecomposition(int columns, int rows, int gridRows, int gridColumns)
+	{
+		this.gridRows = gridRows;
+		this.gridColumns = gridColumns;
+		blockRows = new int[gridRows];
+		firstRow = new int[gridRows];
+		blockColumns = new int[gridColumns];
+		firstColumn = new int[gridColumns];
+		split(rows, blockRows, firstRow);
+		split(columns, blockColumns, firstColumn);
+	}
+
+	private static void split(int length, int[] sizes, int[] starts)
+	{
+		int parts = sizes.length;
+		int start = 0;
+		for(int part = 0; part < parts; part++)
+		{
+			sizes[part] = length / parts + (part < length % parts ? 1 : 0);
+			starts[part] = start;
+			start += sizes[part];
+		}
+	}
+
+	//Chooses the grid for the given number of nodes. Only grids whose smallest block is at least
+	//twice the overlay in each split direction are considered, out of those the one with the smallest
+	//halo per node wins. Strips are kept on a tie. Returns null if the kernel is too big for every grid.
+	public static BlockDecomposition choose(int columns, int rows, int parts, int overlay)
+	{
+		BlockDecomposition best = null;
+		long bestHalo = Long.MAX_VALUE;
+		for(int gridColumns = 1; gridColumns <= parts; gridColumns++)
+		{
+			if(parts % gridColumns != 0)
+			{
+				continue;
+			}
+			BlockDecomposition candidate = new BlockDecomposition(columns, rows, parts / gridColumns, gridColumns);
+			if(!candidate.fits(overlay))
+			{
+				continue;
+			}
+			long halo = candidate.getHaloSize(overlay);
+			if(halo < bestHalo)
+			{
+				best = candidate;
+				bestHalo = halo;
+			}
+		}
+		return best;
+	}
+
+	//True if no block is thinner than two overlays in a direction the frame is split in.
+	public boolean fits(int overlay)
+	{
+		return overlay <= getMinRows()/2 && (gridColumns == 1 || overlay <= getMinColumns()/2);
+	}
+
+	//Number of pixels received from the neighbours by the biggest block, corners included.
+	public long getHaloSize(int overlay)
+	{
+		long rowsWithHalo = blockRows[0] + (gridRows > 1 ? 2L * overlay : 0);
+		long columnsWithHalo = blockColumns[0] + (gridColumns > 1 ? 2L * overlay : 0);
+		return rowsWithHalo * columnsWithHalo - (long)blockRows[0] * blockColumns[0];
+	}
+
+	public int getGridRows()
+	{
+		return gridRows;
+	}
+
+	public int getGridColumns()
+	{
+		return gridColumns;
+	}
+
+	//Number of rows of the blocks in the given row of the grid.
+	public int getRows(int gridRow)
+	{
+		return blockRows[gridRow];
+	}
+
+	//Index of the first frame row of the blocks in the given row of the grid.
+	public int getFirstRow(int gridRow)
+	{
+		return firstRow[gridRow];
+	}
+
+	//Number of columns of the blocks in the given column of the grid.
+	public int getColumns(int gridColumn)
+	{
+		return blockColumns[gridColumn];
+	}
+
+	//Index of the first frame column of the blocks in the given column of the grid.
+	public int getFirstColumn(int gridColumn)
+	{
+		return firstColumn[gridColumn];
+	}
+
+	public int getMinRows()
+	{
+		return blockRows[gridRows - 1];
+	}
+
+	public int getMinColumns()
+	{
+		return blockColumns[gridColumns - 1];
+	}
+}
@@ -0,0 +1,215 @@
+package com.it4i.imagej;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Engine for box kernels, kernels of ones only. Like
+ * {@link SeparableConvolutionEngine} it convolves the rows and then the
+ * columns and applies the denominator in each pass, but the sum of a window is
+ * computed from running sums, by adding the pixel entering the window and
+ * subtracting the one leaving it. The cost per pixel does not depend on the
+ * size of the kernel.
+ * <p>
+ * Pixels outside of the frame are mirrored through the convolved pixel, the
+ * same way as in the generic passes, so the results are identical.
+ * </p>
+ */
+public class BoxFilterEngine implements ConvolutionEngine {
+
+	private final int kenDim;
+	private final Normalizer normalizer;
+	private ByteBuffer horizontal = null;
+
+	public BoxFilterEngine(int kenDim, long denom)
+	{
+		if(kenDim < 1 || kenDim % 2 == 0)
+		{
+			throw new IllegalArgumentException("Invalid kernel");
+		}
+		this.kenDim = kenDim;
+		this.normalizer = new Normalizer(denom);
+	}
+
+	//True for square kernels of odd size filled with ones.
+	public static boolean isBoxKernel(int[][] kernel)
+	{
+		if(!ImageConvolution.isOddAndSym(kernel))
+		{
+			return false;
+		}
+		for(int[] row : kernel)
+		{
+			for(int value : row)
+			{
+				if(value != 1)
+				{
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public ByteBuffer convolveInterior(ByteBuffer inputArray, int columns, int rows)
+	{
+		horizontal = horizontalPass(inputArray, columns, rows);
+		ByteBuffer ret = ImageConvolution.newBuffer(inputArray.capacity());
+		verticalInterior(horizontal, ret, columns, rows);
+		return ret;
+	}
+
+	@Override
+	public void convolveBorder(ByteBuffer inputArray, ByteBuffer out, int columns, int rows, ByteBuffer up, ByteBuffer down)
+	{
+		int overlay = kenDim / 2;
+		ByteBuffer horUp = null;
+		ByteBuffer horDown = null;
+		if(up != null)
+		{
+			horUp = horizontalPass(up, columns, overlay);
+		}
+		if(down != null)
+		{
+			horDown = horizontalPass(down, columns, overlay);
+		}
+		verticalBorder(horizontal, out, columns, rows, horUp, horDown);
+		horizontal = null;
+	}
+
+	//Sums the window of every pixel of the row from a running sum of the row. Edges are mirrored.
+	private ByteBuffer horizontalPass(ByteBuffer inputArray, int columns, int rows)
+	{
+		ByteBuffer ret = ImageConvolution.newBuffer(inputArray.capacity());
+		int half = kenDim / 2;
+
+		RowBandExecutor.forEachBand(0, rows, columns, (rowStart, rowEnd) -> {
+			//prefix[i] is the sum of the first i pixels of the row.
+			int[] prefix = new int[columns + 1];
+			for(int row = rowStart; row < rowEnd; row++)
+			{
+				int rowIndex = row * columns;
+				for(int col = 0; col < columns; col++)
+				{
+					prefix[col + 1] = prefix[col] + (inputArray.get(rowIndex + col) & 0xFF);
+				}
+				for(int col = 0; col < columns; col++)
+				{
+					ret.put(rowIndex + col, (byte)normalize(windowSum(prefix, columns, col, half)));
+				}
+			}
+		});
+		return ret;
+	}
+
+	//Vertical pass for the rows that do not depend on the recv buffers. Every band keeps the window sum
+	//of each column and moves it down a row at a time.
+	private void verticalInterior(ByteBuffer inputArray, ByteBuffer ret, int columns, int rows)
+	{
+		int half = kenDim / 2;
+
+		//Bands are made taller than usual, so the first window of a band is summed only once per many rows.
+		RowBandExecutor.forEachBand(half, rows - half, Math.max(1, columns / kenDim), (rowStart, rowEnd) -> {
+			int[] sums = new int[columns];
+			for(int row = rowStart - half; row <= rowStart + half; row++)
+			{
+				int rowIndex = row * columns;
+				for(int col = 0; col < columns; col++)
+				{
+					sums[col] += inputArray.get(rowIndex + col) & 0xFF;
+				}
+			}
+
+			for(int row = rowStart; row < rowEnd; row++)
+			{
+				int rowIndex = row * columns;
+				for(int col = 0; col < columns; col++)
+				{
+					ret.put(rowIndex + col, (byte)normalize(sums[col]));
+				}
+				if(row + 1 < rowEnd)
+				{
+					//Row entering the window is added, row leaving it is subtracted.
+					int enterIndex = (row + half + 1) * columns;
+					int leaveIndex = (row - half) * columns;
+					for(int col = 0; col < columns; col++)
+					{
+						sums[col] += (inputArray.get(enterIndex + col) & 0xFF) - (inputArray.get(leaveIndex + col) & 0xFF);
+					}
+				}
+			}
+		});
+	}
+
+	//Vertical pass for the top and bottom rows. Up and down are the horizontally convolved recv buffers
+	//from neighbouring nodes, null on the image border.
+	private void verticalBorder(ByteBuffer inputArray, ByteBuffer ret, int columns, int rows, ByteBuffer up, ByteBuffer down)
+	{
+		int half = kenDim / 2;
+		//Every column of the top rows is taken as a short line made of the recv buffer and the first rows of the strip.
+		int upRows = up != null ? half : 0;
+		int topRows = Math.min(rows, 2 * half);
+		int[] prefix = new int[upRows + topRows + 1];
+		for(int col = 0; col < columns; col++)
+		{
+			for(int i = 0; i < upRows + topRows; i++)
+			{
+				int pixel = i < upRows ? up.get(i * columns + col) & 0xFF : inputArray.get((i - upRows) * columns + col) & 0xFF;
+				prefix[i + 1] = prefix[i] + pixel;
+			}
+			for(int row = 0; row < half; row++)
+			{
+				ret.put(row * columns + col, (byte)normalize(windowSum(prefix, upRows + topRows, row + upRows, half)));
+			}
+		}
+
+		//Bottom rows are the last rows of the strip followed by the recv buffer.
+		int downRows = down != null ? half : 0;
+		int bottomRows = Math.min(rows, 2 * half);
+		int firstRow = rows - bottomRows;
+		prefix = new int[bottomRows + downRows + 1];
+		for(int col = 0; col < columns; col++)
+		{
+			for(int i = 0; i < bottomRows + downRows; i++)
+			{
+				int pixel = i < bottomRows ? inputArray.get((firstRow + i) * columns + col) & 0xFF : down.get((i - bottomRows) * columns + col) & 0xFF;
+				prefix[i + 1] = prefix[i] + pixel;
+			}
+			for(int row = rows - half; row < rows; row++)
+			{
+				ret.put(row * columns + col, (byte)normalize(windowSum(prefix, bottomRows + downRows, row - firstRow, half)));
+			}
+		}
+	}
+
+	//Sum of the window of pixel i of a line of n pixels, prefix[j] being the sum of its first j pixels.
+	//Pixels outside the line are mirrored through pixel i.
+	private static int windowSum(int[] prefix, int n, int i, int half)
+	{
+		int from = i - half;
+		int to = i + half;
+		if(from >= 0 && to < n)
+		{
+			return prefix[to + 1] - prefix[from];
+		}
+
+		int sum = prefix[Math.min(to, n - 1) + 1] - prefix[Math.max(from, 0)];
+		if(from < 0)
+		{
+			//Pixels -1 ... from are replaced by 2i+1 ... to.
+			sum += prefix[to + 1] - prefix[2 * i + 1];
+		}
+		if(to >= n)
+		{
+			//Pixels n ... to are replaced by from ... 2i-n.
+			sum += prefix[2 * i - n + 1] - prefix[from];
+		}
+		return sum;
+	}
+
+	//Applies the denominator and clamps to 8 bits.
+	private int normalize(int acc)
+	{
+		return normalizer.normalize(acc);
+	}
+}
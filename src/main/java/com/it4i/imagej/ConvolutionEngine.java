@@ -0,0 +1,30 @@
+package com.it4i.imagej;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Convolution of one horizontal strip of an image.
+ * <p>
+ * The work is split into two phases so that the exchange of recv buffers
+ * (halo rows) with neighbouring nodes can run while the rows that do not need
+ * them are being convolved. An engine may keep intermediate results of the
+ * strip between the phases, so one instance serves one strip at a time.
+ * </p>
+ */
+public interface ConvolutionEngine {
+
+	//Convolves all pixels of the strip that do not depend on the recv buffers and returns the output buffer.
+	ByteBuffer convolveInterior(ByteBuffer inputArray, int columns, int rows);
+
+	//Convolves the remaining top and bottom rows into out, which is the buffer returned by convolveInterior.
+	//Up and down hold kernel.length/2 rows from neighbouring nodes and are null on the image border.
+	void convolveBorder(ByteBuffer inputArray, ByteBuffer out, int columns, int rows, ByteBuffer up, ByteBuffer down);
+
+	//Convolves the whole strip at once.
+	default ByteBuffer convolve(ByteBuffer inputArray, int columns, int rows, ByteBuffer up, ByteBuffer down)
+	{
+		ByteBuffer out = convolveInterior(inputArray, columns, rows);
+		convolveBorder(inputArray, out, columns, rows, up, down);
+		return out;
+	}
+}
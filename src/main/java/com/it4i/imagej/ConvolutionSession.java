@@ -0,0 +1,472 @@
+package com.it4i.imagej;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import mpi.MPI;
+import mpi.MPIException;
+
+/**
+ * Long-lived MPI job that convolves one loaded input with successive kernels.
+ * <p>
+ * The ranks are started once, e.g. {@code mpirun -np 4 java -cp ...
+ * com.it4i.imagej.ConvolutionSession [port]}, and stay running. Rank 0 listens
+ * on the loopback interface for commands, one per line, and passes every
+ * command on to the other ranks. On load the input is read and split between
+ * the ranks, whole frames per rank or strips of every frame as in
+ * {@link ImageConvolution#convolve}, and kept in memory. A convolve with
+ * another kernel then costs only the convolution and the halo exchange. Errors
+ * are reported back and the session stays usable.
+ * </p>
+ * <p>
+ * Commands, each answered by a single line starting with OK or ERROR. Words
+ * are separated by tabs if the line has any, so paths may contain spaces,
+ * otherwise by whitespace:
+ * </p>
+ * <ul>
+ * <li>{@code load path columns rows frames [UINT8|UINT16|FLOAT32 [key]]}</li>
+ * <li>{@code convolve kernel [output [key]]}, output defaults to result.raw,
+ * fails if a key is given and the loaded input has another one</li>
+ * <li>{@code status}</li>
+ * <li>{@code quit}</li>
+ * </ul>
+ * <p>
+ * Inputs with at least one frame per rank are read and their results written
+ * by every rank, so these files must be on a filesystem shared by all of them.
+ * Smaller inputs are read and written by rank 0 alone.
+ * </p>
+ */
+public class ConvolutionSession {
+
+	public static final int DEFAULT_PORT = Integer.getInteger("imageconvolution.sessionPort", 7345);
+
+	private final int world_rank;
+	private final int world_size;
+
+	//Loaded input, cached is null until the first successful load.
+	private List<ByteBuffer> cached = null;
+	private PixelType type;
+	private int columns;
+	private int rows;
+	private int numOfFrames;
+	private boolean framesPerNode;
+	//First frame of this node if whole frames are cached, strips of all frames otherwise.
+	private int firstFrame;
+	private StripDecomposition strips;
+	private String loadedPath;
+	//Key given by the client with the load, null if none.
+	private String loadedKey;
+
+	public ConvolutionSession() throws MPIException
+	{
+		world_rank = MPI.COMM_WORLD.getRank();
+		world_size = MPI.COMM_WORLD.getSize();
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		MPI.Init(args);
+		try
+		{
+			int port = args.length > 0 ? Integer.parseInt(args[0].trim()) : DEFAULT_PORT;
+			new ConvolutionSession().serve(port);
+		}
+		finally
+		{
+			MPI.Finalize();
+		}
+	}
+
+	//Serves commands until quit. Clients may connect one after another, every connection can send any number of commands.
+	public void serve(int port) throws IOException, MPIException
+	{
+		ServerSocket server = null;
+		if(world_rank == 0)
+		{
+			server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+			System.out.println("Convolution session of " + world_size + " nodes listening on port " + server.getLocalPort() + ".");
+		}
+		try
+		{
+			boolean running = true;
+			while(running)
+			{
+				Socket client = world_rank == 0 ? server.accept() : null;
+				BufferedReader in = null;
+				PrintWriter out = null;
+				if(client != null)
+				{
+					in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+					out = new PrintWriter(client.getOutputStream(), true);
+				}
+				try
+				{
+					while(true)
+					{
+						//Closed connection is passed on as null, the other nodes then wait for the next command.
+						String line = broadcast(world_rank == 0 ? readLine(in) : null);
+						if(line == null)
+						{
+							break;
+						}
+						String reply = execute(line);
+						if(out != null)
+						{
+							out.println(reply);
+						}
+						if(line.trim().equals("quit"))
+						{
+							running = false;
+							break;
+						}
+					}
+				}
+				finally
+				{
+					if(client != null)
+					{
+						client.close();
+					}
+				}
+			}
+		}
+		finally
+		{
+			if(server != null)
+			{
+				server.close();
+			}
+		}
+	}
+
+	private static String readLine(BufferedReader in)
+	{
+		try
+		{
+			return in.readLine();
+		}
+		catch(IOException e)
+		{
+			return null;
+		}
+	}
+
+	//Sends the line of rank 0 to all nodes.
+	private String broadcast(String line) throws MPIException
+	{
+		byte[] data = line != null ? line.getBytes(StandardCharsets.UTF_8) : new byte[0];
+		int[] length = {line != null ? data.length : -1};
+		MPI.COMM_WORLD.bcast(length, 1, MPI.INT, 0);
+		if(length[0] < 0)
+		{
+			return null;
+		}
+		if(world_rank != 0)
+		{
+			data = new byte[length[0]];
+		}
+		if(length[0] > 0)
+		{
+			MPI.COMM_WORLD.bcast(data, length[0], MPI.BYTE, 0);
+		}
+		return new String(data, StandardCharsets.UTF_8);
+	}
+
+	//Runs the command on this node and returns the reply. If the command failed on any node it fails on all of them,
+	//rank 0 replies with its own message or a generic one.
+	String execute(String line) throws MPIException
+	{
+		String[] words = split(line);
+		String reply;
+		String error = null;
+		try
+		{
+			switch(words[0]) {
+			  case "load":
+				  reply = load(words);
+				  break;
+			  case "convolve":
+				  reply = convolve(words);
+				  break;
+			  case "status":
+				  reply = cached == null ? "nothing loaded" : "loaded " + loadedPath + " " + columns + "x" + rows + "x" + numOfFrames + " " + type
+						  + (loadedKey != null ? " " + loadedKey : "");
+				  break;
+			  case "quit":
+				  reply = "bye";
+				  break;
+			  default:
+				  throw new IllegalArgumentException("Unknown command " + words[0]);
+			}
+		}
+		catch(IOException | RuntimeException e)
+		{
+			reply = null;
+			error = e.getMessage() != null ? e.getMessage() : e.toString();
+		}
+
+		int[] failed = {error != null ? 1 : 0};
+		MPI.COMM_WORLD.allReduce(failed, 1, MPI.INT, MPI.MAX);
+		if(failed[0] != 0)
+		{
+			return "ERROR " + (error != null ? error : "failed on another node");
+		}
+		return "OK " + reply;
+	}
+
+	//Words of a command, separated by tabs if there are any, otherwise by whitespace.
+	static String[] split(String line)
+	{
+		String trimmed = line.trim();
+		if(trimmed.indexOf('\t') >= 0)
+		{
+			return trimmed.split("\t");
+		}
+		return trimmed.split("\\s+");
+	}
+
+	private String load(String[] words) throws IOException, MPIException
+	{
+		if(words.length < 5)
+		{
+			throw new IllegalArgumentException("Format for load: path columns rows frames [type [key]]");
+		}
+		File inputFile = new File(words[1]);
+		int newColumns = Integer.parseInt(words[2]);
+		int newRows = Integer.parseInt(words[3]);
+		int frames = Integer.parseInt(words[4]);
+		PixelType newType = words.length > 5 ? PixelType.valueOf(words[5]) : PixelType.UINT8;
+		if(newColumns <= 0 || newRows <= 0 || frames <= 0)
+		{
+			throw new IllegalArgumentException("Invalid dimensions " + newColumns + "x" + newRows + "x" + frames);
+		}
+		//Whole frames are read by every node, which checks the file itself. Strips are read by node 0 alone,
+		//so the file only has to be on node 0, which checks it below.
+		boolean newFramesPerNode = frames >= world_size;
+		if(newFramesPerNode)
+		{
+			checkFile(inputFile, newColumns, newRows, frames, newType);
+		}
+
+		long startTime = System.nanoTime();
+		cached = null;
+		loadedKey = null;
+		columns = newColumns;
+		rows = newRows;
+		numOfFrames = frames;
+		type = newType;
+		int frameBytes = columns * rows * type.getBytes();
+		List<ByteBuffer> frameList = new ArrayList<ByteBuffer>();
+		framesPerNode = newFramesPerNode;
+		if(framesPerNode)
+		{
+			StripDecomposition split = new StripDecomposition(1, numOfFrames, world_size);
+			firstFrame = split.getFirstRow(world_rank);
+			try(RawImageReader reader = new RawImageReader(inputFile, columns, rows, numOfFrames, type))
+			{
+				for(int frame = firstFrame; frame < firstFrame + split.getRows(world_rank); frame++)
+				{
+					ByteBuffer buffer = MPI.newByteBuffer(frameBytes);
+					buffer.put(reader.getFrame(frame));
+					buffer.clear();
+					frameList.add(buffer);
+				}
+			}
+		}
+		else
+		{
+			strips = new StripDecomposition(columns, rows, world_size);
+			int stripPixels = strips.getCounts()[world_rank];
+			ByteBuffer noFrame = MPI.newByteBuffer(0);
+			//Nodes agree on the file and on every frame read by node 0 before its scatter.
+			RawImageReader reader = null;
+			Exception failure = null;
+			try
+			{
+				if(world_rank == 0)
+				{
+					checkFile(inputFile, columns, rows, numOfFrames, type);
+					reader = new RawImageReader(inputFile, columns, rows, numOfFrames, type);
+				}
+			}
+			catch(IOException | RuntimeException e)
+			{
+				failure = e;
+			}
+			try
+			{
+				ImageConvolution.agree(failure);
+				for(int frame = 0; frame < numOfFrames; frame++)
+				{
+					ByteBuffer strip = MPI.newByteBuffer(stripPixels * type.getBytes());
+					ByteBuffer in = noFrame;
+					try
+					{
+						if(reader != null)
+						{
+							in = reader.getFrame(frame);
+						}
+					}
+					catch(IOException | RuntimeException e)
+					{
+						failure = e;
+					}
+					ImageConvolution.agree(failure);
+					MPI.COMM_WORLD.scatterv(in, strips.getCounts(), strips.getDispls(), type.getMpiType(), strip, stripPixels, type.getMpiType(), 0);
+					frameList.add(strip);
+				}
+			}
+			finally
+			{
+				if(reader != null)
+				{
+					reader.close();
+				}
+			}
+		}
+		cached = frameList;
+		loadedPath = words[1];
+		loadedKey = words.length > 6 ? words[6] : null;
+		return "loaded in " + (System.nanoTime() - startTime) / 1000000 + " ms";
+	}
+
+	//Throws if the file does not exist or its size does not match the dimensions.
+	private static void checkFile(File inputFile, int columns, int rows, int frames, PixelType type) throws IOException
+	{
+		if(!inputFile.exists())
+		{
+			throw new IOException("File in: " + inputFile.getPath() + " does not exists!");
+		}
+		if((long)columns * rows * frames * type.getBytes() != inputFile.length())
+		{
+			throw new IOException("File size does not match the input dimensions!");
+		}
+	}
+
+	private String convolve(String[] words) throws IOException, MPIException
+	{
+		if(cached == null)
+		{
+			throw new IllegalStateException("Nothing loaded");
+		}
+		if(words.length < 2)
+		{
+			throw new IllegalArgumentException("Format for convolve: kernel [output [key]]");
+		}
+		//The client passes the key of the image it loaded, the session may have been restarted or loaded by another client since.
+		if(words.length > 3 && !words[3].equals(loadedKey))
+		{
+			throw new IllegalStateException("Loaded input does not match the key " + words[3]);
+		}
+		KernelDescriptor descriptor = KernelRegistry.get(Integer.parseInt(words[1]));
+		File resultFile = new File(words.length > 2 ? words[2] : "result.raw");
+		int overlay = descriptor.getSize() / 2;
+		//Same limit as the main path, strips are a grid of one column.
+		if(!new BlockDecomposition(columns, rows, framesPerNode ? 1 : world_size, 1).fits(overlay))
+		{
+			throw new IllegalArgumentException("Kernel too big!");
+		}
+
+		long startTime = System.nanoTime();
+		//Every node writes its own frames when they are split by whole frames.
+		RawImageWriter writer = ImageConvolution.openWriter(resultFile, columns, rows, type, framesPerNode ? world_size : 1);
+		try
+		{
+			Exception failure = null;
+			//Whole frames need no collective calls, a node that fails stops and the others learn it at the end.
+			if(framesPerNode)
+			{
+				try
+				{
+					ConvolutionEngine engine = ImageConvolution.createEngine(descriptor, columns, rows, type, false);
+					for(int i = 0; i < cached.size(); i++)
+					{
+						writer.writeFrame(firstFrame + i, engine.convolve(cached.get(i), columns, rows, null, null));
+					}
+				}
+				catch(IOException | RuntimeException e)
+				{
+					failure = e;
+				}
+			}
+			else
+			{
+				//Nodes agree on the engine before the first exchange and on every strip before its gather, so a node
+				//that fails does not leave the others waiting for its halo or its strip.
+				int stripRows = strips.getRows(world_rank);
+				ConvolutionEngine engine = null;
+				try
+				{
+					engine = ImageConvolution.createEngine(descriptor, columns, stripRows, type, false);
+				}
+				catch(RuntimeException e)
+				{
+					failure = e;
+				}
+				ImageConvolution.agree(failure);
+				ByteBuffer recvBufUp = MPI.newByteBuffer(columns * overlay * type.getBytes());
+				ByteBuffer recvBufDown = MPI.newByteBuffer(columns * overlay * type.getBytes());
+				ByteBuffer ret = MPI.newByteBuffer(world_rank == 0 ? columns * rows * type.getBytes() : 0);
+				for(int frame = 0; frame < numOfFrames; frame++)
+				{
+					ByteBuffer convolved = null;
+					try
+					{
+						convolved = ImageConvolution.convolveStrip(engine, cached.get(frame), columns, stripRows, overlay, type, recvBufUp, recvBufDown);
+					}
+					catch(RuntimeException e)
+					{
+						failure = e;
+					}
+					//Also stops all nodes after a failed write of the previous frame.
+					ImageConvolution.agree(failure);
+					MPI.COMM_WORLD.gatherv(convolved, strips.getCounts()[world_rank], type.getMpiType(), ret, strips.getCounts(), strips.getDispls(), type.getMpiType(), 0);
+					try
+					{
+						if(writer != null)
+						{
+							writer.writeFrame(frame, ret);
+						}
+					}
+					catch(IOException | RuntimeException e)
+					{
+						failure = e;
+					}
+				}
+			}
+			//Closing flushes the frames, so it is part of the final check, which also waits for all nodes.
+			try
+			{
+				if(writer != null)
+				{
+					RawImageWriter closing = writer;
+					writer = null;
+					closing.close();
+				}
+			}
+			catch(IOException e)
+			{
+				failure = failure != null ? failure : e;
+			}
+			ImageConvolution.agree(failure);
+		}
+		finally
+		{
+			if(writer != null)
+			{
+				writer.close();
+			}
+		}
+		return descriptor.getName() + " written to " + resultFile.getPath() + " in " + (System.nanoTime() - startTime) / 1000000 + " ms";
+	}
+}
@@ -0,0 +1,52 @@
+package com.it4i.imagej;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Engine applying the full 2D kernel to every pixel, used for kernels that are
+ * not separable. The core is convolved by {@link FlatConvolutionCore}, the
+ * edges by the mirroring loops of {@link ImageConvolution}.
+ */
+public class DirectConvolutionEngine implements ConvolutionEngine {
+
+	private final int[][] kernel;
+	private final long denom;
+	private final int[] weights;
+	private final Normalizer normalizer;
+
+	public DirectConvolutionEngine(int[][] kernel, long denom)
+	{
+		if(!ImageConvolution.isOddAndSym(kernel))
+		{
+			throw new IllegalArgumentException("Invalid kernel");
+		}
+		this.kernel = kernel;
+		this.denom = denom;
+		this.weights = FlatConvolutionCore.flatten(kernel);
+		this.normalizer = new Normalizer(denom);
+	}
+
+	//Uses the flattened kernel cached by the descriptor.
+	public DirectConvolutionEngine(KernelDescriptor descriptor)
+	{
+		this.kernel = descriptor.getKernel();
+		this.denom = descriptor.getDenom();
+		this.weights = descriptor.getWeights();
+		this.normalizer = new Normalizer(denom);
+	}
+
+	@Override
+	public ByteBuffer convolveInterior(ByteBuffer inputArray, int columns, int rows)
+	{
+		ByteBuffer ret = ImageConvolution.newBuffer(inputArray.capacity());
+		FlatConvolutionCore.convolveCore(FlatConvolutionCore.toArray(inputArray), ret, columns, rows, weights, kernel.length, normalizer);
+		ImageConvolution.twoDconvolutionSides(inputArray, ret, columns, rows, kernel, denom);
+		return ret;
+	}
+
+	@Override
+	public void convolveBorder(ByteBuffer inputArray, ByteBuffer out, int columns, int rows, ByteBuffer up, ByteBuffer down)
+	{
+		ImageConvolution.twoDconvolutionBorder(inputArray, out, columns, rows, kernel, denom, up, down);
+	}
+}
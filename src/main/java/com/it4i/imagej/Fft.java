@@ -0,0 +1,108 @@
+package com.it4i.imagej;
+
+/**
+ * Iterative radix-2 fast Fourier transform of a fixed power of two size, on
+ * separate arrays of real and imaginary parts. Twiddle factors and the bit
+ * reversal permutation are computed once in the constructor, so one instance
+ * can be shared by any number of threads.
+ */
+public class Fft {
+
+	private final int size;
+	private final double[] cos;
+	private final double[] sin;
+	private final int[] reversed;
+
+	public Fft(int size)
+	{
+		if(size < 1 || Integer.bitCount(size) != 1)
+		{
+			throw new IllegalArgumentException("FFT size must be a power of two, got " + size);
+		}
+		this.size = size;
+		cos = new double[size / 2];
+		sin = new double[size / 2];
+		for(int i = 0; i < size / 2; i++)
+		{
+			cos[i] = Math.cos(2 * Math.PI * i / size);
+			sin[i] = Math.sin(2 * Math.PI * i / size);
+		}
+		reversed = new int[size];
+		int bits = Integer.numberOfTrailingZeros(size);
+		for(int i = 0; i < size; i++)
+		{
+			reversed[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+		}
+	}
+
+	//Smallest power of two that is not smaller than n.
+	public static int sizeFor(int n)
+	{
+		return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+	}
+
+	public int getSize()
+	{
+		return size;
+	}
+
+	//Transforms size values starting at offset, separated by stride. The inverse transform is scaled by 1/size.
+	public void transform(double[] re, double[] im, int offset, int stride, boolean inverse)
+	{
+		for(int i = 0; i < size; i++)
+		{
+			int j = reversed[i];
+			if(j > i)
+			{
+				int a = offset + i * stride;
+				int b = offset + j * stride;
+				double t = re[a]; re[a] = re[b]; re[b] = t;
+				t = im[a]; im[a] = im[b]; im[b] = t;
+			}
+		}
+
+		double sign = inverse ? 1 : -1;
+		for(int half = 1; half < size; half <<= 1)
+		{
+			int step = size / (2 * half);
+			for(int start = 0; start < size; start += 2 * half)
+			{
+				for(int k = 0; k < half; k++)
+				{
+					double wr = cos[k * step];
+					double wi = sign * sin[k * step];
+					int a = offset + (start + k) * stride;
+					int b = a + half * stride;
+					double tr = wr * re[b] - wi * im[b];
+					double ti = wr * im[b] + wi * re[b];
+					re[b] = re[a] - tr;
+					im[b] = im[a] - ti;
+					re[a] += tr;
+					im[a] += ti;
+				}
+			}
+		}
+
+		if(inverse)
+		{
+			for(int i = 0; i < size; i++)
+			{
+				re[offset + i * stride] /= size;
+				im[offset + i * stride] /= size;
+			}
+		}
+	}
+
+	//Transforms a size x size matrix stored by rows, first the rows and then the columns.
+	public void transform2D(double[] re, double[] im, boolean inverse)
+	{
+		for(int row = 0; row < size; row++)
+		{
+			transform(re, im, row * size, 1, inverse);
+		}
+		for(int col = 0; col < size; col++)
+		{
+			transform(re, im, col, size, inverse);
+		}
+	}
+}
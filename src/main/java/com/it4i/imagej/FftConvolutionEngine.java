@@ -0,0 +1,417 @@
+package com.it4i.imagej;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Engine computing the core of the convolution with the fast Fourier
+ * transform, for kernels too big for the other engines.
+ * <p>
+ * Kernels of rank 1 are convolved in the two passes of
+ * {@link SeparableConvolutionEngine}, every row and every column of the core
+ * being convolved as a whole line. Other kernels are convolved in square tiles
+ * by the overlap-save method. Two real lines or tiles are transformed at once
+ * as the real and imaginary part of one complex transform.
+ * </p>
+ * <p>
+ * Sums of integer pixels and weights are recovered exactly by rounding, then
+ * the denominator and the clamping are applied as in the other engines. Edges
+ * and the rows next to the recv buffers are left to the generic code, so the
+ * output is identical to the engine of the same kind.
+ * </p>
+ */
+public class FftConvolutionEngine implements ConvolutionEngine {
+
+	//Cost of a transform per value and per level, relative to one multiply-add of the direct loops.
+	private static final double TRANSFORM_COST = 2.0;
+	//Largest tile of the overlap-save method.
+	private static final int MAX_TILE = 1024;
+
+	private final int[][] kernel;
+	private final long denom;
+	private final Normalizer normalizer;
+	private final boolean separable;
+	private final int kenDim;
+	private ByteBuffer horizontal = null;
+
+	//With separable set, denom is applied in each of the two passes.
+	public FftConvolutionEngine(int[][] kernel, long denom, boolean separable)
+	{
+		if(!ImageConvolution.isOddAndSym(kernel))
+		{
+			throw new IllegalArgumentException("Invalid kernel");
+		}
+		this.kernel = kernel;
+		this.denom = denom;
+		this.normalizer = new Normalizer(denom);
+		this.separable = separable;
+		this.kenDim = kernel.length;
+	}
+
+	//Estimated multiply-adds per pixel for a strip of the given size.
+	public static double getCost(int kenDim, boolean separable, int columns, int rows)
+	{
+		if(separable)
+		{
+			return lineCost(columns, kenDim) + lineCost(rows, kenDim);
+		}
+		return tileCost(getTileSize(kenDim, columns, rows), kenDim, columns, rows);
+	}
+
+	//Estimated multiply-adds per pixel of the direct and separable loops.
+	public static double getDirectCost(int kenDim, boolean separable)
+	{
+		return separable ? 2.0 * kenDim : (double)kenDim * kenDim;
+	}
+
+	//True if the FFT is expected to be faster than the loops and its rounding error stays far below one half.
+	public static boolean isFaster(int[][] kernel, boolean separable, int columns, int rows)
+	{
+		return isFaster(kernel, separable, getDirectCost(kernel.length, separable), columns, rows);
+	}
+
+	//Same as above for loops of the given cost per pixel.
+	public static boolean isFaster(int[][] kernel, boolean separable, double loopsCost, int columns, int rows)
+	{
+		long weights = 0;
+		for(int[] row : kernel)
+		{
+			for(int value : row)
+			{
+				weights += Math.abs((long)value);
+			}
+		}
+		if(255 * weights > (1L << 40))
+		{
+			return false;
+		}
+		return getCost(kernel.length, separable, columns, rows) < loopsCost;
+	}
+
+	private static double lineCost(int length, int kenDim)
+	{
+		int size = getLineSize(length, kenDim);
+		//Forward and inverse transform shared by two lines.
+		return TRANSFORM_COST * Math.max(1, Integer.numberOfTrailingZeros(size)) * size / length;
+	}
+
+	//Transform size for lines of the given length. Lines shorter than the kernel still need room for its weights.
+	private static int getLineSize(int length, int kenDim)
+	{
+		return Fft.sizeFor(Math.max(length, kenDim));
+	}
+
+	private static double tileCost(int tile, int kenDim, int columns, int rows)
+	{
+		int valid = tile - kenDim + 1;
+		double validRows = Math.min(valid, Math.max(1, rows - kenDim + 1));
+		double validColumns = Math.min(valid, Math.max(1, columns - kenDim + 1));
+		//Forward and inverse 2D transform shared by two tiles.
+		return TRANSFORM_COST * 2 * Integer.numberOfTrailingZeros(tile) * tile * tile / (validRows * validColumns);
+	}
+
+	//Tile size with the lowest cost per pixel.
+	private static int getTileSize(int kenDim, int columns, int rows)
+	{
+		int best = Fft.sizeFor(2 * kenDim);
+		for(int tile = best * 2; tile <= MAX_TILE; tile *= 2)
+		{
+			if(tileCost(tile, kenDim, columns, rows) < tileCost(best, kenDim, columns, rows))
+			{
+				best = tile;
+			}
+		}
+		return best;
+	}
+
+	@Override
+	public ByteBuffer convolveInterior(ByteBuffer inputArray, int columns, int rows)
+	{
+		ByteBuffer ret = ImageConvolution.newBuffer(inputArray.capacity());
+		if(separable)
+		{
+			horizontal = horizontalPass(inputArray, columns, rows);
+			verticalCore(horizontal, ret, columns, rows);
+		}
+		else
+		{
+			tiledCore(inputArray, ret, columns, rows);
+			ImageConvolution.twoDconvolutionSides(inputArray, ret, columns, rows, kernel, denom);
+		}
+		return ret;
+	}
+
+	@Override
+	public void convolveBorder(ByteBuffer inputArray, ByteBuffer out, int columns, int rows, ByteBuffer up, ByteBuffer down)
+	{
+		if(!separable)
+		{
+			ImageConvolution.twoDconvolutionBorder(inputArray, out, columns, rows, kernel, denom, up, down);
+			return;
+		}
+		int overlay = kenDim / 2;
+		ByteBuffer horUp = null;
+		ByteBuffer horDown = null;
+		if(up != null)
+		{
+			horUp = horizontalPass(up, columns, overlay);
+		}
+		if(down != null)
+		{
+			horDown = horizontalPass(down, columns, overlay);
+		}
+		ImageConvolution.twoDconvolutionFastVerBorder(horizontal, out, columns, rows, kernel, denom, horUp, horDown);
+		horizontal = null;
+	}
+
+	//Transform of the reversed weights, so that the circular convolution becomes the correlation of the loops.
+	private static double[][] weightsTransform(Fft fft, int[] weights)
+	{
+		int size = fft.getSize();
+		double[] re = new double[size];
+		double[] im = new double[size];
+		for(int i = 0; i < weights.length; i++)
+		{
+			re[i] = weights[weights.length - 1 - i];
+		}
+		fft.transform(re, im, 0, 1, false);
+		return new double[][] {re, im};
+	}
+
+	//Convolves pairs of lines packed as real and imaginary part. Output at index i of a line is the sum centered
+	//at i, valid for i in <half, length-half).
+	private static void convolveLines(Fft fft, double[][] weights, double[] re, double[] im)
+	{
+		fft.transform(re, im, 0, 1, false);
+		double[] wr = weights[0];
+		double[] wi = weights[1];
+		for(int i = 0; i < re.length; i++)
+		{
+			double r = re[i] * wr[i] - im[i] * wi[i];
+			im[i] = re[i] * wi[i] + im[i] * wr[i];
+			re[i] = r;
+		}
+		fft.transform(re, im, 0, 1, true);
+	}
+
+	//Horizontal pass over all rows of the input buffer. Edges are left to the generic pass.
+	private ByteBuffer horizontalPass(ByteBuffer inputArray, int columns, int rows)
+	{
+		ByteBuffer ret = ImageConvolution.newBuffer(inputArray.capacity());
+		int half = kenDim / 2;
+		int[] vectorX = new int[kenDim];
+		for(int i = 0; i < kenDim; i++)
+		{
+			vectorX[i] = kernel[i][0];
+		}
+		Fft fft = new Fft(getLineSize(columns, kenDim));
+		double[][] weights = weightsTransform(fft, vectorX);
+
+		RowBandExecutor.forEachBand(0, rows, columns, (rowStart, rowEnd) -> {
+			double[] re = new double[fft.getSize()];
+			double[] im = new double[fft.getSize()];
+			for(int row = rowStart; row < rowEnd; row += 2)
+			{
+				boolean pair = row + 1 < rowEnd;
+				Arrays.fill(re, 0);
+				Arrays.fill(im, 0);
+				for(int col = 0; col < columns; col++)
+				{
+					re[col] = inputArray.get(row * columns + col) & 0xFF;
+					if(pair)
+					{
+						im[col] = inputArray.get((row + 1) * columns + col) & 0xFF;
+					}
+				}
+				convolveLines(fft, weights, re, im);
+				for(int col = half; col < columns - half; col++)
+				{
+					ret.put(row * columns + col, (byte)normalize(re[col + half]));
+					if(pair)
+					{
+						ret.put((row + 1) * columns + col, (byte)normalize(im[col + half]));
+					}
+				}
+			}
+		});
+
+		ImageConvolution.twoDconvolutionHorPassSides(inputArray, ret, columns, rows, kernel, denom);
+		return ret;
+	}
+
+	//Vertical pass for the rows that do not depend on the recv buffers. Columns are processed in groups,
+	//which are read and written by rows.
+	private void verticalCore(ByteBuffer inputArray, ByteBuffer ret, int columns, int rows)
+	{
+		int half = kenDim / 2;
+		int[] vectorY = new int[kenDim];
+		for(int i = 0; i < kenDim; i++)
+		{
+			vectorY[i] = kernel[0][i];
+		}
+		Fft fft = new Fft(getLineSize(rows, kenDim));
+		double[][] weights = weightsTransform(fft, vectorY);
+		final int group = 32;
+		int groups = (columns + group - 1) / group;
+
+		//Groups of columns take the place of rows of the band executor.
+		RowBandExecutor.forEachBand(0, groups, group * rows, (groupStart, groupEnd) -> {
+			double[][] lines = new double[group][fft.getSize()];
+			double[] re = new double[fft.getSize()];
+			double[] im = new double[fft.getSize()];
+			for(int g = groupStart; g < groupEnd; g++)
+			{
+				int firstCol = g * group;
+				int width = Math.min(group, columns - firstCol);
+				for(int row = 0; row < rows; row++)
+				{
+					for(int c = 0; c < width; c++)
+					{
+						lines[c][row] = inputArray.get(row * columns + firstCol + c) & 0xFF;
+					}
+				}
+				//Padding still holds sums of the previous group, which would only grow from group to group.
+				for(int c = 0; c < width; c++)
+				{
+					Arrays.fill(lines[c], rows, lines[c].length, 0);
+				}
+				for(int c = 0; c < width; c += 2)
+				{
+					boolean pair = c + 1 < width;
+					System.arraycopy(lines[c], 0, re, 0, re.length);
+					if(pair)
+					{
+						System.arraycopy(lines[c + 1], 0, im, 0, im.length);
+					}
+					else
+					{
+						Arrays.fill(im, 0);
+					}
+					convolveLines(fft, weights, re, im);
+					System.arraycopy(re, 0, lines[c], 0, re.length);
+					if(pair)
+					{
+						System.arraycopy(im, 0, lines[c + 1], 0, im.length);
+					}
+				}
+				for(int row = half; row < rows - half; row++)
+				{
+					for(int c = 0; c < width; c++)
+					{
+						ret.put(row * columns + firstCol + c, (byte)normalize(lines[c][row + half]));
+					}
+				}
+			}
+		});
+	}
+
+	//Core of a non-separable convolution by overlap-save. Every tile of the input gives the sums of its
+	//part that is not affected by the circular wrap-around.
+	private void tiledCore(ByteBuffer inputArray, ByteBuffer ret, int columns, int rows)
+	{
+		int half = kenDim / 2;
+		int tile = getTileSize(kenDim, columns, rows);
+		int valid = tile - kenDim + 1;
+		int coreRows = rows - 2 * half;
+		int coreColumns = columns - 2 * half;
+		if(coreRows <= 0 || coreColumns <= 0)
+		{
+			return;
+		}
+		int tileRows = (coreRows + valid - 1) / valid;
+		int tileColumns = (coreColumns + valid - 1) / valid;
+
+		Fft fft = new Fft(tile);
+		//Weights of the loops are kernel[x][y], reversed in both directions.
+		double[] wr = new double[tile * tile];
+		double[] wi = new double[tile * tile];
+		for(int y = 0; y < kenDim; y++)
+		{
+			for(int x = 0; x < kenDim; x++)
+			{
+				wr[y * tile + x] = kernel[kenDim - 1 - x][kenDim - 1 - y];
+			}
+		}
+		fft.transform2D(wr, wi, false);
+
+		RowBandExecutor.forEachBand(0, tileRows, valid * columns, (tileRowStart, tileRowEnd) -> {
+			double[] re = new double[tile * tile];
+			double[] im = new double[tile * tile];
+			for(int tr = tileRowStart; tr < tileRowEnd; tr++)
+			{
+				//Input of a tile starts half a kernel above and left of its valid part.
+				int firstRow = tr * valid;
+				for(int tc = 0; tc < tileColumns; tc += 2)
+				{
+					boolean pair = tc + 1 < tileColumns;
+					fillTile(inputArray, columns, rows, firstRow, tc * valid, tile, re);
+					if(pair)
+					{
+						fillTile(inputArray, columns, rows, firstRow, (tc + 1) * valid, tile, im);
+					}
+					else
+					{
+						Arrays.fill(im, 0);
+					}
+
+					fft.transform2D(re, im, false);
+					for(int i = 0; i < re.length; i++)
+					{
+						double r = re[i] * wr[i] - im[i] * wi[i];
+						im[i] = re[i] * wi[i] + im[i] * wr[i];
+						re[i] = r;
+					}
+					fft.transform2D(re, im, true);
+
+					storeTile(re, ret, columns, rows, firstRow, tc * valid, tile, half);
+					if(pair)
+					{
+						storeTile(im, ret, columns, rows, firstRow, (tc + 1) * valid, tile, half);
+					}
+				}
+			}
+		});
+	}
+
+	//Copies the tile starting at the given row and column, pixels outside the buffer are zero.
+	private static void fillTile(ByteBuffer inputArray, int columns, int rows, int firstRow, int firstCol, int tile, double[] values)
+	{
+		for(int y = 0; y < tile; y++)
+		{
+			int row = firstRow + y;
+			for(int x = 0; x < tile; x++)
+			{
+				int col = firstCol + x;
+				values[y * tile + x] = row < rows && col < columns ? inputArray.get(row * columns + col) & 0xFF : 0;
+			}
+		}
+	}
+
+	//Stores the valid part of a convolved tile that falls into the core of the buffer.
+	private void storeTile(double[] values, ByteBuffer ret, int columns, int rows, int firstRow, int firstCol, int tile, int half)
+	{
+		for(int y = kenDim - 1; y < tile; y++)
+		{
+			int row = firstRow + y - half;
+			if(row >= rows - half)
+			{
+				break;
+			}
+			for(int x = kenDim - 1; x < tile; x++)
+			{
+				int col = firstCol + x - half;
+				if(col >= columns - half)
+				{
+					break;
+				}
+				ret.put(row * columns + col, (byte)normalize(values[y * tile + x]));
+			}
+		}
+	}
+
+	//Rounds the sum back to the integer of the loops, applies the denominator and clamps to 8 bits.
+	private int normalize(double sum)
+	{
+		return normalizer.normalize(Math.round(sum));
+	}
+}
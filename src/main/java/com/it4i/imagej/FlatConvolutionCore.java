@@ -0,0 +1,279 @@
+package com.it4i.imagej;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Convolution loops over plain byte arrays with the kernel flattened by rows,
+ * {@code weights[y * kenDim + x] = kernel[x][y]}. Every kernel tap is applied
+ * to a whole row at once by a straight loop over an {@code int} accumulator
+ * row, which lets the JIT drop the bounds checks and vectorize it, instead of
+ * calling the buffer accessors for every tap of every pixel.
+ * <p>
+ * Only the core of a strip is convolved here, edges are left to the loops in
+ * {@link ImageConvolution}. Sums, denominator and clamping are the same as
+ * there, so the results are identical. Kernels whose sums could overflow an
+ * {@code int} are summed in {@code long} accumulators. Buffers are converted to arrays by the
+ * engines at the MPI boundary only.
+ * </p>
+ * <p>
+ * The multiply-add of a tap over a row is done by a {@link RowAccumulator}.
+ * When the classes built by the {@code vector} profile are present and the JVM
+ * is started with {@code --add-modules jdk.incubator.vector}, it uses the
+ * Vector API, otherwise scalar loops. Setting
+ * {@code -Dimageconvolution.vector=false} forces the scalar loops.
+ * </p>
+ */
+public class FlatConvolutionCore {
+
+	//Adds weight * pixel of length pixels of the input starting at index to the accumulators.
+	//Results must be identical to the scalar loop, that is int arithmetic on unsigned pixels.
+	public interface RowAccumulator {
+		void accumulate(int[] acc, byte[] inputArray, int index, int weight, int length);
+	}
+
+	private static final String VECTOR_ACCUMULATOR = "com.it4i.imagej.vector.VectorRowAccumulator";
+	private static final RowAccumulator ACCUMULATOR = createAccumulator();
+
+	//Loads the Vector API implementation if it can be used on this JVM, the scalar loop otherwise.
+	private static RowAccumulator createAccumulator()
+	{
+		if(Boolean.parseBoolean(System.getProperty("imageconvolution.vector", "true")))
+		{
+			try
+			{
+				return (RowAccumulator)Class.forName(VECTOR_ACCUMULATOR).getConstructor().newInstance();
+			}
+			catch(ReflectiveOperationException | LinkageError | RuntimeException e)
+			{
+				//Class not built, module not added or vectors too short, use the scalar loop.
+			}
+		}
+		return FlatConvolutionCore::accumulateScalar;
+	}
+
+	//True if the Vector API implementation is used.
+	public static boolean isVectorized()
+	{
+		return ACCUMULATOR.getClass().getName().equals(VECTOR_ACCUMULATOR);
+	}
+
+	static void accumulateScalar(int[] acc, byte[] inputArray, int index, int weight, int length)
+	{
+		for(int col = 0; col < length; col++)
+		{
+			acc[col] += weight * (inputArray[index + col] & 0xFF);
+		}
+	}
+
+	//Kernel flattened by rows of the image, weights[y * kenDim + x] = kernel[x][y].
+	static int[] flatten(int[][] kernel)
+	{
+		int kenDim = kernel.length;
+		int[] weights = new int[kenDim * kenDim];
+		for(int y = 0; y < kenDim; y++)
+		{
+			for(int x = 0; x < kenDim; x++)
+			{
+				weights[y * kenDim + x] = kernel[x][y];
+			}
+		}
+		return weights;
+	}
+
+	//Returns the content of the buffer as an array. The array of a heap buffer is used directly, others are copied.
+	static byte[] toArray(ByteBuffer buffer)
+	{
+		if(buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.array().length == buffer.capacity())
+		{
+			return buffer.array();
+		}
+		byte[] array = new byte[buffer.capacity()];
+		ByteBuffer source = buffer.duplicate();
+		source.clear();
+		source.get(array);
+		return array;
+	}
+
+	//True if sums of 8-bit pixels with the weights may not fit in an int accumulator.
+	static boolean needsWideSums(int[] weights)
+	{
+		long sum = 0;
+		for(int weight : weights)
+		{
+			sum += Math.abs((long)weight);
+		}
+		return 255 * sum > Integer.MAX_VALUE;
+	}
+
+	//Multiply-add into long accumulators, for weights whose sums do not fit in an int.
+	static void accumulateWide(long[] acc, byte[] inputArray, int index, int weight, int length)
+	{
+		for(int col = 0; col < length; col++)
+		{
+			acc[col] += (long)weight * (inputArray[index + col] & 0xFF);
+		}
+	}
+
+	//Full 2D kernel for the rows and columns that are at least half a kernel away from the edges of the strip.
+	static void convolveCore(byte[] inputArray, ByteBuffer ret, int columns, int rows, int[] weights, int kenDim, Normalizer normalizer)
+	{
+		int half = kenDim / 2;
+		int width = columns - 2 * half;
+		if(width <= 0)
+		{
+			return;
+		}
+		boolean wide = needsWideSums(weights);
+
+		RowBandExecutor.forEachBand(half, rows - half, columns * kenDim, (rowStart, rowEnd) -> {
+			int[] acc = new int[width];
+			long[] wideAcc = wide ? new long[width] : null;
+			byte[] line = new byte[width];
+			ByteBuffer out = ret.duplicate();
+			for(int row = rowStart; row < rowEnd; row++)
+			{
+				Arrays.fill(acc, 0);
+				if(wide)
+				{
+					Arrays.fill(wideAcc, 0);
+				}
+				for(int y = 0; y < kenDim; y++)
+				{
+					//First pixel under the left tap of the window of column half.
+					int rowIndex = (row + y - half) * columns;
+					for(int x = 0; x < kenDim; x++)
+					{
+						int weight = weights[y * kenDim + x];
+						if(weight == 0)
+						{
+							continue;
+						}
+						if(wide)
+						{
+							accumulateWide(wideAcc, inputArray, rowIndex + x, weight, width);
+						}
+						else
+						{
+							ACCUMULATOR.accumulate(acc, inputArray, rowIndex + x, weight, width);
+						}
+					}
+				}
+				if(wide)
+				{
+					normalizer.normalize(wideAcc, line, width);
+				}
+				else
+				{
+					normalizer.normalize(acc, line, width);
+				}
+				out.position(row * columns + half);
+				out.put(line, 0, width);
+			}
+		});
+	}
+
+	//Horizontal pass of the separable kernel over all rows, for the columns that are at least half a kernel away
+	//from the left and right edges. Results go to ret, which has the same layout as the input.
+	static void horizontalCore(byte[] inputArray, byte[] ret, int columns, int rows, int[] vector, Normalizer normalizer)
+	{
+		int kenDim = vector.length;
+		int half = kenDim / 2;
+		int width = columns - 2 * half;
+		if(width <= 0)
+		{
+			return;
+		}
+		boolean wide = needsWideSums(vector);
+
+		RowBandExecutor.forEachBand(0, rows, columns, (rowStart, rowEnd) -> {
+			int[] acc = new int[width];
+			long[] wideAcc = wide ? new long[width] : null;
+			byte[] line = new byte[width];
+			for(int row = rowStart; row < rowEnd; row++)
+			{
+				Arrays.fill(acc, 0);
+				if(wide)
+				{
+					Arrays.fill(wideAcc, 0);
+				}
+				int rowIndex = row * columns;
+				for(int x = 0; x < kenDim; x++)
+				{
+					int weight = vector[x];
+					if(weight == 0)
+					{
+						continue;
+					}
+					if(wide)
+					{
+						accumulateWide(wideAcc, inputArray, rowIndex + x, weight, width);
+					}
+					else
+					{
+						ACCUMULATOR.accumulate(acc, inputArray, rowIndex + x, weight, width);
+					}
+				}
+				if(wide)
+				{
+					normalizer.normalize(wideAcc, line, width);
+				}
+				else
+				{
+					normalizer.normalize(acc, line, width);
+				}
+				System.arraycopy(line, 0, ret, rowIndex + half, width);
+			}
+		});
+	}
+
+	//Vertical pass of the separable kernel for all columns of the rows that are at least half a kernel away
+	//from the top and bottom edges.
+	static void verticalCore(byte[] inputArray, ByteBuffer ret, int columns, int rows, int[] vector, Normalizer normalizer)
+	{
+		int kenDim = vector.length;
+		int half = kenDim / 2;
+		boolean wide = needsWideSums(vector);
+
+		RowBandExecutor.forEachBand(half, rows - half, columns * kenDim, (rowStart, rowEnd) -> {
+			int[] acc = new int[columns];
+			long[] wideAcc = wide ? new long[columns] : null;
+			byte[] line = new byte[columns];
+			ByteBuffer out = ret.duplicate();
+			for(int row = rowStart; row < rowEnd; row++)
+			{
+				Arrays.fill(acc, 0);
+				if(wide)
+				{
+					Arrays.fill(wideAcc, 0);
+				}
+				for(int y = 0; y < kenDim; y++)
+				{
+					int weight = vector[y];
+					if(weight == 0)
+					{
+						continue;
+					}
+					if(wide)
+					{
+						accumulateWide(wideAcc, inputArray, (row + y - half) * columns, weight, columns);
+					}
+					else
+					{
+						ACCUMULATOR.accumulate(acc, inputArray, (row + y - half) * columns, weight, columns);
+					}
+				}
+				if(wide)
+				{
+					normalizer.normalize(wideAcc, line, columns);
+				}
+				else
+				{
+					normalizer.normalize(acc, line, columns);
+				}
+				out.position(row * columns);
+				out.put(line, 0, columns);
+			}
+		});
+	}
+}
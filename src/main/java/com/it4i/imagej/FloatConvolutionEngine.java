@@ -0,0 +1,41 @@
+package com.it4i.imagej;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Engine for 32-bit float pixels. Sums are divided by the denominator and
+ * stored without clamping, negative values of edge detections are kept.
+ */
+public class FloatConvolutionEngine extends WideConvolutionEngine {
+
+	public FloatConvolutionEngine(KernelDescriptor descriptor)
+	{
+		super(descriptor, PixelType.FLOAT32, 0);
+	}
+
+	@Override
+	protected void load(ByteBuffer in, int offset, double[] target, int targetOffset, int length)
+	{
+		FloatBuffer pixels = PixelType.asFloats(in);
+		for(int i = 0; i < length; i++)
+		{
+			target[targetOffset + i] = pixels.get(offset + i);
+		}
+	}
+
+	@Override
+	protected void store(double[] sums, ByteBuffer out, int offset, int length)
+	{
+		FloatBuffer pixels = PixelType.asFloats(out);
+		for(int i = 0; i < length; i++)
+		{
+			double value = sums[i];
+			if(denom != 0)
+			{
+				value /= denom;
+			}
+			pixels.put(offset + i, (float)value);
+		}
+	}
+}
@@ -0,0 +1,272 @@
+package com.it4i.imagej;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Overlaps reading and writing of a stack with the convolution.
+ * <p>
+ * Frames are read ahead on a background thread into direct buffers, which can
+ * be passed to non-blocking MPI calls, and result frames are written to the
+ * {@link RawImageWriter} on another background thread. Only the calling
+ * thread works with MPI.
+ * </p>
+ * <p>
+ * {@code depth} is the number of frames read ahead and also the number of
+ * frames waiting to be written before the caller is blocked. It can be set by
+ * the {@code imageconvolution.pipelineDepth} system property. With depth 0
+ * frames are read and written on the calling thread.
+ * </p>
+ * <p>
+ * Frames must be requested in ascending order within
+ * {@code <firstFrame, lastFrame)}.
+ * </p>
+ */
+public class FramePipeline implements Closeable {
+
+	public static final int DEFAULT_DEPTH = Math.max(0, Integer.getInteger("imageconvolution.pipelineDepth", 2));
+
+	private final FrameSource source;
+	private final RawImageWriter writer;
+	private final int lastFrame;
+	private final int depth;
+	private final int frameSize;
+	private final ExecutorService reader;
+	private final ExecutorService writeBehind;
+
+	//Prefetched frames in the order they were requested.
+	private final ArrayDeque<Future<ByteBuffer>> prefetched = new ArrayDeque<Future<ByteBuffer>>();
+	private int nextPrefetch;
+	private final ArrayDeque<Future<?>> pendingWrites = new ArrayDeque<Future<?>>();
+
+	//Buffers are allocated on demand up to the limit and then reused.
+	private final LinkedBlockingQueue<ByteBuffer> freeFrames = new LinkedBlockingQueue<ByteBuffer>();
+	private final LinkedBlockingQueue<ByteBuffer> freeResults = new LinkedBlockingQueue<ByteBuffer>();
+	private final List<ByteBuffer> frameBuffers = new ArrayList<ByteBuffer>();
+	private final List<ByteBuffer> resultBuffers = new ArrayList<ByteBuffer>();
+
+	//Source and writer can be null on nodes that do not read or write frames.
+	public FramePipeline(FrameSource source, RawImageWriter writer, int columns, int rows, int firstFrame, int lastFrame, int depth)
+	{
+		this(source, writer, columns, rows, PixelType.UINT8, firstFrame, lastFrame, depth);
+	}
+
+	public FramePipeline(FrameSource source, RawImageWriter writer, int columns, int rows, PixelType type, int firstFrame, int lastFrame, int depth)
+	{
+		this.source = source;
+		this.writer = writer;
+		this.lastFrame = lastFrame;
+		this.depth = depth;
+		this.frameSize = columns * rows * type.getBytes();
+		this.nextPrefetch = firstFrame;
+		this.reader = depth > 0 && source != null ? Executors.newSingleThreadExecutor(FramePipeline::daemon) : null;
+		this.writeBehind = depth > 0 && writer != null ? Executors.newSingleThreadExecutor(FramePipeline::daemon) : null;
+	}
+
+	private static Thread daemon(Runnable task)
+	{
+		Thread thread = new Thread(task, "frame-pipeline");
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	//Returns the frame in a direct buffer. The buffer has to be returned by releaseFrame once it is no longer needed.
+	public ByteBuffer getFrame(final int frame) throws IOException
+	{
+		if(reader == null)
+		{
+			ByteBuffer view = source.getFrame(frame);
+			return view.isDirect() ? view : copy(view);
+		}
+
+		//Keep depth frames in flight after the requested one.
+		while(nextPrefetch < lastFrame && nextPrefetch <= frame + depth)
+		{
+			final int prefetchFrame = nextPrefetch++;
+			prefetched.add(reader.submit(new Callable<ByteBuffer>() {
+				@Override
+				public ByteBuffer call() throws Exception
+				{
+					//Copying forces the frame to be read from the disk here, not on the calling thread.
+					return copy(source.getFrame(prefetchFrame));
+				}
+			}));
+		}
+		return await(prefetched.poll());
+	}
+
+	public void releaseFrame(ByteBuffer frame)
+	{
+		//Views of the source are not ours to reuse.
+		if(owns(frameBuffers, frame))
+		{
+			freeFrames.offer(frame);
+		}
+	}
+
+	private ByteBuffer copy(ByteBuffer view) throws IOException
+	{
+		ByteBuffer buffer = takeFrameBuffer();
+		buffer.clear();
+		buffer.put(view.duplicate());
+		buffer.clear();
+		return buffer;
+	}
+
+	private ByteBuffer takeFrameBuffer() throws IOException
+	{
+		ByteBuffer buffer = freeFrames.poll();
+		if(buffer != null)
+		{
+			return buffer;
+		}
+		synchronized(frameBuffers)
+		{
+			//One frame is held by the caller and one by the copy in progress besides the prefetched ones.
+			if(frameBuffers.size() < depth + 2)
+			{
+				buffer = ImageConvolution.newBuffer(frameSize);
+				frameBuffers.add(buffer);
+				return buffer;
+			}
+		}
+		try
+		{
+			return freeFrames.take();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a frame buffer");
+		}
+	}
+
+	//Returns a buffer for a result frame. Buffers passed to writeFrame are reused once they are written.
+	public ByteBuffer getResultBuffer() throws IOException
+	{
+		ByteBuffer buffer = freeResults.poll();
+		while(buffer == null)
+		{
+			synchronized(resultBuffers)
+			{
+				if(pendingWrites.isEmpty() || resultBuffers.size() <= depth)
+				{
+					buffer = ImageConvolution.newBuffer(frameSize);
+					resultBuffers.add(buffer);
+					return buffer;
+				}
+			}
+			//All buffers are waiting for the writer, wait for the oldest one.
+			await(pendingWrites.poll());
+			buffer = freeResults.poll();
+		}
+		return buffer;
+	}
+
+	//Writes the frame, on the background thread if the pipeline has any depth. The buffer must not be changed
+	//until it is written, buffers from getResultBuffer are given back automatically.
+	public void writeFrame(final int frame, final ByteBuffer data) throws IOException
+	{
+		if(writeBehind == null)
+		{
+			writer.writeFrame(frame, data);
+			recycle(data);
+			return;
+		}
+
+		//Do not let the writer fall behind more than depth frames.
+		while(pendingWrites.size() >= depth)
+		{
+			await(pendingWrites.poll());
+		}
+		pendingWrites.add(writeBehind.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception
+			{
+				writer.writeFrame(frame, data);
+				recycle(data);
+				return null;
+			}
+		}));
+	}
+
+	private void recycle(ByteBuffer data)
+	{
+		if(owns(resultBuffers, data))
+		{
+			freeResults.offer(data);
+		}
+	}
+
+	//Buffers are compared by identity, equals of a ByteBuffer compares the content.
+	private static boolean owns(List<ByteBuffer> buffers, ByteBuffer buffer)
+	{
+		synchronized(buffers)
+		{
+			for(ByteBuffer owned : buffers)
+			{
+				if(owned == buffer)
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static <T> T await(Future<T> future) throws IOException
+	{
+		try
+		{
+			return future.get();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the frame pipeline");
+		}
+		catch(ExecutionException e)
+		{
+			if(e.getCause() instanceof IOException)
+			{
+				throw (IOException)e.getCause();
+			}
+			throw new IOException("Frame pipeline failed", e.getCause());
+		}
+	}
+
+	//Waits until all frames are written and stops the background threads. The writer itself is not closed.
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			while(!pendingWrites.isEmpty())
+			{
+				await(pendingWrites.poll());
+			}
+		}
+		finally
+		{
+			if(reader != null)
+			{
+				reader.shutdownNow();
+			}
+			if(writeBehind != null)
+			{
+				writeBehind.shutdown();
+			}
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package com.it4i.imagej;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Source of frames for {@link ImageConvolution#convolve}. A frame is stored
+ * row after row, pixels of wider types in the byte order of {@link PixelType}.
+ */
+public interface FrameSource {
+
+	int getColumns();
+
+	int getRows();
+
+	int getNumOfFrames();
+
+	default PixelType getType()
+	{
+		return PixelType.UINT8;
+	}
+
+	//Returns view of the whole frame. The view must not be modified.
+	ByteBuffer getFrame(int frame) throws IOException;
+}
@@ -1,14 +1,20 @@
 package com.it4i.imagej;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.IntBuffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
 
 
+import mpi.CartComm;
+import mpi.Datatype;
 import mpi.MPI;
 import mpi.MPIException;
+import mpi.Request;
+import mpi.ShiftParms;
 
 import org.scijava.ItemIO;
 import org.scijava.command.Command;
@@ -22,7 +28,6 @@ import org.scijava.widget.NumberWidget;
 
 import net.imagej.Dataset;
 import net.imagej.ImageJ;
-import net.imglib2.RandomAccess;
 import net.imglib2.img.Img;
 import net.imglib2.type.numeric.RealType;
 
@@ -48,66 +53,19 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 	@Parameter(type = ItemIO.INPUT)
 	private Dataset inputImg;
 
-	@Parameter(label = "Kernel", persist = false, style = NumberWidget.SLIDER_STYLE, min = "1", max = "18", stepSize = "1.0")
+	@Parameter(label = "Kernel", persist = false, style = NumberWidget.SLIDER_STYLE, min = "1", max = "" + KernelRegistry.COUNT, stepSize = "1.0")
 	private double kernel;
 
+	@Parameter(label = "Convolve stack in 3D", persist = false)
+	private boolean volume;
+
 	public void preview() {
-		switch((int)kernel) {
-		  case 1:
-			  ls.info("Box blur 3x3 selected.");
-		    break;
-		  case 2:
-			  ls.info("Box blur 5x5 selected.");
-		  break;
-		  case 3:
-			  ls.info("Edge dectection 1 selected.");
-		    break;
-		  case 4:
-			  ls.info("Edge dectection 2 selected.");
-		    break;
-		  case 5:
-			  ls.info("Edge dectection 3 selected.");
-		    break;
-		  case 6:
-			  ls.info("Sharpness filter selected.");
-		    break;
-		  case 7:
-			  ls.info("Gaussian blur 3x3 selected.");
-		    break;
-		  case 8:
-			  ls.info("Gaussian blur 5x5 selected.");
-		    break;
-		  case 9:			  
-			  ls.info("Gaussian blur 7x7 selected.");
-		    break;
-		  case 10:
-			  ls.info("Gaussian blur 9x9 selected.");
-		    break;
-		  case 11:
-			  ls.info("Gaussian blur 11x11 selected.");
-		    break;
-		  case 12:
-			  ls.info("Gaussian blur 13x13 selected.");
-		    break;
-		  case 13:
-			  ls.info("Gaussian blur 15x15 selected.");
-		    break;
-		  case 14:
-			  ls.info("Gaussian blur 17x17 selected.");
-		    break;
-		  case 15:
-			  ls.info("Gaussian blur 19x19 selected.");
-		    break;
-		  case 16:
-			  ls.info("Gaussian blur 21x21 selected.");
-		    break;
-		  case 17:
-			  ls.info("Gaussian blur 51x51 selected.");
-		    break;
-		  case 18:
-			  ls.info("Gaussian blur 101x101 selected.");
-		    break;
-		}		
+		int number = (int)kernel;
+		if(number >= 1 && number <= KernelRegistry.COUNT)
+		{
+			//Kernel is built while it is being chosen, the run then takes it from the registry.
+			ls.info(KernelRegistry.get(number).getName() + " selected.");
+		}
 	}
 
 	public void cancel() {
@@ -123,20 +81,18 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
         String bitdepth = inputImg.getTypeLabelShort();
         System.out.println("Pixel type = '" + bitdepth + "'");
         
-        if(!bitdepth.equals("8-bit uint"))
+        PixelType type = PixelType.forLabel(bitdepth);
+        if(type == null)
         {
-        	System.out.println("Image is not 8-bit. Program will terminate.");
+        	System.out.println("Image is not 8-bit, 16-bit or 32-bit float. Program will terminate.");
         	return;
         }
         
-        RandomAccess<T> ra = image.randomAccess();
-        boolean isSingle = false;
         int zStack = 0;
         long dimensions[] = new long[image.numDimensions()];
         image.dimensions(dimensions);
         if(dimensions.length == 2){
-        	zStack = 1;
-        	isSingle = true;}
+        	zStack = 1;}
         if(dimensions.length == 3){
         	zStack = (int)dimensions[2];}
         
@@ -144,95 +100,79 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
         for (int i = 0; i < image.numDimensions(); i++) {
         	System.out.println(i + " = " + dimensions[i]);
         }
-        int[] out = new int[(int)(dimensions[0] * dimensions[1] * zStack)];
-        int inc = 0;
-        if(isSingle){
-	    	for (int x = 0; x < dimensions[1]; x++) {
-	    		for (int y = 0; y < dimensions[0]; y++) {
-	    			ra.setPosition(x, 1);
-	    			ra.setPosition(y, 0);        			
-	    			T val = ra.get();
-	    			out[inc] = (int)val.getRealDouble();
-	    			inc++;
-	    		}
-	    	}     
-        } else {
-        	for (int c = 0; c < zStack; c++) {
-            	for (int x = 0; x < dimensions[1]; x++) {
-            		for (int y = 0; y< dimensions[0]; y++) {
-            			ra.setPosition(x, 1);
-            			ra.setPosition(y, 0);  
-            			ra.setPosition(c, 2);
-            			T val = ra.get();
-            			out[inc] = (int)val.getRealDouble();
-            			inc++;
-            		}
-            	}
-            }        
-        }       
+        if(zStack == 0)
+        {
+        	System.out.println("Only 2D images and 3D stacks are supported. Program will terminate.");
+        	return;
+        }
+        //Pixels are copied in bulk from the underlying storage instead of one by one through RandomAccess.
+        //Stacks of more than 2 GB do not fit an array and have to be convolved from a raw file.
+        byte[] out;
+        try {
+        	out = PixelExtractor.getPixels(image, type);
+        } catch (IllegalArgumentException e) {
+        	System.out.println(e.getMessage());
+        	return;
+        }
+        
+        //With a running session the image is loaded once, later runs with another kernel send only the kernel.
+        Integer sessionPort = Integer.getInteger("imageconvolution.session");
+        if(sessionPort != null && !(volume && zStack > 1))
+        {
+        	//Keyed by the content, an image edited since the last run is loaded again.
+        	String key = SessionClient.getKey(out, (int)dimensions[0], (int)dimensions[1], zStack, type);
+        	try {
+        		System.out.println(SessionClient.convolve(sessionPort, key, out, (int)dimensions[0], (int)dimensions[1], zStack, type,
+        				(int)kernel, new File("result.raw")));
+        	} catch (IOException e) {
+        		e.printStackTrace();
+        	}
+        	return;
+        }
         
-        saveImgStack(out, "temp.raw");
+        //Pixels are handed to the convolution directly, without the temp.raw round trip.
 		try {
-			convolve("temp.raw", (int)dimensions[0], (int)dimensions[1], zStack, (int)kernel);
+			convolve(out, (int)dimensions[0], (int)dimensions[1], zStack, (int)kernel, type, volume && zStack > 1);
 		} catch (MPIException e) {
 			e.printStackTrace();
 		} catch (IOException e) {
 			e.printStackTrace();
-		} catch (InterruptedException e) {
-			e.printStackTrace();
 		}
 		System.out.println("Convolution completed.");
 	}
 	
-	public static IntBuffer getArrFromRaw(File f, int col, int row, int slice)
+	//Reads a single frame of raw image into a new buffer. Only the requested frame is read from the file.
+	//Use RawImageReader directly when reading more frames of the same file.
+	public static ByteBuffer getArrFromRaw(File f, int col, int row, int slice)
 	{
-		FileInputStream fileInputStream = null;
-        byte[] fileContent = null;
+		ByteBuffer out = newBuffer(col*row);
+		RawImageReader reader = null;
 
-        try {
-            fileContent = new byte[(int) f.length()];
-
-            //read file into bytes[]
-            fileInputStream = new FileInputStream(f);
-            fileInputStream.read(fileContent);
-
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (fileInputStream != null) {
-                try {
-                    fileInputStream.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-
-        }
-        
-        IntBuffer out = MPI.newIntBuffer(col*row);
-        int slicePos = slice*col*row;
-        
-		for(int i = 0; i < col*row; i++)
-		{
-			int i2 = (fileContent[slicePos + i] & 0xFF);
-			out.put(i,i2);
+		try {
+			reader = new RawImageReader(f, col, row, slice + 1);
+			out.put(reader.getFrame(slice));
+			out.clear();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
 		}
 		return out;
 	}
 	
-	public static void saveImgStack(int[] inputArray, String name)
+	public static void saveImgStack(byte[] inputArray, String name)
 	{
-		int bufSize = inputArray.length;
-		byte[] buf = new byte[bufSize];
-		for(int i=0;i<bufSize;i++){
-			buf[i] = (byte)inputArray[i];
-		}
-		
 		FileOutputStream fileOuputStream = null;
 
         try {
             fileOuputStream = new FileOutputStream(name);
-            fileOuputStream.write(buf);
+            fileOuputStream.write(inputArray);
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -247,12 +187,12 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
         }
 	}
 	
-	public static void saveImg(IntBuffer inputArray, String name)
+	public static void saveImg(ByteBuffer inputArray, String name)
 	{
 		int bufSize = inputArray.capacity();
 		byte[] buf = new byte[bufSize];
 		for(int i=0;i<bufSize;i++){
-			buf[i] = (byte)inputArray.get(i);
+			buf[i] = inputArray.get(i);
 		}
 		
 		FileOutputStream fileOuputStream = null;
@@ -274,64 +214,78 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
         }
 	}
 	
-	private static IntBuffer twoDconvolutionFastVer(IntBuffer inputArray, int columns, int rows, int[][] kernel, long denom, IntBuffer up, IntBuffer down)
+	private static ByteBuffer twoDconvolutionFastVer(ByteBuffer inputArray, int columns, int rows, int[][] kernel, long denom, ByteBuffer up, ByteBuffer down)
+	{
+		ByteBuffer ret = twoDconvolutionFastVerInterior(inputArray, columns, rows, kernel, denom);
+		twoDconvolutionFastVerBorder(inputArray, ret, columns, rows, kernel, denom, up, down);
+		return ret;
+	}
+	
+	//Vertical pass of the separable convolution for the rows that do not depend on the recv buffers.
+	//Top and bottom rows of the returned buffer are filled later by twoDconvolutionFastVerBorder.
+	static ByteBuffer twoDconvolutionFastVerInterior(ByteBuffer inputArray, int columns, int rows, int[][] kernel, long denom)
 	{
 		int retSize = inputArray.capacity();
-		IntBuffer ret = MPI.newIntBuffer(retSize);
+		ByteBuffer ret = newBuffer(retSize);
 		int kenDim = kernel.length;
-		int[] vectorX = new int[kenDim];
 		int[] vectorY = new int[kenDim];
-		int acc = 0;		
-		int positionIndex = 0;
-		int mirrorY = 0; 
-		int mirrorPositionIndex = 0;
 		
 		for(int i = 0; i < kenDim; i++)
 		{
-			vectorX[i] = kernel[i][0];
 			vectorY[i] = kernel[0][i];
 		}
 		
-		/*if(down != null)
-		{
-			for(int i = 0; i < kenDim/2; i++)
-			{
-				for(int j = 0; j < 20; j++)
-				{
-					System.out.print(down.get(i*columns+j) + ";");
-				}
-				System.out.println();
-			}
-		}*/
-		//The core of convolution calculation. We omit the edges as there are many conditions that slows the algorithm. 
-		for(int row = kenDim/2; row < rows - kenDim/2; row++) {		
-			for(int col = 0; col < columns; col++)
-			{
-				//Initialize accumulator
-				acc = 0;		
-				//Cycle through kernel and use its values to fill the accumulator.
-				for(int y = 0; y < kenDim; y++) {			
-					positionIndex = ((row + y - (kenDim / 2)) * columns) + col;					
-					acc += vectorY[y] * inputArray.get(positionIndex);
-				}
-				
-				//Use denominator
-				if(denom != 0)
-				{
-					acc /= denom;
-				}
-				//Normalize to 8bit pixels
-				if(acc > 255)
-				{
-					acc = 255;
-				}
-				if(acc < 0)
+		//The core of convolution calculation. We omit the edges as there are many conditions that slows the algorithm.
+		//Rows are split into bands convolved in parallel, each band writes only its own rows of the return buffer.
+		RowBandExecutor.forEachBand(kenDim/2, rows - kenDim/2, columns * kenDim, (rowStart, rowEnd) -> {
+			for(int row = rowStart; row < rowEnd; row++) {
+				for(int col = 0; col < columns; col++)
 				{
-					acc = 0;
+					//Initialize accumulator
+					long bandAcc = 0;
+					//Cycle through kernel and use its values to fill the accumulator.
+					for(int y = 0; y < kenDim; y++) {
+						int bandPositionIndex = ((row + y - (kenDim / 2)) * columns) + col;
+						bandAcc += vectorY[y] * (inputArray.get(bandPositionIndex) & 0xFF);
+					}
+
+					//Use denominator
+					if(denom != 0)
+					{
+						bandAcc /= denom;
+					}
+					//Normalize to 8bit pixels
+					if(bandAcc > 255)
+					{
+						bandAcc = 255;
+					}
+					if(bandAcc < 0)
+					{
+						bandAcc = 0;
+					}
+					//Insert to return buffer
+					ret.put((row * columns) + col,(byte)bandAcc);
 				}
-				//Insert to return buffer				
-				ret.put((row * columns) + col,acc);
 			}
+		});
+		
+		return ret;
+	}
+	
+	//Vertical pass for the top and bottom rows. Up and down are the horizontally convolved recv buffers
+	//from neighbouring nodes, null on the image border.
+	static void twoDconvolutionFastVerBorder(ByteBuffer inputArray, ByteBuffer ret, int columns, int rows, int[][] kernel, long denom, ByteBuffer up, ByteBuffer down)
+	{
+		int kenDim = kernel.length;
+		int[] vectorY = new int[kenDim];
+		long acc = 0;		
+		int positionIndex = 0;
+		int mirrorY = 0; 
+		int mirrorPositionIndex = 0;
+		
+		for(int i = 0; i < kenDim; i++)
+		{
+			vectorY[i] = kernel[0][i];
 		}
 		
 		//Top edge handling with corners
@@ -345,7 +299,7 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 					//If requested pixel is inside frame
 					if(positionIndex >= 0)
 					{
-						acc += vectorY[y] * inputArray.get(positionIndex);								
+						acc += vectorY[y] * (inputArray.get(positionIndex) & 0xFF);								
 					}
 					//If requested pixel is outside the frame
 					else {
@@ -354,12 +308,12 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 						{
 							mirrorY = (kenDim -1) - y; 
 							mirrorPositionIndex = ((row + mirrorY - (kenDim / 2)) * columns) + col;
-							acc += vectorY[y] * inputArray.get(mirrorPositionIndex);
+							acc += vectorY[y] * (inputArray.get(mirrorPositionIndex) & 0xFF);
 						}
 						else
 						{		
-							acc += vectorY[y] * up.get(positionIndex + (columns * (kenDim/2)));
-							//acc += vectorY[y] * inputArray.get(row * columns + col);
+							acc += vectorY[y] * (up.get(positionIndex + (columns * (kenDim/2))) & 0xFF);
+							//acc += vectorY[y] * (inputArray.get(row * columns + col) & 0xFF);
 						}						
 					}					
 				}
@@ -379,7 +333,7 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 					acc = 0;
 				}
 				//Insert to return buffer
-				ret.put((row * columns) + col,acc);
+				ret.put((row * columns) + col,(byte)acc);
 			}
 		}
 		
@@ -394,7 +348,7 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 					//If requested pixel is inside frame
 					if(positionIndex <= rows*columns-1)
 					{
-						acc += vectorY[y] * inputArray.get(positionIndex);
+						acc += vectorY[y] * (inputArray.get(positionIndex) & 0xFF);
 					}
 					//If requested pixel is outside the frame
 					else {
@@ -403,11 +357,11 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 						{
 							mirrorY = (kenDim -1) - y; 
 							mirrorPositionIndex = ((row + mirrorY - (kenDim / 2)) * columns) + col;
-							acc += vectorY[y] * inputArray.get(mirrorPositionIndex);
+							acc += vectorY[y] * (inputArray.get(mirrorPositionIndex) & 0xFF);
 						}
 						else
 						{
-							acc += vectorY[y] * down.get(positionIndex - rows * columns);
+							acc += vectorY[y] * (down.get(positionIndex - rows * columns) & 0xFF);
 						}						
 					}					
 				}
@@ -427,87 +381,102 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 					acc = 0;
 				}
 				//Insert to return buffer
-				ret.put((row * columns) + col,acc);
+				ret.put((row * columns) + col,(byte)acc);
 			}			
 		}
-		
-		return ret;
 	}
 
-	public static IntBuffer twoDconvolutionFastHor(IntBuffer inputArray, int columns, int rows, int[][] kernel, long denom, IntBuffer up, IntBuffer down)
+	public static ByteBuffer twoDconvolutionFastHor(ByteBuffer inputArray, int columns, int rows, int[][] kernel, long denom, ByteBuffer up, ByteBuffer down)
 	{
-		int retSize = inputArray.capacity();
-		IntBuffer ret = MPI.newIntBuffer(retSize);
 		int kenDim = kernel.length;
-		int[] vectorX = new int[kenDim];
-		int[] vectorY = new int[kenDim];
-		int acc = 0;		
-		int positionIndex = 0;
-		int mirrorX = 0; 
-		int mirrorPositionIndex = 0;
-		IntBuffer retUp = null;
-		IntBuffer retDown = null;
+		
+		//Check the symmetry and kernel size
+		if(!isOddAndSym(kernel))
+		{
+			System.out.println("Invalid kernel");
+			return newBuffer(inputArray.capacity());
+		}
+		
+		ByteBuffer ret = twoDconvolutionHorPass(inputArray, columns, rows, kernel, denom);
+		//Recv buffers are convolved horizontally as well, vertical pass needs them for the top and bottom rows.
+		ByteBuffer retUp = null;
+		ByteBuffer retDown = null;
 		if(up != null)
 		{
-			retUp = MPI.newIntBuffer(up.capacity());
-			
-	    	
+			retUp = twoDconvolutionHorPass(up, columns, kenDim/2, kernel, denom);
 		}
 		if(down != null)
 		{
-			retDown = MPI.newIntBuffer(down.capacity());
-			
-			/*for(int i = 0; i < kenDim/2; i++)
-    		{
-    			for(int j = 0; j < 20; j++)
-    			{
-    				System.out.print(down.get(i*columns+j) + ",");
-    			}
-    			System.out.println();
-    		}*/
+			retDown = twoDconvolutionHorPass(down, columns, kenDim/2, kernel, denom);
 		}
+		return twoDconvolutionFastVer(ret, columns, rows, kernel, denom, retUp, retDown);
+	}
+	
+	//Horizontal pass of the separable convolution over all rows of the input buffer. Edges are mirrored.
+	static ByteBuffer twoDconvolutionHorPass(ByteBuffer inputArray, int columns, int rows, int[][] kernel, long denom)
+	{
+		int retSize = inputArray.capacity();
+		ByteBuffer ret = newBuffer(retSize);
+		int kenDim = kernel.length;
+		int[] vectorX = new int[kenDim];
 		
-		//Check the symmetry and kernel size
-		if(!isOddAndSym(kernel))
-		{
-			System.out.println("Invalid kernel");
-			return ret;
-		}
 		for(int i = 0; i < kenDim; i++)
 		{
-			vectorX[i] = kernel[i][0];			
-			vectorY[i] = kernel[0][i];
+			vectorX[i] = kernel[i][0];
 		}
-		//The core of convolution calculation. We omit the edges as there are many conditions that slows the algorithm. 
-		for(int row = 0; row < rows; row++) {		
-			for(int col = kenDim/2; col < columns-(kenDim/2); col++)
-			{
-				//Initialize accumulator
-				acc = 0;		
-				//Cycle through kernel and use its values to fill the accumulator.
-				for(int x = 0; x < kenDim; x++) {			
-					positionIndex = (row  * columns) + (col + x - (kenDim / 2));					
-					acc += vectorX[x] * inputArray.get(positionIndex);
-				}
-				
-				//Use denominator
-				if(denom != 0)
-				{
-					acc /= denom;
-				}
-				//Normalize to 8bit pixels
-				if(acc > 255)
-				{
-					acc = 255;
-				}
-				if(acc < 0)
+		//The core of convolution calculation. We omit the edges as there are many conditions that slows the algorithm.
+		//Rows are split into bands convolved in parallel, each band writes only its own rows of the return buffer.
+		RowBandExecutor.forEachBand(0, rows, columns, (rowStart, rowEnd) -> {
+			for(int row = rowStart; row < rowEnd; row++) {
+				for(int col = kenDim/2; col < columns-(kenDim/2); col++)
 				{
-					acc = 0;
+					//Initialize accumulator
+					long bandAcc = 0;
+					//Cycle through kernel and use its values to fill the accumulator.
+					for(int x = 0; x < kenDim; x++) {
+						int bandPositionIndex = (row  * columns) + (col + x - (kenDim / 2));
+						bandAcc += vectorX[x] * (inputArray.get(bandPositionIndex) & 0xFF);
+					}
+
+					//Use denominator
+					if(denom != 0)
+					{
+						bandAcc /= denom;
+					}
+					//Normalize to 8bit pixels
+					if(bandAcc > 255)
+					{
+						bandAcc = 255;
+					}
+					if(bandAcc < 0)
+					{
+						bandAcc = 0;
+					}
+					//Insert to return buffer
+
+					ret.put((row * columns) + col,(byte)bandAcc);
 				}
-				//Insert to return buffer
-				
-				ret.put((row * columns) + col,acc);
 			}
+		});
+		
+		twoDconvolutionHorPassSides(inputArray, ret, columns, rows, kernel, denom);
+		
+		return ret;
+	}
+	
+	//Horizontal pass for the left and right edges of all rows of the input buffer into ret. Edges are mirrored.
+	static void twoDconvolutionHorPassSides(ByteBuffer inputArray, ByteBuffer ret, int columns, int rows, int[][] kernel, long denom)
+	{
+		int kenDim = kernel.length;
+		int[] vectorX = new int[kenDim];
+		long acc = 0;		
+		int positionIndex = 0;
+		int mirrorX = 0; 
+		int mirrorPositionIndex = 0;
+		
+		for(int i = 0; i < kenDim; i++)
+		{
+			vectorX[i] = kernel[i][0];
 		}
 		
 		//Left edge handling
@@ -522,21 +491,21 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 						//If posIndex is NOT on the other side of the image.	
 						if(positionIndex >= (row * columns))
 						{
-							acc += vectorX[x] * inputArray.get(positionIndex);
+							acc += vectorX[x] * (inputArray.get(positionIndex) & 0xFF);
 						}
 						//If posIndex IS on the other side of the image, mirror it. 
 						else
 						{
 							mirrorX = (kenDim -1) - x; 
 							mirrorPositionIndex = (row * columns) + (col + mirrorX - (kenDim / 2));
-							acc += vectorX[x] * inputArray.get(mirrorPositionIndex);
+							acc += vectorX[x] * (inputArray.get(mirrorPositionIndex) & 0xFF);
 						}
 					}
 					else //if outside the image, mirror it
 					{
 						mirrorX = (kenDim -1) - x; 
 						mirrorPositionIndex = (row  * columns) + (col + mirrorX - (kenDim / 2));
-						acc += vectorX[x] * inputArray.get(mirrorPositionIndex);
+						acc += vectorX[x] * (inputArray.get(mirrorPositionIndex) & 0xFF);
 					}
 				}
 				
@@ -556,7 +525,7 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 					acc = 0;
 				}
 				//Insert to return buffer
-				ret.put((row * columns) + col,acc);
+				ret.put((row * columns) + col,(byte)acc);
 			}			
 		}
 				
@@ -573,21 +542,21 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 							//If posIndex is NOT on the other side of the image
 							if(positionIndex < (row * columns) + columns)
 							{
-								acc += vectorX[x] * inputArray.get(positionIndex);
+								acc += vectorX[x] * (inputArray.get(positionIndex) & 0xFF);
 							}
 							//if posIndex is on the left side of core pixel, wrap the value from other side of the image
 							else
 							{
 								mirrorX = (kenDim -1) - x; 
 								mirrorPositionIndex = (row * columns) + (col + mirrorX - (kenDim / 2));
-								acc += vectorX[x] * inputArray.get(mirrorPositionIndex);
+								acc += vectorX[x] * (inputArray.get(mirrorPositionIndex) & 0xFF);
 							}
 						}
 						else //if outside the image, wrap the value
 						{
 							mirrorX = (kenDim -1) - x; 
 							mirrorPositionIndex = (row * columns) + (col + mirrorX - (kenDim / 2));
-							acc += vectorX[x] * inputArray.get(mirrorPositionIndex);
+							acc += vectorX[x] * (inputArray.get(mirrorPositionIndex) & 0xFF);
 						}
 					}
 				//Use denominator
@@ -606,334 +575,202 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 					acc = 0;
 				}
 				//Insert to return buffer
-				ret.put((row * columns) + col,acc);
+				ret.put((row * columns) + col,(byte)acc);
 			}			
 		}
+	}
+	
+	
+	public static ByteBuffer twoDconvolution(ByteBuffer inputArray, int columns, int rows, int[][] kernel, long denom, ByteBuffer up, ByteBuffer down)
+	{
+		//Check the symmetry and kernel size
+		if(!isOddAndSym(kernel))
+		{
+			System.out.println("Invalid kernel");
+			return newBuffer(inputArray.capacity());
+		}	
 		
+		ByteBuffer ret = twoDconvolutionInterior(inputArray, columns, rows, kernel, denom);
+		twoDconvolutionBorder(inputArray, ret, columns, rows, kernel, denom, up, down);
+		return ret;
+	}
+	
+	//Convolves all pixels that do not depend on the recv buffers, that is the core and the left and right edges.
+	//Top and bottom rows of the returned buffer are filled later by twoDconvolutionBorder.
+	static ByteBuffer twoDconvolutionInterior(ByteBuffer inputArray, int columns, int rows, int[][] kernel, long denom)
+	{
+		int retSize = inputArray.capacity();
+		ByteBuffer ret = newBuffer(retSize);
+		int kenDim = kernel.length;	
 		
-		//The core of top buffer calculation. We omit the edges as there are many conditions that slows the algorithm. 
-		if(up != null) {
-			for(int row = 0; row < kenDim/2; row++) {			
-				for(int col = kenDim/2; col < columns-(kenDim/2); col++)
-				{
+		//The core of convolution calculation. We omit the edges as there are many conditions that slows the algorithm.
+		//Rows are split into bands convolved in parallel, each band writes only its own rows of the return buffer.
+		RowBandExecutor.forEachBand(kenDim/2, rows-(kenDim/2), columns * kenDim, (rowStart, rowEnd) -> {
+			for(int row = rowStart; row < rowEnd; row++) {
+				for(int col = kenDim/2; col < columns-(kenDim/2); col++){
 					//Initialize accumulator
-					acc = 0;		
+					long bandAcc = 0;
 					//Cycle through kernel and use its values to fill the accumulator.
-					for(int x = 0; x < kenDim; x++) {			
-						positionIndex = (row  * columns) + (col + x - (kenDim / 2));					
-						acc += vectorX[x] * up.get(positionIndex);
+					for(int y = 0; y < kenDim; y++) {
+						for(int x = 0; x < kenDim; x++) {
+							//Calculate the position of pixel in image at which the kernel position points.
+							int bandPositionIndex = ((row + y - (kenDim / 2)) * columns) + (col + x - (kenDim / 2));
+							//Add subsum to accumulator
+							bandAcc += kernel[x][y] * (inputArray.get(bandPositionIndex) & 0xFF);
+						}
 					}
-					
 					//Use denominator
-					if(denom != 0)
-					{
-						acc /= denom;
+					if(denom != 0){
+						bandAcc /= denom;
 					}
 					//Normalize to 8bit pixels
-					if(acc > 255)
-					{
-						acc = 255;
+					if(bandAcc > 255){
+						bandAcc = 255;
 					}
-					if(acc < 0)
-					{
-						acc = 0;
+					if(bandAcc < 0)	{
+						bandAcc = 0;
 					}
-					
 					//Insert to return buffer
-					retUp.put((row * columns) + col,acc);
+					ret.put((row * columns) + col,(byte)bandAcc);
 				}
 			}
+		});
+			
+		twoDconvolutionSides(inputArray, ret, columns, rows, kernel, denom);
 		
-			//Top buffer left edge handling
-			for(int row = 0; row < kenDim/2; row++){
-				for(int col = 0; col < kenDim/2; col++) {
-					acc = 0;
+		return ret;
+	}
+	
+	//Convolves the left and right edges of the rows that do not depend on the recv buffers into ret.
+	static void twoDconvolutionSides(ByteBuffer inputArray, ByteBuffer ret, int columns, int rows, int[][] kernel, long denom)
+	{
+		int kenDim = kernel.length;	
+		long acc = 0;	
+		int positionIndex = 0;
+		int mirrorX = 0; 
+		int mirrorY = 0;
+		int mirrorPositionIndex = 0;
+		
+		//Left edge handling
+		for(int row = kenDim/2; row < rows-kenDim/2; row++){
+			for(int col = 0; col < kenDim/2; col++) {
+				acc = 0;
+				for(int y = 0; y < kenDim; y++) {
 					for(int x = 0; x < kenDim; x++) {			
-						positionIndex = (row * columns) + (col + x - (kenDim / 2));
+						positionIndex = ((row + y - (kenDim / 2)) * columns) + (col + x - (kenDim / 2));
 						//If posIndex is inside the image
 						if(positionIndex >= 0)
 						{
 							//If posIndex is NOT on the other side of the image.	
-							if(positionIndex >= (row * columns))
+							if(positionIndex >= (row + (y - kenDim/2)) * columns)
 							{
-								acc += vectorX[x] * up.get(positionIndex);
+								acc += kernel[x][y] * (inputArray.get(positionIndex) & 0xFF);
 							}
 							//If posIndex IS on the other side of the image, mirror it. 
 							else
 							{
 								mirrorX = (kenDim -1) - x; 
-								mirrorPositionIndex = (row * columns) + (col + mirrorX - (kenDim / 2));
-								acc += vectorX[x] * up.get(mirrorPositionIndex);
+								mirrorY = (kenDim -1) - y; 
+								mirrorPositionIndex = ((row + mirrorY - (kenDim / 2)) * columns) + (col + mirrorX - (kenDim / 2));
+								acc += kernel[x][y] * (inputArray.get(mirrorPositionIndex) & 0xFF);
 							}
 						}
 						else //if outside the image, mirror it
 						{
 							mirrorX = (kenDim -1) - x; 
-							mirrorPositionIndex = (row  * columns) + (col + mirrorX - (kenDim / 2));
-							acc += vectorX[x] * up.get(mirrorPositionIndex);
+							mirrorY = (kenDim -1) - y; 
+							mirrorPositionIndex = ((row + mirrorY - (kenDim / 2)) * columns) + (col + mirrorX - (kenDim / 2));
+							acc += kernel[x][y] * (inputArray.get(mirrorPositionIndex) & 0xFF);
 						}
 					}
-					
-					//Use denominator
-					if(denom != 0)
-					{
-						acc /= denom;
-					}
-					
-					//Normalize to 8bit pixels
-					if(acc > 255)
-					{
-						acc = 255;
-					}
-					if(acc < 0)
-					{
-						acc = 0;
-					}
-					
-					//Insert to return buffer
-					retUp.put((row * columns) + col,acc);
-				}			
-			}
-	
-			//Top buffer right edge handling
-			for(int row = 0; row < kenDim/2; row++){
-				for(int col = columns - kenDim/2; col < columns; col++) {
+				}
+				//Use denominator
+				if(denom != 0)
+				{
+					acc /= denom;
+				}
+				
+				//Normalize to 8bit pixels
+				if(acc > 255)
+				{
+					acc = 255;
+				}
+				if(acc < 0)
+				{
 					acc = 0;
-					for(int x = 0; x < kenDim; x++) {			
-						positionIndex = (row * columns) + (col + x - (kenDim / 2));
-						//If posIndex is inside the image
-						if(positionIndex <= rows*columns-1)
-						{
-							//If posIndex is NOT on the other side of the image
-							if(positionIndex < (row * columns) + columns)
-							{
-								acc += vectorX[x] * up.get(positionIndex);
-							}
-							//if posIndex is on the left side of core pixel, wrap the value from other side of the image
-							else
-							{
-								mirrorX = (kenDim -1) - x; 
-								mirrorPositionIndex = (row * columns) + (col + mirrorX - (kenDim / 2));
-								acc += vectorX[x] * up.get(mirrorPositionIndex);
-							}
-						}
-						else //if outside the image, wrap the value
-						{
-							mirrorX = (kenDim -1) - x; 
-							mirrorPositionIndex = (row * columns) + (col + mirrorX - (kenDim / 2));
-							acc += vectorX[x] * up.get(mirrorPositionIndex);
-						}
-					}
-					//Use denominator
-					if(denom != 0)
-					{
-						acc /= denom;
-					}
-					
-					//Normalize to 8bit pixels
-					if(acc > 255)
-					{
-						acc = 255;
-					}
-					if(acc < 0)
-					{
-						acc = 0;
-					}
-					//Insert to return buffer
-					retUp.put((row * columns) + col,acc);
-				}			
-			}
+				}
+				//Insert to return buffer
+				ret.put((row * columns) + col,(byte)acc);
+			}			
 		}
 		
 		
-		//The core of down buffer calculation. We omit the edges as there are many conditions that slows the algorithm. 
-		if(down != null) {
-			for(int row = 0; row < kenDim/2; row++) {			
-				for(int col = kenDim/2; col < columns-(kenDim/2); col++)
-				{
-					//Initialize accumulator
-					acc = 0;		
-					//Cycle through kernel and use its values to fill the accumulator.
-					for(int x = 0; x < kenDim; x++) {			
-						positionIndex = (row  * columns) + (col + x - (kenDim / 2));					
-						acc += vectorX[x] * down.get(positionIndex);
-					}
-					
-					//Use denominator
-					if(denom != 0)
-					{
-						acc /= denom;
-					}
-					//Normalize to 8bit pixels
-					if(acc > 255)
-					{
-						acc = 255;
-					}
-					if(acc < 0)
-					{
-						acc = 0;
-					}
-					
-					//Insert to return buffer
-					retDown.put((row * columns) + col,acc);
-				}
-			}
-			//Down buffer left edge handling
-			for(int row = 0; row < kenDim/2; row++){
-				for(int col = 0; col < kenDim/2; col++) {
-					acc = 0;
-					for(int x = 0; x < kenDim; x++) {			
-						positionIndex = (row * columns) + (col + x - (kenDim / 2));
-						//If posIndex is inside the image
-						if(positionIndex >= 0)
-						{
-							//If posIndex is NOT on the other side of the image.	
-							if(positionIndex >= (row * columns))
-							{
-								acc += vectorX[x] * down.get(positionIndex);
-							}
-							//If posIndex IS on the other side of the image, mirror it. 
-							else
-							{
-								mirrorX = (kenDim -1) - x; 
-								mirrorPositionIndex = (row * columns) + (col + mirrorX - (kenDim / 2));
-								acc += vectorX[x] * down.get(mirrorPositionIndex);
-							}
-						}
-						else //if outside the image, mirror it
-						{
-							mirrorX = (kenDim -1) - x; 
-							mirrorPositionIndex = (row  * columns) + (col + mirrorX - (kenDim / 2));
-							acc += vectorX[x] * down.get(mirrorPositionIndex);
-						}
-					}
-					
-					//Use denominator
-					if(denom != 0)
-					{
-						acc /= denom;
-					}
-					
-					//Normalize to 8bit pixels
-					if(acc > 255)
-					{
-						acc = 255;
-					}
-					if(acc < 0)
-					{
-						acc = 0;
-					}
-					
-					//Insert to return buffer
-					retDown.put((row * columns) + col,acc);
-				}			
-			}
-	
-			//Down buffer right edge handling
-			for(int row = 0; row < kenDim/2; row++){
-				for(int col = columns - kenDim/2; col < columns; col++) {
-					acc = 0;
+		//Right edge handling
+		for(int row = kenDim/2; row < rows-kenDim/2; row++){
+			for(int col = columns - kenDim/2; col < columns; col++) {
+				acc = 0;
+				for(int y = 0; y < kenDim; y++) {
 					for(int x = 0; x < kenDim; x++) {			
-						positionIndex = (row * columns) + (col + x - (kenDim / 2));
+						positionIndex = ((row + y - (kenDim / 2)) * columns) + (col + x - (kenDim / 2));
 						//If posIndex is inside the image
 						if(positionIndex <= rows*columns-1)
 						{
 							//If posIndex is NOT on the other side of the image
-							if(positionIndex < (row * columns) + columns)
+							if(positionIndex < ((row + (y-kenDim/2)) * columns) + columns)
 							{
-								acc += vectorX[x] * down.get(positionIndex);
+								acc += kernel[x][y] * (inputArray.get(positionIndex) & 0xFF);
 							}
 							//if posIndex is on the left side of core pixel, wrap the value from other side of the image
 							else
 							{
 								mirrorX = (kenDim -1) - x; 
-								mirrorPositionIndex = (row * columns) + (col + mirrorX - (kenDim / 2));
-								acc += vectorX[x] * down.get(mirrorPositionIndex);
+								mirrorY = (kenDim -1) - y; 
+								mirrorPositionIndex = ((row + mirrorY - (kenDim / 2)) * columns) + (col + mirrorX - (kenDim / 2));
+								acc += kernel[x][y] * (inputArray.get(mirrorPositionIndex) & 0xFF);
 							}
 						}
 						else //if outside the image, wrap the value
 						{
 							mirrorX = (kenDim -1) - x; 
-							mirrorPositionIndex = (row * columns) + (col + mirrorX - (kenDim / 2));
-							acc += vectorX[x] * down.get(mirrorPositionIndex);
+							mirrorY = (kenDim -1) - y; 
+							mirrorPositionIndex = ((row + mirrorY - (kenDim / 2)) * columns) + (col + mirrorX - (kenDim / 2));
+							acc += kernel[x][y] * (inputArray.get(mirrorPositionIndex) & 0xFF);
 						}
 					}
-					
-					//Use denominator
-					if(denom != 0)
-					{
-						acc /= denom;
-					}
-					
-					//Normalize to 8bit pixels
-					if(acc > 255)
-					{
-						acc = 255;
-					}
-					if(acc < 0)
-					{
-						acc = 0;
-					}
-					//Insert to return buffer
-					retDown.put((row * columns) + col,acc);
-				}			
-			}
+				}
+				//Use denominator
+				if(denom != 0)
+				{
+					acc /= denom;
+				}
+				
+				//Normalize to 8bit pixels
+				if(acc > 255)
+				{
+					acc = 255;
+				}
+				if(acc < 0)
+				{
+					acc = 0;
+				}
+				//Insert to return buffer
+				ret.put((row * columns) + col,(byte)acc);
+			}			
 		}
-    			
-		ret = twoDconvolutionFastVer(ret, columns, rows, kernel, denom, retUp, retDown);
-		return ret;
 	}
 	
-	
-	public static IntBuffer twoDconvolution(IntBuffer inputArray, int columns, int rows, int[][] kernel, long denom, IntBuffer up, IntBuffer down)
+	//Convolves top and bottom rows including corners into ret. Uses recv buffers from neighbouring nodes,
+	//up and down are null on the image border.
+	static void twoDconvolutionBorder(ByteBuffer inputArray, ByteBuffer ret, int columns, int rows, int[][] kernel, long denom, ByteBuffer up, ByteBuffer down)
 	{
-		int retSize = inputArray.capacity();
-		IntBuffer ret = MPI.newIntBuffer(retSize);
 		int kenDim = kernel.length;	
-		int acc = 0;	
+		long acc = 0;	
 		int positionIndex = 0;
 		int mirrorX = 0; 
 		int mirrorY = 0;
 		int mirrorPositionIndex = 0;
 		int mirrorXPositionIndex = 0;
 		
-		//Check the symmetry and kernel size
-		if(!isOddAndSym(kernel))
-		{
-			System.out.println("Invalid kernel");
-			return ret;
-		}	
-		
-		//The core of convolution calculation. We omit the edges as there are many conditions that slows the algorithm. 
-		for(int row = kenDim/2; row < rows-(kenDim/2); row++) {			
-			for(int col = kenDim/2; col < columns-(kenDim/2); col++){
-				//Initialize accumulator
-				acc = 0;						
-				//Cycle through kernel and use its values to fill the accumulator.
-				for(int y = 0; y < kenDim; y++) {
-					for(int x = 0; x < kenDim; x++) {	
-						//Calculate the position of pixel in image at which the kernel position points.
-						positionIndex = ((row + y - (kenDim / 2)) * columns) + (col + x - (kenDim / 2));	
-						//Add subsum to accumulator
-						acc += kernel[x][y] * inputArray.get(positionIndex);
-					}
-				}
-				//Use denominator
-				if(denom != 0){
-					acc /= denom;
-				}
-				//Normalize to 8bit pixels
-				if(acc > 255){
-					acc = 255;
-				}
-				if(acc < 0)	{
-					acc = 0;
-				}
-				//Insert to return buffer				
-				ret.put((row * columns) + col,acc);
-			}
-		}
-			
 		//Handling edges with recv buffers
 		
 		//Top edge handling without corners
@@ -948,7 +785,7 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 						//If requested pixel is inside frame
 						if(positionIndex >= 0)
 						{
-							acc += kernel[x][y] * inputArray.get(positionIndex);								
+							acc += kernel[x][y] * (inputArray.get(positionIndex) & 0xFF);								
 						}
 						//If requested pixel is outside the frame
 						else {
@@ -958,12 +795,12 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 								mirrorX = (kenDim -1) - x; 
 								mirrorY = (kenDim -1) - y; 
 								mirrorPositionIndex = ((row + mirrorY - (kenDim / 2)) * columns) + (col + mirrorX - (kenDim / 2));
-								acc += kernel[x][y] * inputArray.get(mirrorPositionIndex);
+								acc += kernel[x][y] * (inputArray.get(mirrorPositionIndex) & 0xFF);
 							}
 							else
 							{		
-								acc += kernel[x][y] * up.get(positionIndex + (columns * (kenDim/2)));
-								//acc += kernel[x][y] * inputArray.get((row*columns) + col);
+								acc += kernel[x][y] * (up.get(positionIndex + (columns * (kenDim/2))) & 0xFF);
+								//acc += kernel[x][y] * (inputArray.get((row*columns) + col) & 0xFF);
 							}						
 						}
 					}
@@ -984,7 +821,7 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 					acc = 0;
 				}
 				//Insert to return buffer
-				ret.put((row * columns) + col,acc);
+				ret.put((row * columns) + col,(byte)acc);
 			}
 		}
 		
@@ -1000,7 +837,7 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 						//If requested pixel is inside frame
 						if(positionIndex <= rows*columns-1)
 						{
-							acc += kernel[x][y] * inputArray.get(positionIndex);
+							acc += kernel[x][y] * (inputArray.get(positionIndex) & 0xFF);
 						}
 						//If requested pixel is outside the frame
 						else {
@@ -1009,120 +846,13 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 							{
 								mirrorX = (kenDim -1) - x; 
 								mirrorY = (kenDim -1) - y; 
-								mirrorPositionIndex = ((row + mirrorY - (kenDim / 2)) * columns) + (col + mirrorX - (kenDim / 2));
-								acc += kernel[x][y] * inputArray.get(mirrorPositionIndex);
-							}
-							else
-							{
-								acc += kernel[x][y] * down.get(positionIndex - rows * columns);
-							}						
-						}
-					}
-				}
-				//Use denominator
-				if(denom != 0)
-				{
-					acc /= denom;
-				}
-				
-				//Normalize to 8bit pixels
-				if(acc > 255)
-				{
-					acc = 255;
-				}
-				if(acc < 0)
-				{
-					acc = 0;
-				}
-				//Insert to return buffer
-				ret.put((row * columns) + col,acc);
-			}			
-		}
-		
-		//Left edge handling
-		for(int row = kenDim/2; row < rows-kenDim/2; row++){
-			for(int col = 0; col < kenDim/2; col++) {
-				acc = 0;
-				for(int y = 0; y < kenDim; y++) {
-					for(int x = 0; x < kenDim; x++) {			
-						positionIndex = ((row + y - (kenDim / 2)) * columns) + (col + x - (kenDim / 2));
-						//If posIndex is inside the image
-						if(positionIndex >= 0)
-						{
-							//If posIndex is NOT on the other side of the image.	
-							if(positionIndex >= (row + (y - kenDim/2)) * columns)
-							{
-								acc += kernel[x][y] * inputArray.get(positionIndex);
-							}
-							//If posIndex IS on the other side of the image, mirror it. 
-							else
-							{
-								mirrorX = (kenDim -1) - x; 
-								mirrorY = (kenDim -1) - y; 
-								mirrorPositionIndex = ((row + mirrorY - (kenDim / 2)) * columns) + (col + mirrorX - (kenDim / 2));
-								acc += kernel[x][y] * inputArray.get(mirrorPositionIndex);
-							}
-						}
-						else //if outside the image, mirror it
-						{
-							mirrorX = (kenDim -1) - x; 
-							mirrorY = (kenDim -1) - y; 
-							mirrorPositionIndex = ((row + mirrorY - (kenDim / 2)) * columns) + (col + mirrorX - (kenDim / 2));
-							acc += kernel[x][y] * inputArray.get(mirrorPositionIndex);
-						}
-					}
-				}
-				//Use denominator
-				if(denom != 0)
-				{
-					acc /= denom;
-				}
-				
-				//Normalize to 8bit pixels
-				if(acc > 255)
-				{
-					acc = 255;
-				}
-				if(acc < 0)
-				{
-					acc = 0;
-				}
-				//Insert to return buffer
-				ret.put((row * columns) + col,acc);
-			}			
-		}
-		
-		
-		//Right edge handling
-		for(int row = kenDim/2; row < rows-kenDim/2; row++){
-			for(int col = columns - kenDim/2; col < columns; col++) {
-				acc = 0;
-				for(int y = 0; y < kenDim; y++) {
-					for(int x = 0; x < kenDim; x++) {			
-						positionIndex = ((row + y - (kenDim / 2)) * columns) + (col + x - (kenDim / 2));
-						//If posIndex is inside the image
-						if(positionIndex <= rows*columns-1)
-						{
-							//If posIndex is NOT on the other side of the image
-							if(positionIndex < ((row + (y-kenDim/2)) * columns) + columns)
-							{
-								acc += kernel[x][y] * inputArray.get(positionIndex);
-							}
-							//if posIndex is on the left side of core pixel, wrap the value from other side of the image
-							else
-							{
-								mirrorX = (kenDim -1) - x; 
-								mirrorY = (kenDim -1) - y; 
-								mirrorPositionIndex = ((row + mirrorY - (kenDim / 2)) * columns) + (col + mirrorX - (kenDim / 2));
-								acc += kernel[x][y] * inputArray.get(mirrorPositionIndex);
-							}
-						}
-						else //if outside the image, wrap the value
-						{
-							mirrorX = (kenDim -1) - x; 
-							mirrorY = (kenDim -1) - y; 
-							mirrorPositionIndex = ((row + mirrorY - (kenDim / 2)) * columns) + (col + mirrorX - (kenDim / 2));
-							acc += kernel[x][y] * inputArray.get(mirrorPositionIndex);
+								mirrorPositionIndex = ((row + mirrorY - (kenDim / 2)) * columns) + (col + mirrorX - (kenDim / 2));
+								acc += kernel[x][y] * (inputArray.get(mirrorPositionIndex) & 0xFF);
+							}
+							else
+							{
+								acc += kernel[x][y] * (down.get(positionIndex - rows * columns) & 0xFF);
+							}						
 						}
 					}
 				}
@@ -1142,7 +872,7 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 					acc = 0;
 				}
 				//Insert to return buffer
-				ret.put((row * columns) + col,acc);
+				ret.put((row * columns) + col,(byte)acc);
 			}			
 		}
 		
@@ -1161,12 +891,12 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 							//If posIndex is NOT on the other side of the image.
 							if(positionIndex >= (row + (y - kenDim/2)) * columns)
 							{
-								acc += kernel[x][y] * inputArray.get(positionIndex);
+								acc += kernel[x][y] * (inputArray.get(positionIndex) & 0xFF);
 							}
 							//If posIndex IS on the other side of the image, mirror it. 
 							else
 							{
-								//acc += kernel[x][y] * inputArray.get(row*columns + col);
+								//acc += kernel[x][y] * (inputArray.get(row*columns + col) & 0xFF);
 								 mirrorX = (kenDim -1) - x; 
 								 mirrorY = (kenDim -1) - y; 
 								 mirrorPositionIndex = ((row + mirrorY - (kenDim / 2)) * columns) + (col + mirrorX - (kenDim / 2));
@@ -1178,16 +908,16 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 									{		
 										 mirrorXPositionIndex = ((row + y - (kenDim / 2)) * columns) + (col + mirrorX - (kenDim / 2));
 										
-										acc += kernel[x][y] * inputArray.get(mirrorXPositionIndex);
+										acc += kernel[x][y] * (inputArray.get(mirrorXPositionIndex) & 0xFF);
 									}
 									else
 									{								
-										acc += kernel[x][y] * up.get(mirrorPositionIndex + columns * ((kenDim/2)));
+										acc += kernel[x][y] * (up.get(mirrorPositionIndex + columns * ((kenDim/2))) & 0xFF);
 									}						
 								}
 								else
 								{
-									acc += kernel[x][y] * inputArray.get(mirrorPositionIndex);
+									acc += kernel[x][y] * (inputArray.get(mirrorPositionIndex) & 0xFF);
 								}
 							}
 						}
@@ -1199,11 +929,11 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 								//Check for empty receive buffer. If empty, use default(center pixel) value
 								if(up == null)
 								{
-									acc += kernel[x][y] * inputArray.get((row*columns) + col);
+									acc += kernel[x][y] * (inputArray.get((row*columns) + col) & 0xFF);
 								}
 								else
 								{								
-									acc += kernel[x][y] * up.get(positionIndex + (columns * (kenDim/2)));
+									acc += kernel[x][y] * (up.get(positionIndex + (columns * (kenDim/2))) & 0xFF);
 								}						
 							}
 							//If posIndex IS on the other side of the image, mirror it. 
@@ -1212,7 +942,7 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 								 mirrorX = (kenDim -1) - x; 
 								 mirrorY = (kenDim -1) - y; 
 								 mirrorPositionIndex = ((row + mirrorY - (kenDim / 2)) * columns) + (col + mirrorX - (kenDim / 2));
-								acc += kernel[x][y] * inputArray.get(mirrorPositionIndex);
+								acc += kernel[x][y] * (inputArray.get(mirrorPositionIndex) & 0xFF);
 							}
 						}
 					}
@@ -1233,7 +963,7 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 					acc = 0;
 				}
 				//Insert to return buffer
-				ret.put((row * columns) + col,acc);
+				ret.put((row * columns) + col,(byte)acc);
 			}			
 		}
 		
@@ -1250,7 +980,7 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 							//If posIndex is NOT on the left side of the image
 							if(positionIndex < ((row + (y-kenDim/2)) * columns) + columns)
 							{
-								acc += kernel[x][y] * inputArray.get(positionIndex);
+								acc += kernel[x][y] * (inputArray.get(positionIndex) & 0xFF);
 							}
 							//if posIndex is on the left side of core pixel, wrap the value from other side of the image
 							else
@@ -1265,16 +995,16 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 									if(up == null)
 									{										
 										 mirrorXPositionIndex = ((row + y - (kenDim / 2)) * columns) + (col + mirrorX - (kenDim / 2));										
-										acc += kernel[x][y] * inputArray.get(mirrorXPositionIndex);
+										acc += kernel[x][y] * (inputArray.get(mirrorXPositionIndex) & 0xFF);
 									}
 									else
 									{								
-										acc += kernel[x][y] * up.get(mirrorPositionIndex + columns * ((kenDim/2)));
+										acc += kernel[x][y] * (up.get(mirrorPositionIndex + columns * ((kenDim/2))) & 0xFF);
 									}						
 								}
 								else
 								{
-									acc += kernel[x][y] * inputArray.get(mirrorPositionIndex);
+									acc += kernel[x][y] * (inputArray.get(mirrorPositionIndex) & 0xFF);
 								}
 							}
 						}
@@ -1286,11 +1016,11 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 								//Check for empty receive buffer. If empty, use default(center pixel) value
 								if(up == null)
 								{
-									acc += kernel[x][y] * inputArray.get((row*columns) + col);
+									acc += kernel[x][y] * (inputArray.get((row*columns) + col) & 0xFF);
 								}
 								else
 								{								
-									acc += kernel[x][y] * up.get(positionIndex + (columns * (kenDim/2)));
+									acc += kernel[x][y] * (up.get(positionIndex + (columns * (kenDim/2))) & 0xFF);
 								}
 							}
 							else
@@ -1298,7 +1028,7 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 								 mirrorX = (kenDim -1) - x; 
 								 mirrorY = (kenDim -1) - y; 
 								 mirrorPositionIndex = ((row + mirrorY - (kenDim / 2)) * columns) + (col + mirrorX - (kenDim / 2));
-								acc += kernel[x][y] * inputArray.get(mirrorPositionIndex);
+								acc += kernel[x][y] * (inputArray.get(mirrorPositionIndex) & 0xFF);
 							}
 						}
 					}
@@ -1319,7 +1049,7 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 					acc = 0;
 				}
 				//Insert to return buffer
-				ret.put((row * columns) + col,acc);
+				ret.put((row * columns) + col,(byte)acc);
 			}			
 		}
 		
@@ -1336,12 +1066,12 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 							//If posIndex is NOT on the other side of the image.
 							if(positionIndex >= (row + (y - kenDim/2)) * columns)
 							{
-								acc += kernel[x][y] * inputArray.get(positionIndex);
+								acc += kernel[x][y] * (inputArray.get(positionIndex) & 0xFF);
 							}
 							//If posIndex IS on the other side of the image, mirror it. 
 							else
 							{
-								//acc += kernel[x][y] * inputArray.get(row*columns + col);
+								//acc += kernel[x][y] * (inputArray.get(row*columns + col) & 0xFF);
 								 mirrorX = (kenDim -1) - x; 
 								 mirrorY = (kenDim -1) - y; 
 								 mirrorPositionIndex = ((row + mirrorY - (kenDim / 2)) * columns) + (col + mirrorX - (kenDim / 2));
@@ -1352,16 +1082,16 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 									if(down == null)
 									{										
 										 mirrorXPositionIndex = ((row + y - (kenDim / 2)) * columns) + (col + mirrorX - (kenDim / 2));										
-										acc += kernel[x][y] * inputArray.get(mirrorXPositionIndex);
+										acc += kernel[x][y] * (inputArray.get(mirrorXPositionIndex) & 0xFF);
 									}
 									else
 									{								
-										acc += kernel[x][y] * down.get(mirrorPositionIndex - rows * columns);
+										acc += kernel[x][y] * (down.get(mirrorPositionIndex - rows * columns) & 0xFF);
 									}						
 								}
 								else
 								{
-									acc += kernel[x][y] * inputArray.get(mirrorPositionIndex);
+									acc += kernel[x][y] * (inputArray.get(mirrorPositionIndex) & 0xFF);
 								}
 							}
 						}
@@ -1373,11 +1103,11 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 								//Check for empty receive buffer. If empty, use default(center pixel) value
 								if(down == null)
 								{
-									acc += kernel[x][y] * inputArray.get((row*columns) + col);
+									acc += kernel[x][y] * (inputArray.get((row*columns) + col) & 0xFF);
 								}
 								else
 								{								
-									acc += kernel[x][y] * down.get(positionIndex - rows * columns);
+									acc += kernel[x][y] * (down.get(positionIndex - rows * columns) & 0xFF);
 								}
 							}
 							else
@@ -1385,7 +1115,7 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 								 mirrorX = (kenDim -1) - x; 
 								 mirrorY = (kenDim -1) - y; 
 								 mirrorPositionIndex = ((row + mirrorY - (kenDim / 2)) * columns) + (col + mirrorX - (kenDim / 2));
-								acc += kernel[x][y] * inputArray.get(mirrorPositionIndex);
+								acc += kernel[x][y] * (inputArray.get(mirrorPositionIndex) & 0xFF);
 							}
 						}
 					}
@@ -1406,7 +1136,7 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 					acc = 0;
 				}
 				//Insert to return buffer
-				ret.put((row * columns) + col,acc);
+				ret.put((row * columns) + col,(byte)acc);
 			}			
 		}		
 		
@@ -1423,12 +1153,12 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 							//If posIndex is NOT on the other side of the image use the value from posIndex. 
 							if(positionIndex < ((row + (y-kenDim/2)) * columns) + columns)
 							{
-								acc += kernel[x][y] * inputArray.get(positionIndex);
+								acc += kernel[x][y] * (inputArray.get(positionIndex) & 0xFF);
 							}
 							//If posIndex IS on the other side of the image, mirror it. 
 							else
 							{
-								//acc += kernel[x][y] * inputArray.get(row*columns + col);
+								//acc += kernel[x][y] * (inputArray.get(row*columns + col) & 0xFF);
 								 mirrorX = (kenDim -1) - x; 
 								 mirrorY = (kenDim -1) - y; 
 								 mirrorPositionIndex = ((row + mirrorY - (kenDim / 2)) * columns) + (col + mirrorX - (kenDim / 2));
@@ -1439,16 +1169,16 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 									if(down == null)
 									{										
 										 mirrorXPositionIndex = ((row + y - (kenDim / 2)) * columns) + (col + mirrorX - (kenDim / 2));										
-										acc += kernel[x][y] * inputArray.get(mirrorXPositionIndex);
+										acc += kernel[x][y] * (inputArray.get(mirrorXPositionIndex) & 0xFF);
 									}
 									else
 									{								
-										acc += kernel[x][y] * down.get(mirrorPositionIndex - rows * columns);
+										acc += kernel[x][y] * (down.get(mirrorPositionIndex - rows * columns) & 0xFF);
 									}						
 								}
 								else
 								{
-									acc += kernel[x][y] * inputArray.get(mirrorPositionIndex);
+									acc += kernel[x][y] * (inputArray.get(mirrorPositionIndex) & 0xFF);
 								}
 							}
 						}
@@ -1460,11 +1190,11 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 								//Check for empty receive buffer. If empty, use default(center pixel) value
 								if(down == null)
 								{
-									acc += kernel[x][y] * inputArray.get((row*columns) + col);
+									acc += kernel[x][y] * (inputArray.get((row*columns) + col) & 0xFF);
 								}
 								else
 								{								
-									acc += kernel[x][y] * down.get(positionIndex - rows * columns);
+									acc += kernel[x][y] * (down.get(positionIndex - rows * columns) & 0xFF);
 								}
 							}
 							else
@@ -1472,7 +1202,7 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 								 mirrorX = (kenDim -1) - x; 
 								 mirrorY = (kenDim -1) - y; 
 								 mirrorPositionIndex = ((row + mirrorY - (kenDim / 2)) * columns) + (col + mirrorX - (kenDim / 2));
-								acc += kernel[x][y] * inputArray.get(mirrorPositionIndex);
+								acc += kernel[x][y] * (inputArray.get(mirrorPositionIndex) & 0xFF);
 							}
 						}
 					}
@@ -1493,15 +1223,31 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 					acc = 0;
 				}
 				//Insert to return buffer
-				ret.put((row * columns) + col,acc);
+				ret.put((row * columns) + col,(byte)acc);
 			}			
-		}		
-		return ret;
+		}
+	}
+	
+	//New direct buffer in native byte order, the same as MPI.newByteBuffer, so it can be passed to MPI calls.
+	//Loading the MPI class needs the native MPI library, the convolution itself therefore allocates without it.
+	public static ByteBuffer newBuffer(int size)
+	{
+		return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+	}
+	
+	//Returns view of length elements of the buffer starting at offset. View of a direct buffer is direct as well,
+	//so it can be used for non-blocking MPI calls without copying.
+	public static ByteBuffer slice(ByteBuffer buffer, int offset, int length)
+	{
+		ByteBuffer view = buffer.duplicate();
+		view.limit(offset + length);
+		view.position(offset);
+		return view.slice();
 	}
 	
 	//Functions takes four parameters. Whole image, original image dimensions and number of nodes.
 	//Function returns padded image that can be divided evenly between all nodes.
-	public static IntBuffer padImage(IntBuffer inputArray, int columns, int rows, int world_size){
+	public static ByteBuffer padImage(ByteBuffer inputArray, int columns, int rows, int world_size){
 		int finRows = rows, finCols = columns;		
 		
 		if(rows % world_size != 0)
@@ -1514,7 +1260,7 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 			finCols = columns + (world_size - (columns % world_size));
 		}		
 		
-		IntBuffer out = MPI.newIntBuffer(finRows * finCols);
+		ByteBuffer out = newBuffer(finRows * finCols);
 		
 		for(int row = 0; row < finRows; row++)
 		{
@@ -1544,9 +1290,9 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 	
 	//Function takes three input parameters. Whole image and the dimensions. 
 	//Function returns cropped image with the desired dimensions.
-	public static IntBuffer cropImage(IntBuffer inputArray, int columns, int rows, int padding)
+	public static ByteBuffer cropImage(ByteBuffer inputArray, int columns, int rows, int padding)
 	{
-		IntBuffer ret = MPI.newIntBuffer(rows*columns);
+		ByteBuffer ret = newBuffer(rows*columns);
 		int offset = 0;
 		for (int i = 0; i < rows; i++)
 		{
@@ -1749,6 +1495,21 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
     } 
 	
 	public static void convolve(String filePath, int dimX, int dimY, int dimZ, int selectedKernel) throws MPIException, IOException, InterruptedException {
+		convolve(filePath, dimX, dimY, dimZ, selectedKernel, PixelType.UINT8);
+	}
+	
+	//Convolves a raw file of the given pixel type. Pixels wider than a byte are stored in the byte order of PixelType.
+	public static void convolve(String filePath, int dimX, int dimY, int dimZ, int selectedKernel, PixelType type) throws MPIException, IOException, InterruptedException {
+		convolve(filePath, dimX, dimY, dimZ, selectedKernel, type, false);
+	}
+	
+	//With volume set the stack is convolved as one 3D volume, see VolumeConvolution, otherwise frame by frame.
+	public static void convolve(String filePath, int dimX, int dimY, int dimZ, int selectedKernel, PixelType type, boolean volume) throws MPIException, IOException, InterruptedException {
+		convolve(filePath, dimX, dimY, dimZ, selectedKernel, type, volume, new File("result.raw"));
+	}
+	
+	//Same as above, the result is saved into resultFile instead of result.raw.
+	public static void convolve(String filePath, int dimX, int dimY, int dimZ, int selectedKernel, PixelType type, boolean volume, File resultFile) throws MPIException, IOException, InterruptedException {
 				
 		String[] args = new String[5];
 		args[0] = filePath;
@@ -1758,6 +1519,7 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 		args[4] = Integer.toString(selectedKernel);
 		String[] res = new String[500];
 		
+		 //MPI stays initialized after the run, also when it fails, so the process can convolve again.
 		 if(!MPI.isInitialized())
 		 {
 			 MPI.Init(args);	
@@ -1771,11 +1533,9 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 		int columns = 0;
 		int rows = 0;
 		File inputFile;		
-		boolean isStack = false;
 		if(args.length != 5)
 		{
 			System.out.println("Expected 5 parameters, got " + args.length + "!");
-			MPI.Finalize();
 			return;
 		}
 		else
@@ -1784,7 +1544,6 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 			if(!inputFile.exists())
 			{
 				System.out.println("File in: " + args[0] + " does not exists!");
-				MPI.Finalize();
 				return;
 			}
 			
@@ -1800,395 +1559,678 @@ public class ImageConvolution<T extends RealType<T>> implements Command, Preview
 		    {
 		      System.out.println("NumberFormatException: " + nfe.getMessage());
 		      System.out.println("Invalid dimensions. Format for input: path, dimX, dimY, slices, kernel.");
-		      MPI.Finalize();
 		      return;
 		    }
 			
 			if(columns < 0 || rows < 0 || numOfFrames <= 0)
 			{
 				System.out.println("Invalid dimensions. Format for input: path, dimX, dimY, kernel");
-				MPI.Finalize();
 				return;
 			}
-			if(columns * rows * numOfFrames != inputFile.length())
+			if((long)columns * rows * numOfFrames * type.getBytes() != inputFile.length())
 			{
 				System.out.println("File size does not match the input dimensions!");
-				MPI.Finalize();
 				return;
 			}			
-			
-			if(numOfFrames > 1)
+		}	
+		
+		//Stacks with at least one frame per node are convolved frame by frame, each node reads its own frames.
+		//Otherwise only node 0 reads the frames and splits them between nodes.
+		boolean framesPerNode = numOfFrames >= world_size;
+		
+		//The input file is opened and mapped only once, frames are then taken as views of the mapping.
+		//Slabs of a volume are read by every node.
+		RawImageReader reader = null;
+		if(world_rank == 0 || framesPerNode || volume)
+		{
+			reader = new RawImageReader(inputFile, columns, rows, numOfFrames, type);
+		}
+		try
+		{
+			if(volume)
 			{
-				isStack = true;
+				VolumeConvolution.convolve(reader, true, columns, rows, numOfFrames, kernelNumber, type, resultFile, startTime);
+			}
+			else
+			{
+				convolveSource(reader, framesPerNode, columns, rows, numOfFrames, kernelNumber, type, resultFile, startTime);
 			}
-		}	
-				
-		//MPI.COMM_WORLD.barrier();
-		//This section is for initializing the image size and kernels. 
-		//It will be omitted later on as these variables will be input parameters.
-		int padCol = columns;
-		int padRow = rows;
-		boolean hasDenom = false;
-		int[][] kernel;	
-		boolean isSeparable = false;
-		
-		//Gaus 3x3
-		int[][] gaus3 = {{1,2,1}, {2,4,2}, {1,2,1}};
-		//Gaus 5x5
-		int[][] gaus5 = {{1,4,6,4,1}, {4,16,24,16,4}, {6,24,36,24,6}, {4,16,24,16,4}, {1,4,6,4,1}};
-		//Identity
-		int[][] identity = {{0,0,0}, {0,1,0}, {0,0,0}};
-		//Edge detection 1
-		int[][] edge1 = {{1,0,-1}, {0,0,0}, {-1,0,1}};
-		//Edge detection 2
-		int[][] edge2 = {{0,1,0}, {1,-4,1}, {0,1,0}};
-		//Edge detection 3
-		int[][] edge3 = {{-1,-1,-1}, {-1,8,-1}, {-1,-1,-1}};
-		//Sharpen
-		int[][] sharpen = {{0,-1,0}, {-1,5,-1}, {0,-1,0}};
-		//Unsharp masking
-		int[][] unsharp = {{1,4,6,4,1}, {4,16,24,16,4}, {6,24,-476,24,6}, {4,16,24,16,4}, {1,4,6,4,1}};
-		
-		//3x3 Box blur
-		int[][] boxBlur3 = {{1,1,1}, {1,1,1}, {1,1,1}}; 
-		
-		//5x5 Box blur
-		int[][] boxBlur5 = {{1,1,1,1,1}, {1,1,1,1,1}, {1,1,1,1,1}, {1,1,1,1,1}, {1,1,1,1,1}}; 
-		
-		//7x7 box blur
-		int[][] boxBlur7 = {{1,1,1,1,1,1,1}, {1,1,1,1,1,1,1}, {1,1,1,1,1,1,1}, {1,1,1,1,1,1,1}, {1,1,1,1,1,1,1},{1,1,1,1,1,1,1},{1,1,1,1,1,1,1}}; 
-		
-		//9x9 box blur
-		int[][] boxBlur9 = {{1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1}}; 
-		
-		//11x11 box blur
-		int[][] boxBlur11 = {{1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1}};
-		
-		//13x13 box blur
-		int[][] boxBlur13 = {{1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1}}; 
-		
-		//15x15 box blur
-		int[][] boxBlur15 = {{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1}}; 
-		
-		//17x17 box blur
-		int[][] boxBlur17 = {{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1}}; 
-		
-		//19x19 box blur
-		int[][] boxBlur19 = {{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1}}; 
-		
-		//21x21 box blur
-		int[][] boxBlur21 = {{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1},{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1}}; 
-		switch(kernelNumber) {
-		  case 1:
-			  kernel = boxBlur3;
-			  hasDenom = true;
-		    break;
-		  case 2:
-			  kernel = boxBlur5;
-			  hasDenom = true;
-		  break;
-		  case 3:
-			  kernel = edge1;
-			  hasDenom = false;
-		    break;
-		  case 4:
-			  kernel = edge2;
-			  hasDenom = false;
-		    break;
-		  case 5:
-			  kernel = edge3;
-			  hasDenom = false;
-		    break;
-		  case 6:
-			  kernel = sharpen;
-			  hasDenom = false;
-		    break;
-		  case 7:
-			  kernel = createKernel(3);
-			  hasDenom = true;
-		    break;
-		  case 8:
-			  kernel = createKernel(5);			  
-			  hasDenom = true;
-		    break;
-		  case 9:			  
-			  kernel = createKernel(7);			  			  
-			  hasDenom = true;
-		    break;
-		  case 10:
-			  kernel = createKernel(9);			  
-			  hasDenom = true;
-		    break;
-		  case 11:
-				  kernel = createKernel(11);			  
-			  hasDenom = true;
-		    break;
-		  case 12:
-				  kernel = createKernel(13);			  
-			  hasDenom = true;
-		    break;
-		  case 13:
-				  kernel = createKernel(15);			  
-			  hasDenom = true;
-		    break;
-		  case 14:
-				  kernel = createKernel(17);			  
-			  hasDenom = true;
-		    break;
-		  case 15:
-				  kernel = createKernel(19);			  
-			  hasDenom = true;
-		    break;
-		  case 16:
-				  kernel = createKernel(21);			  
-			  hasDenom = true;
-		    break;
-		  case 17:
-				  kernel = createKernel(51);			  
-			  hasDenom = true;
-		    break;
-		  case 18:
-				  kernel = createKernel(101);			  
-			  hasDenom = true;
-		    break;
-		  default:
-			  kernel = gaus3;
-			  hasDenom = true;
 		}
-		
-		long denom = 0;
-		//Get denominator for the matrix if it has one.
-		if(hasDenom)
+		finally
 		{
-			denom = getDenom(kernel);
+			if(reader != null)
+			{
+				reader.close();
+			}
 		}
+	}
+	
+	//In-memory variant of convolve for runs started from ImageJ. Pixels are taken directly from the array,
+	//so the image does not need to be written into a temporary file and read back.
+	//Pixels are stored frame after frame, row after row and are needed only on rank 0, other ranks may pass null.
+	public static void convolve(byte[] pixels, int dimX, int dimY, int dimZ, int selectedKernel) throws MPIException, IOException {
+		convolve(pixels, dimX, dimY, dimZ, selectedKernel, PixelType.UINT8);
+	}
+	
+	//Same as above for pixels of the given type, stored as bytes in the byte order of PixelType.
+	public static void convolve(byte[] pixels, int dimX, int dimY, int dimZ, int selectedKernel, PixelType type) throws MPIException, IOException {
+		convolve(pixels, dimX, dimY, dimZ, selectedKernel, type, false);
+	}
+	
+	//With volume set the stack is convolved as one 3D volume on node 0, which holds the pixels.
+	public static void convolve(byte[] pixels, int dimX, int dimY, int dimZ, int selectedKernel, PixelType type, boolean volume) throws MPIException, IOException {
 		
-		if(rankOfMatrix(kernel) == 1)
+		if(!MPI.isInitialized())
 		{
-			isSeparable = true;
+			MPI.Init(new String[0]);
 		}
 		
+		long startTime = System.nanoTime();
+		int world_rank = MPI.COMM_WORLD.getRank();
+		if(dimX <= 0 || dimY <= 0 || dimZ <= 0)
+		{
+			System.out.println("Invalid dimensions " + dimX + "x" + dimY + "x" + dimZ + "!");
+			return;
+		}
 		
-		//Calculate how many lines/columns will be omitted
-		int overlay = kernel.length / 2;
-	    
-	    //Calculate how many padding columns or rows needs to be added to original image
-	    //in order for the image to be divided evenly between nodes
-		if(rows % world_size != 0)
+		//Pixels are checked by node 0, which holds them, and the result is sent to all nodes so they return together.
+		int[] matches = {world_rank != 0 || (pixels != null && pixels.length == (long)dimX * dimY * dimZ * type.getBytes()) ? 1 : 0};
+		MPI.COMM_WORLD.bcast(matches, 1, MPI.INT, 0);
+		if(matches[0] == 0)
 		{
-			padRow = rows + (world_size - (rows % world_size));
+			if(world_rank == 0)
+			{
+				System.out.println("Pixel data does not match the input dimensions!");
+			}
+			return;
 		}
 		
-		if(columns % world_size != 0)
+		MemoryFrameSource source = null;
+		if(world_rank == 0)
 		{
-			padCol = columns + (world_size - (columns % world_size));
-		}	
-		//How many elements there will be for each process.
-		int elements_per_proc = (padCol * padRow)/world_size;  	
+			source = new MemoryFrameSource(ByteBuffer.wrap(pixels), dimX, dimY, dimZ, type);
+		}
+		//Pixels are held only by node 0, so frames can be convolved one by one only on a single node.
+		if(volume)
+		{
+			VolumeConvolution.convolve(source, MPI.COMM_WORLD.getSize() == 1, dimX, dimY, dimZ, selectedKernel, type, new File("result.raw"), startTime);
+		}
+		else
+		{
+			convolveSource(source, MPI.COMM_WORLD.getSize() == 1, dimX, dimY, dimZ, selectedKernel, type, new File("result.raw"), startTime);
+		}
+	}
+	
+	//Convolves all frames of the source and saves the result into resultFile. Source is read only on rank 0.
+	//With framesPerNode set, source must be available on every node and each node convolves whole frames of its own.
+	private static void convolveSource(FrameSource source, boolean framesPerNode, int columns, int rows, int numOfFrames, int kernelNumber,
+			PixelType type, File resultFile, long startTime) throws MPIException, IOException {
+		
+		int world_rank = MPI.COMM_WORLD.getRank(),
+        world_size = MPI.COMM_WORLD.getSize();
 		
-		if(overlay > (padRow/world_size)/2)
+		//Kernel and everything derived from it is built once per kernel number and shared by all jobs.
+		KernelDescriptor descriptor = KernelRegistry.get(kernelNumber);
+		
+		//Calculate how many lines/columns will be omitted
+		int overlay = descriptor.getSize() / 2;
+	    
+		//Frames are split either into horizontal strips or into a 2D grid of blocks, whichever needs
+		//a smaller halo. Wide frames and many nodes favour blocks, since the halo of a strip is always as wide as the frame.
+		//Whole frames are a single block.
+		BlockDecomposition blocks = BlockDecomposition.choose(columns, rows, framesPerNode ? 1 : world_size, overlay);
+		if(blocks == null)
 		{
 			if(world_rank == 0)
 			{
 				System.out.println("Kernel too big!");
 			}			
-			MPI.Finalize();
 			return;
 		}
 		
-		
-		//Initialize in and out buffers. 
-		IntBuffer ret = MPI.newIntBuffer(rows*columns);
-    	IntBuffer in = MPI.newIntBuffer(padCol*padRow);
-    	IntBuffer out = MPI.newIntBuffer(elements_per_proc);
-    	//Initialize recv/send buffers. These will be used for sending/receiving extra rows between processes.
-    	IntBuffer recvBufUp = MPI.newIntBuffer(padCol*overlay);
-    	IntBuffer recvBufDown = MPI.newIntBuffer(padCol*overlay);
-    	int[] toBeSaved = new int[rows*columns*numOfFrames];    	
+    	ConvolutionEngine engine = createEngine(descriptor, blocks.getColumns(0), blocks.getRows(0), type, world_rank == 0);
     	
-    	for(int frameNum = 0; frameNum < numOfFrames; frameNum++)
-    	{	    	
-		    if (world_rank == 0) {	
-		    	//Gets an image from .raw and pads it into desired size.
-	    		in = padImage(getArrFromRaw(inputFile,columns, rows, frameNum),columns,rows,world_size);
-		    }
-	
-		    //Wait for all nodes to reach this point.
-		    //MPI.COMM_WORLD.barrier();
-		  
-		    //Divide the input image evenly between all the nodes
-		    MPI.COMM_WORLD.scatter(in, elements_per_proc, MPI.INT, out,
-		            elements_per_proc, MPI.INT, 0);
-		    
-		    //Wait for all nodes to reach this point.
-		    //MPI.COMM_WORLD.barrier();	    
-		    
-		    //In this section we handle send/recv buffer sending between processes.
-		    //First node is treaded differently as it will not receive buffer from above itself.
-		    if(world_rank == 0)
-		    {
-		    	int lastRowIndex = ((elements_per_proc/padCol) - overlay) * padCol;
-		    	IntBuffer sendBuf = MPI.newIntBuffer(padCol*overlay);
-		    	sendBuf.clear();
-		    	int x = 0;
-		    	//Fill the send buffer with last overlaying values from node 0 part of the image. 
-		    	for(int i = lastRowIndex; i < lastRowIndex+(padCol*overlay); i++)
-		    	{
-		    		sendBuf.put(x,out.get(i));
-		    		x++;
-		    	}
-		    	
-		    	//Check whether we are NOT the only node in the program. 
-		    	//If we aren't we proceed with receiving and sending buffers.
-		    	if(world_size > 1)
-		    	{	    		
-		    		MPI.COMM_WORLD.recv(recvBufDown, padCol*overlay, MPI.INT, world_rank+1, 99);
-		    		MPI.COMM_WORLD.send(sendBuf, padCol*overlay, MPI.INT, world_rank+1, 99);	
-		    		//As this is node 0, it won't receive any buffer above itself. 
-		    		recvBufUp = null;
-		    	}
-		    	else
-		    	{
-		    		recvBufUp = null;
-		    		recvBufDown = null;
-		    	}
-		    }
-		    //Last node is also treated differently as it won't receive any buffers from below itself.
-		    else if(world_rank == world_size - 1)
-		    {
-		    	IntBuffer sendBuf = MPI.newIntBuffer(padCol*overlay);
-		    	//Fill the send buffer with first overlaying values from last node's part of the image. 
-		    	for(int i = 0; i < padCol*overlay; i++)
-		    	{
-		    		sendBuf.put(out.get(i));
-		    	}
-		    	
-		    	//Check whether we are NOT the only node in the program. 
-		    	//If we aren't we proceed with receiving and sending buffers.
-		    	if(world_size > 1)
-		    	{
-		    		//In order to avoid deadlock, odd nodes are first receiving and then sending the buffer. 
-		    		//Odd nodes are first sending the buffers and then receiving.
-		    		if(world_rank % 2 == 0){
-		    			MPI.COMM_WORLD.recv(recvBufUp, padCol*overlay, MPI.INT, world_rank-1, 99);
-			    		MPI.COMM_WORLD.send(sendBuf, padCol*overlay, MPI.INT, world_rank-1, 99);	  		
-			    	}else {
-			    		MPI.COMM_WORLD.send(sendBuf, padCol*overlay, MPI.INT, world_rank-1, 99);
-			    		MPI.COMM_WORLD.recv(recvBufUp, padCol*overlay, MPI.INT, world_rank-1, 99);
-			    	}
-		    		recvBufDown = null;
-		    	}
-		    	
-		    }
-		    //Here we handle nodes between first and last node. Each of these are sharing 2 buffers between others.
-		    else
-		    {
-		    	int lastRowIndex = ((elements_per_proc/padCol) - overlay) * padCol;
-		    	IntBuffer sendBufUp = MPI.newIntBuffer(padCol*overlay);
-		    	IntBuffer sendBufDown = MPI.newIntBuffer(padCol*overlay);
-		    	//First we fill the up send buffer, then the down send buffer. 
-		    	for(int i = 0; i < padCol*overlay; i++)
-		    	{
-		    		sendBufUp.put(out.get(i));
-		    	}
-		    	int x = 0;
-		    	for(int i = lastRowIndex; i < lastRowIndex+(padCol*overlay); i++)
-		    	{
-		    		sendBufDown.put(x,out.get(i));
-		    		x++;
-		    	}
-		    	//In order to avoid deadlock, odd nodes are first receiving and then sending the buffer. 
-	    		//Odd nodes are first sending the buffers and then receiving.
-		    	if(world_rank % 2 == 0)
-		    	{
-		    		MPI.COMM_WORLD.recv(recvBufUp, padCol*overlay, MPI.INT, world_rank-1, 99);
-			    	MPI.COMM_WORLD.recv(recvBufDown, padCol*overlay, MPI.INT, world_rank + 1, 99);
-			    	MPI.COMM_WORLD.send(sendBufUp, padCol*overlay, MPI.INT, world_rank-1, 99);	
-			    	MPI.COMM_WORLD.send(sendBufDown, padCol*overlay, MPI.INT, world_rank+1, 99);
-		    	}
-		    	else
-		    	{	    		
-		    		MPI.COMM_WORLD.send(sendBufUp, padCol*overlay, MPI.INT, world_rank-1, 99);	
-		    		MPI.COMM_WORLD.send(sendBufDown, padCol*overlay, MPI.INT, world_rank+1, 99);
-		    		MPI.COMM_WORLD.recv(recvBufUp, padCol*overlay, MPI.INT, world_rank-1, 99);
-		    		MPI.COMM_WORLD.recv(recvBufDown, padCol*overlay, MPI.INT, world_rank + 1, 99);
-		    	}	    	
-		    }
-		  
-		    //Wait for all nodes to reach this point.
-		    MPI.COMM_WORLD.barrier();		    
-		    
-		    //Each node calls convolution function for its own part of the image. 
-		    //For separable matrixes we can call fast convolution. Separable matrix is  amatrix with rank 1.
-		    //out = twoDconvolution(out, padCol, padRow/world_size, kernel, denom, recvBufUp, recvBufDown);
-
-		    if(isSeparable) {
-		    	if(world_rank == 0)
-		    	{
-		    		System.out.println("Using fast convolution.");
-		    	}		    	
-		    	out = twoDconvolutionFastHor(out, padCol, padRow/world_size, kernel, (long)Math.sqrt(denom), recvBufUp, recvBufDown);
-		    }
-		    else
-		    {
-		    	if(world_rank == 0)
-		    	{
-		    		System.out.println("Using slow convolution.");
-		    	}	
-		    	out = twoDconvolution(out, padCol, padRow/world_size, kernel, denom, recvBufUp, recvBufDown);
-		    }
-		    //Wait for all nodes to reach this point.
-		    //MPI.COMM_WORLD.barrier();
-		    //Gather all the convolved parts of the image into single image.
-		    MPI.COMM_WORLD.gather(out, elements_per_proc, MPI.INT, in, elements_per_proc, MPI.INT, 0);
-		    
-		    //MPI.COMM_WORLD.barrier();
-		    if(world_rank == 0)
-		    {
-		    	//Return the image from padded size into original size.
-		    	ret = cropImage(in, columns, rows, padCol - columns);
-		    	
-		    	if(isStack == true)
-		    	{
-		    		int framePos = rows*columns*frameNum;		    	
-			    	for(int i = 0; i < ret.capacity(); i++)
-			    	{
-			    		toBeSaved[framePos + i] = ret.get(i);
-			    	}		    	
-		    	}
-		    	else
-		    	{
-		    		saveImg(ret, "result.raw");
-		    	}
-		    	
-		    }	    
+    	//Result frames are streamed into the output file as soon as they are gathered. Every node writes its own
+    	//frames when they are split by whole frames.
+    	RawImageWriter writer = openWriter(resultFile, columns, rows, type, framesPerNode ? world_size : 1);
+    	try
+    	{
+    		if(framesPerNode)
+    		{
+    			if(world_rank == 0 && world_size > 1)
+    			{
+    				System.out.println("Convolving whole frames on every node.");
+    			}
+    			convolveFrames(source, writer, engine, columns, rows, numOfFrames, type);
+    		}
+    		else if(TileScheduler.TILES_PER_NODE > 0 && world_size > 1)
+    		{
+    			//Nodes of unequal speed take tiles from node 0 as they finish instead of one strip each.
+    			TileScheduler.convolve(source, writer, engine, columns, rows, numOfFrames, overlay, type);
+    		}
+    		else if(blocks.getGridColumns() == 1)
+    		{
+    			convolveStrips(source, writer, engine, columns, rows, numOfFrames, overlay, type);
+    		}
+    		else
+    		{
+    			if(world_rank == 0)
+    			{
+    				System.out.println("Using " + blocks.getGridRows() + "x" + blocks.getGridColumns() + " blocks.");
+    			}
+    			convolveBlocks(source, writer, engine, blocks, columns, rows, numOfFrames, overlay, type);
+    		}
+    	}
+    	finally
+    	{
+    		if(writer != null)
+    		{
+    			writer.close();
+    		}
     	}
-    	
-	    if(world_rank == 0 && isStack == true)
-	    {
-	    	//Save image
-	    	saveImgStack(toBeSaved, "result.raw");
-	    }
 	    //MPI.COMM_WORLD.barrier();
 	    long elapsedTime = System.nanoTime() - startTime;
 	    if(world_rank == 0)
 	    {
-	    	System.out.println("Total execution time for kernel " + kernel.length + "x" + kernel.length + " in Java in millis: "
+	    	System.out.println("Total execution time for kernel " + descriptor.getSize() + "x" + descriptor.getSize() + " in Java in millis: "
 	                + elapsedTime/1000000);
 	    }    	       
 	    //Finalize MPI and end. 		    
 	}
+	
+	//Chooses the engine for the kernel and the part of the frame convolved by one node, columns x rows.
+	//Prints the choice if verbose.
+	static ConvolutionEngine createEngine(KernelDescriptor descriptor, int columns, int rows, boolean verbose)
+	{
+		return createEngine(descriptor, columns, rows, PixelType.UINT8, verbose);
+	}
+	
+	//Same as above for the pixel type. Pixels wider than a byte have engines of their own.
+	static ConvolutionEngine createEngine(KernelDescriptor descriptor, int columns, int rows, PixelType type, boolean verbose)
+	{
+		if(type != PixelType.UINT8)
+		{
+			WideConvolutionEngine engine = type == PixelType.UINT16 ? new UnsignedShortConvolutionEngine(descriptor) : new FloatConvolutionEngine(descriptor);
+			if(verbose)
+			{
+				System.out.println("Using " + type.getLabel() + (engine.isLowRank() ? " low-rank" : "") + " convolution.");
+			}
+			return engine;
+		}
+		
+    	//For separable matrixes we can call fast convolution. Separable matrix is a matrix with rank 1.
+    	//Box kernels are separable too, their windows are summed with running sums regardless of the kernel size.
+    	//Non-separable kernels of a low rank are convolved as a sum of separable passes if that needs fewer operations.
+    	//Big kernels are convolved with FFT if its cost, estimated for the part of the frame of one node, is lower.
+    	boolean isSeparable = descriptor.isSeparable();
+    	boolean isLowRank = LowRankConvolutionEngine.isFaster(descriptor);
+    	double loopsCost = isLowRank ? LowRankConvolutionEngine.getCost(descriptor.getRank(), descriptor.getSize()) : FftConvolutionEngine.getDirectCost(descriptor.getSize(), isSeparable);
+    	ConvolutionEngine engine;
+    	if(descriptor.isBox()) {
+    		if(verbose)
+    		{
+    			System.out.println("Using box filter.");
+    		}
+    		engine = new BoxFilterEngine(descriptor.getSize(), descriptor.getPassDenom());
+    	}
+    	else if(FftConvolutionEngine.isFaster(descriptor.getKernel(), isSeparable, loopsCost, columns, rows)) {
+    		if(verbose)
+    		{
+    			System.out.println("Using FFT convolution.");
+    		}
+    		engine = new FftConvolutionEngine(descriptor.getKernel(), isSeparable ? descriptor.getPassDenom() : descriptor.getDenom(), isSeparable);
+    	}
+    	else if(isSeparable) {
+    		if(verbose)
+    		{
+    			System.out.println("Using fast convolution.");
+    		}
+    		engine = new SeparableConvolutionEngine(descriptor);
+    	}
+    	else if(isLowRank) {
+    		if(verbose)
+    		{
+    			System.out.println("Using low-rank convolution, rank " + descriptor.getRank() + ".");
+    		}
+    		engine = new LowRankConvolutionEngine(descriptor);
+    	}
+    	else
+    	{
+    		if(verbose)
+    		{
+    			System.out.println("Using slow convolution.");
+    		}
+    		engine = new DirectConvolutionEngine(descriptor);
+    	}
+    	return engine;
+	}
+
+	//Opens the result file on the nodes 0 - writers-1, the file is truncated by node 0 before the others open it.
+	//All nodes learn whether an opening failed before any further collective call and throw together,
+	//otherwise the others would wait for the failed node forever. Returns null on nodes that do not write.
+	static RawImageWriter openWriter(File resultFile, int columns, int rows, PixelType type, int writers) throws IOException, MPIException
+	{
+		int world_rank = MPI.COMM_WORLD.getRank();
+		RawImageWriter writer = null;
+		Exception failure = null;
+		try
+		{
+			if(world_rank == 0)
+			{
+				writer = new RawImageWriter(resultFile, columns, rows, type);
+			}
+		}
+		catch(IOException | RuntimeException e)
+		{
+			failure = e;
+		}
+		agree(failure);
+		if(writers > 1)
+		{
+			try
+			{
+				if(world_rank != 0 && world_rank < writers)
+				{
+					writer = new RawImageWriter(resultFile, columns, rows, type, RawImageWriter.DEFAULT_SYNC_EVERY, false);
+				}
+			}
+			catch(IOException | RuntimeException e)
+			{
+				failure = e;
+			}
+			boolean opened = false;
+			try
+			{
+				agree(failure);
+				opened = true;
+			}
+			finally
+			{
+				if(!opened && writer != null)
+				{
+					writer.close();
+				}
+			}
+		}
+		return writer;
+	}
+
+	//Collective check of the step every node has just done. Throws on all nodes if it failed on any of them,
+	//the failure of this node or a generic one.
+	static void agree(Exception failure) throws IOException, MPIException
+	{
+		int[] failed = {failure != null ? 1 : 0};
+		MPI.COMM_WORLD.allReduce(failed, 1, MPI.INT, MPI.MAX);
+		if(failed[0] == 0)
+		{
+			return;
+		}
+		if(failure instanceof IOException)
+		{
+			throw (IOException)failure;
+		}
+		if(failure instanceof RuntimeException)
+		{
+			throw (RuntimeException)failure;
+		}
+		throw new IOException("Failed on another node");
+	}
+
+	//Convolves whole frames, every node takes its own range of frames. Frames are read, convolved and written
+	//by the node itself, so there are no halos and no communication per frame.
+	private static void convolveFrames(FrameSource source, RawImageWriter writer, ConvolutionEngine engine,
+			int columns, int rows, int numOfFrames, PixelType type) throws MPIException, IOException {
+		int world_rank = MPI.COMM_WORLD.getRank(),
+        world_size = MPI.COMM_WORLD.getSize();
+		
+		//Frames are split between nodes the same way rows are split into strips.
+		StripDecomposition frames = new StripDecomposition(1, numOfFrames, world_size);
+		int firstFrame = frames.getFirstRow(world_rank);
+		int lastFrame = firstFrame + frames.getRows(world_rank);
+		
+		//Next frames are read and previous ones written in the background while a frame is convolved.
+		FramePipeline pipeline = new FramePipeline(source, writer, columns, rows, type, firstFrame, lastFrame, FramePipeline.DEFAULT_DEPTH);
+		try
+		{
+			for(int frameNum = firstFrame; frameNum < lastFrame; frameNum++)
+			{
+				ByteBuffer in = pipeline.getFrame(frameNum);
+				ByteBuffer convolved = engine.convolve(in, columns, rows, null, null);
+				pipeline.releaseFrame(in);
+				pipeline.writeFrame(frameNum, convolved);
+			}
+		}
+		finally
+		{
+			pipeline.close();
+		}
+		
+		//Result is complete only when all nodes are done.
+		MPI.COMM_WORLD.barrier();
+	}
+
+	//Convolves the frames split into horizontal strips. Each node exchanges overlaying rows with the nodes above and below.
+	//Counts and displacements of MPI calls are in pixels of the type, buffers are indexed in bytes.
+	private static void convolveStrips(FrameSource source, RawImageWriter writer, ConvolutionEngine engine,
+			int columns, int rows, int numOfFrames, int overlay, PixelType type) throws MPIException, IOException {
+		int world_rank = MPI.COMM_WORLD.getRank(),
+        world_size = MPI.COMM_WORLD.getSize();
+		
+	    //Rows are split between nodes as evenly as possible and scattered with scatterv,
+	    //so the frame does not need to be padded.
+		StripDecomposition strips = new StripDecomposition(columns, rows, world_size);
+		int stripRows = strips.getRows(world_rank);
+		//How many elements there will be for this process.
+		int elements_per_proc = stripRows * columns;
+		int bytes = type.getBytes();
+		Datatype pixel = type.getMpiType();
+		
+		//Initialize in and out buffers. Whole frames exist only on node 0, other nodes pass an empty buffer to scatterv/gatherv.
+		ByteBuffer noFrame = MPI.newByteBuffer(0);
+		//Strips are double buffered, the next frame is scattered while this one is convolved.
+		ByteBuffer[] outs = {MPI.newByteBuffer(elements_per_proc * bytes), MPI.newByteBuffer(elements_per_proc * bytes)};
+    	//Initialize recv buffers. These will be used for receiving extra rows from neighbouring processes.
+    	ByteBuffer recvBufUp = MPI.newByteBuffer(columns*overlay*bytes);
+    	ByteBuffer recvBufDown = MPI.newByteBuffer(columns*overlay*bytes);
+    	
+    	//On node 0 frames are read ahead and results written behind on background threads.
+    	FramePipeline pipeline = new FramePipeline(world_rank == 0 ? source : null, writer, columns, rows, type, 0, numOfFrames, FramePipeline.DEFAULT_DEPTH);
+    	try
+    	{
+    		//Frames being scattered and gathered are kept until their requests complete.
+    		ByteBuffer in = world_rank == 0 ? pipeline.getFrame(0) : noFrame;
+    		Request scatter = MPI.COMM_WORLD.iScatterv(in, strips.getCounts(), strips.getDispls(), pixel, outs[0],
+    				elements_per_proc, pixel, 0);
+    		Request gather = null;
+    		ByteBuffer gatherSource = null;
+    		ByteBuffer ret = noFrame;
+    		
+	    	for(int frameNum = 0; frameNum < numOfFrames; frameNum++)
+	    	{
+	    		ByteBuffer out = outs[frameNum % 2];
+	    		scatter.waitFor();
+	    		if(world_rank == 0)
+	    		{
+	    			pipeline.releaseFrame(in);
+	    		}
+	    		
+			    //Divide the next frame between all the nodes while this one is convolved.
+	    		scatter = null;
+	    		if(frameNum + 1 < numOfFrames)
+	    		{
+	    			in = world_rank == 0 ? pipeline.getFrame(frameNum + 1) : noFrame;
+	    			scatter = MPI.COMM_WORLD.iScatterv(in, strips.getCounts(), strips.getDispls(), pixel, outs[(frameNum + 1) % 2],
+	    					elements_per_proc, pixel, 0);
+	    		}
+			    
+			    //Each node convolves its own part of the image, exchanging the overlaying rows with its neighbours.
+			    ByteBuffer convolved = convolveStrip(engine, out, columns, stripRows, overlay, type, recvBufUp, recvBufDown);
+			    
+			    //Previous frame has to be gathered before it is handed over to the writer.
+			    if(gather != null)
+			    {
+			    	gather.waitFor();
+			    	if(world_rank == 0)
+			    	{
+			    		pipeline.writeFrame(frameNum - 1, ret);
+			    	}
+			    }
+			    
+			    //Gather all the convolved parts of the image into single image.
+			    if(world_rank == 0)
+			    {
+			    	ret = pipeline.getResultBuffer();
+			    }
+			    gatherSource = convolved;
+			    gather = MPI.COMM_WORLD.iGatherv(gatherSource, elements_per_proc, pixel, ret, strips.getCounts(), strips.getDispls(), pixel, 0);
+	    	}
+	    	
+	    	gather.waitFor();
+	    	if(world_rank == 0)
+	    	{
+	    		//Append the frame to the result right away, so only a few frames are held in memory.
+	    		pipeline.writeFrame(numOfFrames - 1, ret);
+	    	}
+    	}
+    	finally
+    	{
+    		pipeline.close();
+    	}
+	}
+
+	//Convolves the strip of this node and returns the result. The overlaying rows are exchanged with the nodes above and below
+	//through the recv buffers, which hold columns*overlay pixels.
+	static ByteBuffer convolveStrip(ConvolutionEngine engine, ByteBuffer strip, int columns, int stripRows, int overlay, PixelType type,
+			ByteBuffer recvBufUp, ByteBuffer recvBufDown) throws MPIException {
+		int world_rank = MPI.COMM_WORLD.getRank(),
+        world_size = MPI.COMM_WORLD.getSize();
+		int bytes = type.getBytes();
+		Datatype pixel = type.getMpiType();
+		
+	    //In this section we exchange the overlaying rows with neighbouring nodes.
+	    //Non-blocking sends and receives are posted first and the rows that do not need the
+	    //received buffers are convolved while the messages are in flight.
+	    //First node will not receive buffer from above itself, last node from below itself.
+	    List<Request> haloRequests = new ArrayList<Request>();
+	    ByteBuffer up = null;
+	    ByteBuffer down = null;
+	    if(world_rank > 0)
+	    {
+	    	//First overlaying rows of this node's part are sent up.
+	    	haloRequests.add(MPI.COMM_WORLD.iRecv(recvBufUp, columns*overlay, pixel, world_rank-1, 99));
+	    	haloRequests.add(MPI.COMM_WORLD.iSend(slice(strip, 0, columns*overlay*bytes), columns*overlay, pixel, world_rank-1, 99));
+	    	up = recvBufUp;
+	    }
+	    if(world_rank < world_size - 1)
+	    {
+	    	//Last overlaying rows of this node's part are sent down.
+	    	int lastRowIndex = (stripRows - overlay) * columns * bytes;
+	    	haloRequests.add(MPI.COMM_WORLD.iRecv(recvBufDown, columns*overlay, pixel, world_rank+1, 99));
+	    	haloRequests.add(MPI.COMM_WORLD.iSend(slice(strip, lastRowIndex, columns*overlay*bytes), columns*overlay, pixel, world_rank+1, 99));
+	    	down = recvBufDown;
+	    }
+	    
+	    ByteBuffer convolved = engine.convolveInterior(strip, columns, stripRows);
+	    if(!haloRequests.isEmpty())
+	    {
+	    	Request.waitAll(haloRequests.toArray(new Request[haloRequests.size()]));
+	    }
+	    engine.convolveBorder(strip, convolved, columns, stripRows, up, down);
+	    return convolved;
+	}
+
+	//Convolves the frames split into a 2D grid of blocks. Nodes are arranged in a Cartesian communicator and every node
+	//exchanges overlaying rows and columns with its neighbours. Blocks and halos are strided in memory, they are sent
+	//with vector datatypes, so nothing has to be packed.
+	//Datatypes are built over the MPI type of the pixel, buffers are indexed in bytes.
+	private static void convolveBlocks(FrameSource source, RawImageWriter writer, ConvolutionEngine engine, BlockDecomposition blocks,
+			int columns, int rows, int numOfFrames, int overlay, PixelType type) throws MPIException, IOException {
+		int world_rank = MPI.COMM_WORLD.getRank(),
+        world_size = MPI.COMM_WORLD.getSize();
+		
+		//Ranks are kept, so node 0 still holds the whole frames.
+		CartComm grid = MPI.COMM_WORLD.createCart(new int[] {blocks.getGridRows(), blocks.getGridColumns()}, new boolean[] {false, false}, false);
+		int[] coords = grid.getCoords(world_rank);
+		int blockRows = blocks.getRows(coords[0]);
+		int blockColumns = blocks.getColumns(coords[1]);
+		//Nodes on the border of the frame get PROC_NULL as the missing neighbour.
+		ShiftParms vertical = grid.shift(0, 1);
+		ShiftParms horizontal = grid.shift(1, 1);
+		int upRank = vertical.getRankSource(), downRank = vertical.getRankDest();
+		int leftRank = horizontal.getRankSource(), rightRank = horizontal.getRankDest();
+		
+		//The block is stored with room for the halo on every side that has a neighbour. Sides on the border
+		//of the frame have no halo and are mirrored by the engine exactly as in the whole frame.
+		int top = upRank != MPI.PROC_NULL ? overlay : 0;
+		int left = leftRank != MPI.PROC_NULL ? overlay : 0;
+		int extRows = top + blockRows + (downRank != MPI.PROC_NULL ? overlay : 0);
+		int extColumns = left + blockColumns + (rightRank != MPI.PROC_NULL ? overlay : 0);
+		int bytes = type.getBytes();
+		Datatype pixel = type.getMpiType();
+		int blockIndex = (top * extColumns + left) * bytes;
+		ByteBuffer block = MPI.newByteBuffer(extRows * extColumns * bytes);
+		
+		//Block without the halo, used for receiving the input and sending the result.
+		Datatype blockType = Datatype.createVector(blockRows, blockColumns, extColumns, pixel);
+		blockType.commit();
+		//Overlaying rows of the block.
+		Datatype rowHaloType = Datatype.createVector(overlay, blockColumns, extColumns, pixel);
+		rowHaloType.commit();
+		//Overlaying columns over all the rows, including the row halos, so the corners are passed on too.
+		Datatype columnHaloType = Datatype.createVector(extRows, overlay, extColumns, pixel);
+		columnHaloType.commit();
+		
+		//Node 0 needs the position of every block in the whole frame.
+		Datatype[] frameBlockTypes = null;
+		int[] frameBlockIndexes = null;
+		if(world_rank == 0)
+		{
+			frameBlockTypes = new Datatype[world_size];
+			frameBlockIndexes = new int[world_size];
+			for(int rank = 0; rank < world_size; rank++)
+			{
+				int[] rankCoords = grid.getCoords(rank);
+				frameBlockTypes[rank] = Datatype.createVector(blocks.getRows(rankCoords[0]), blocks.getColumns(rankCoords[1]), columns, pixel);
+				frameBlockTypes[rank].commit();
+				frameBlockIndexes[rank] = (blocks.getFirstRow(rankCoords[0]) * columns + blocks.getFirstColumn(rankCoords[1])) * bytes;
+			}
+		}
+		
+		//On node 0 frames are read ahead and results written behind on background threads.
+		FramePipeline pipeline = new FramePipeline(world_rank == 0 ? source : null, writer, columns, rows, type, 0, numOfFrames, FramePipeline.DEFAULT_DEPTH);
+		int frameBytes = rows * columns * bytes;
+		try
+		{
+			for(int frameNum = 0; frameNum < numOfFrames; frameNum++)
+			{
+				//Node 0 sends every node its block straight from the frame.
+				if(world_rank == 0)
+				{
+					ByteBuffer in = pipeline.getFrame(frameNum);
+					copyBlock(in, frameBlockIndexes[0], columns * bytes, block, blockIndex, extColumns * bytes, blockRows, blockColumns * bytes);
+					for(int rank = 1; rank < world_size; rank++)
+					{
+						grid.send(slice(in, frameBlockIndexes[rank], frameBytes - frameBlockIndexes[rank]), 1, frameBlockTypes[rank], rank, 100);
+					}
+					pipeline.releaseFrame(in);
+				}
+				else
+				{
+					grid.recv(slice(block, blockIndex, block.capacity() - blockIndex), 1, blockType, 0, 100);
+				}
+			
+				//Rows are exchanged first, within the columns of the block.
+				List<Request> haloRequests = new ArrayList<Request>();
+				if(upRank != MPI.PROC_NULL)
+				{
+					haloRequests.add(grid.iRecv(slice(block, left * bytes, block.capacity() - left * bytes), 1, rowHaloType, upRank, 99));
+					haloRequests.add(grid.iSend(slice(block, blockIndex, block.capacity() - blockIndex), 1, rowHaloType, upRank, 99));
+				}
+				if(downRank != MPI.PROC_NULL)
+				{
+					int haloIndex = ((top + blockRows) * extColumns + left) * bytes;
+					int lastRowIndex = ((top + blockRows - overlay) * extColumns + left) * bytes;
+					haloRequests.add(grid.iRecv(slice(block, haloIndex, block.capacity() - haloIndex), 1, rowHaloType, downRank, 99));
+					haloRequests.add(grid.iSend(slice(block, lastRowIndex, block.capacity() - lastRowIndex), 1, rowHaloType, downRank, 99));
+				}
+				if(!haloRequests.isEmpty())
+				{
+					Request.waitAll(haloRequests.toArray(new Request[haloRequests.size()]));
+					haloRequests.clear();
+				}
+			
+				//Columns are exchanged over the full height, which carries the corners from the diagonal neighbours.
+				if(leftRank != MPI.PROC_NULL)
+				{
+					haloRequests.add(grid.iRecv(block, 1, columnHaloType, leftRank, 99));
+					haloRequests.add(grid.iSend(slice(block, left * bytes, block.capacity() - left * bytes), 1, columnHaloType, leftRank, 99));
+				}
+				if(rightRank != MPI.PROC_NULL)
+				{
+					int haloIndex = (left + blockColumns) * bytes;
+					int lastColumnIndex = (left + blockColumns - overlay) * bytes;
+					haloRequests.add(grid.iRecv(slice(block, haloIndex, block.capacity() - haloIndex), 1, columnHaloType, rightRank, 99));
+					haloRequests.add(grid.iSend(slice(block, lastColumnIndex, block.capacity() - lastColumnIndex), 1, columnHaloType, rightRank, 99));
+				}
+				if(!haloRequests.isEmpty())
+				{
+					Request.waitAll(haloRequests.toArray(new Request[haloRequests.size()]));
+				}
+			
+				//Halo makes the block a small image of its own, only its sides on the border of the frame are mirrored.
+				ByteBuffer convolved = engine.convolve(block, extColumns, extRows, null, null);
+			
+				//Node 0 collects the blocks straight into the frame.
+				if(world_rank == 0)
+				{
+					ByteBuffer ret = pipeline.getResultBuffer();
+					copyBlock(convolved, blockIndex, extColumns * bytes, ret, frameBlockIndexes[0], columns * bytes, blockRows, blockColumns * bytes);
+					for(int rank = 1; rank < world_size; rank++)
+					{
+						grid.recv(slice(ret, frameBlockIndexes[rank], frameBytes - frameBlockIndexes[rank]), 1, frameBlockTypes[rank], rank, 101);
+					}
+					pipeline.writeFrame(frameNum, ret);
+				}
+				else
+				{
+					grid.send(slice(convolved, blockIndex, convolved.capacity() - blockIndex), 1, blockType, 0, 101);
+				}
+			}
+		}
+		finally
+		{
+			pipeline.close();
+		}
+		
+		blockType.free();
+		rowHaloType.free();
+		columnHaloType.free();
+		if(frameBlockTypes != null)
+		{
+			for(Datatype frameBlockType : frameBlockTypes)
+			{
+				frameBlockType.free();
+			}
+		}
+		grid.free();
+	}
+	
+	//Copies a block of blockRows x blockColumns bytes between two buffers with different row lengths.
+	static void copyBlock(ByteBuffer src, int srcIndex, int srcColumns, ByteBuffer dst, int dstIndex, int dstColumns, int blockRows, int blockColumns)
+	{
+		ByteBuffer from = src.duplicate();
+		ByteBuffer to = dst.duplicate();
+		from.clear();
+		to.clear();
+		for(int row = 0; row < blockRows; row++)
+		{
+			from.limit(srcIndex + row*srcColumns + blockColumns);
+			from.position(srcIndex + row*srcColumns);
+			to.position(dstIndex + row*dstColumns);
+			to.put(from);
+			from.limit(from.capacity());
+		}
+	}
 
 	/**
 	 * This main function serves for development purposes. It allows you to run
 	 * the plugin immediately out of your integrated development environment
 	 * (IDE).
 	 *
+	 * With a manifest as the only argument it runs headless instead, see
+	 * {@link BatchConvolution}.
+	 *
 	 * @param args
-	 *            whatever, it's ignored
+	 *            nothing, or the manifest of a batch
 	 * @throws Exception
 	 */
 	public static void main(final String... args) throws Exception {
+		if(args.length == 1)
+		{
+			BatchConvolution.main(args);
+			return;
+		}
+		
 		// create the ImageJ application context with all available services
 		final ImageJ ij = new ImageJ();
 		ij.ui().showUI();
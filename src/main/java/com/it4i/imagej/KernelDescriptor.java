@@ -0,0 +1,182 @@
+package com.it4i.imagej;
+
+/**
+ * A kernel together with everything the convolution derives from it: the
+ * denominator, the exact rank, the 1D factors of separable kernels, the split
+ * of low-rank kernels into separable pairs and a few flags used to choose the
+ * engine. All of it is computed once in the constructor.
+ * <p>
+ * The kernel array is shared, it must not be modified.
+ * </p>
+ */
+public class KernelDescriptor {
+
+	private final String name;
+	private final int[][] kernel;
+	private final boolean hasDenom;
+	private final long denom;
+	private final long passDenom;
+	private final int rank;
+	private final long[][][] lowRankPairs;
+	private final int[] vectorX;
+	private final int[] vectorY;
+	private final int[] weights;
+	private final boolean box;
+	private final boolean symmetric;
+	private final int nonZero;
+
+	public KernelDescriptor(String name, int[][] kernel, boolean hasDenom)
+	{
+		if(!ImageConvolution.isOddAndSym(kernel))
+		{
+			throw new IllegalArgumentException("Invalid kernel " + name);
+		}
+		this.name = name;
+		this.kernel = kernel;
+		this.hasDenom = hasDenom;
+		denom = hasDenom ? ImageConvolution.getDenom(kernel) : 0;
+		passDenom = sqrt(denom);
+
+		//Rank comes from the exact integer split, the floating point elimination is used only if the split does not fit in a long.
+		lowRankPairs = LowRankConvolutionEngine.decompose(kernel);
+		rank = lowRankPairs != null ? lowRankPairs[0].length : ImageConvolution.rankOfMatrix(kernel);
+
+		int kenDim = kernel.length;
+		vectorX = new int[kenDim];
+		vectorY = new int[kenDim];
+		for(int i = 0; i < kenDim; i++)
+		{
+			vectorX[i] = kernel[i][0];
+			vectorY[i] = kernel[0][i];
+		}
+		weights = FlatConvolutionCore.flatten(kernel);
+
+		box = BoxFilterEngine.isBoxKernel(kernel);
+		boolean isSymmetric = true;
+		int count = 0;
+		for(int x = 0; x < kenDim; x++)
+		{
+			for(int y = 0; y < kenDim; y++)
+			{
+				if(kernel[x][y] != kernel[y][x])
+				{
+					isSymmetric = false;
+				}
+				if(kernel[x][y] != 0)
+				{
+					count++;
+				}
+			}
+		}
+		symmetric = isSymmetric;
+		nonZero = count;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public int[][] getKernel()
+	{
+		return kernel;
+	}
+
+	public int getSize()
+	{
+		return kernel.length;
+	}
+
+	public boolean hasDenom()
+	{
+		return hasDenom;
+	}
+
+	//Sum of the kernel, 0 if the kernel is used without a denominator.
+	public long getDenom()
+	{
+		return denom;
+	}
+
+	//Denominator applied in each of the two passes of a separable kernel, the integer square root of the denominator.
+	public long getPassDenom()
+	{
+		return passDenom;
+	}
+
+	//Math.sqrt of a long can be off by one for big values, the root is corrected to the exact floor.
+	private static long sqrt(long value)
+	{
+		long root = (long)Math.sqrt(value);
+		if(value <= 0)
+		{
+			return root;
+		}
+		while(root * root > value)
+		{
+			root--;
+		}
+		while((root + 1) * (root + 1) <= value)
+		{
+			root++;
+		}
+		return root;
+	}
+
+	public int getRank()
+	{
+		return rank;
+	}
+
+	//Separable matrix is a matrix with rank 1.
+	public boolean isSeparable()
+	{
+		return rank == 1;
+	}
+
+	//Vertical weights, horizontal weights and scale of the low-rank split, null if it does not fit in a long.
+	long[][][] getLowRankPairs()
+	{
+		return lowRankPairs;
+	}
+
+	//Horizontal 1D factor of a separable kernel, the first column of the kernel.
+	public int[] getVectorX()
+	{
+		return vectorX;
+	}
+
+	//Vertical 1D factor of a separable kernel, the first row of the kernel.
+	public int[] getVectorY()
+	{
+		return vectorY;
+	}
+
+	//Kernel flattened by rows of the image, see FlatConvolutionCore.
+	int[] getWeights()
+	{
+		return weights;
+	}
+
+	public boolean isBox()
+	{
+		return box;
+	}
+
+	public boolean isSymmetric()
+	{
+		return symmetric;
+	}
+
+	//Number of non zero weights.
+	public int getNonZero()
+	{
+		return nonZero;
+	}
+
+	//True if at most half of the weights are non zero.
+	public boolean isSparse()
+	{
+		return 2 * nonZero <= kernel.length * kernel.length;
+	}
+}
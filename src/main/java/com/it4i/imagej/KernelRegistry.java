@@ -0,0 +1,90 @@
+package com.it4i.imagej;
+
+/**
+ * Pre-configured kernels selectable by the slider of the ImageJ command and by
+ * the kernel number of the MPI job. Every kernel and its
+ * {@link KernelDescriptor} is built once, on first use, and shared by all
+ * later jobs.
+ * <p>
+ * Numbers outside of 1 - {@link #COUNT} select the 3x3 Gaussian blur.
+ * </p>
+ */
+public class KernelRegistry {
+
+	//Number of kernels of the slider.
+	public static final int COUNT = 18;
+
+	private static final String[] NAMES = {
+		"Gaussian blur 3x3",
+		"Box blur 3x3",
+		"Box blur 5x5",
+		"Edge dectection 1",
+		"Edge dectection 2",
+		"Edge dectection 3",
+		"Sharpness filter",
+		"Gaussian blur 3x3",
+		"Gaussian blur 5x5",
+		"Gaussian blur 7x7",
+		"Gaussian blur 9x9",
+		"Gaussian blur 11x11",
+		"Gaussian blur 13x13",
+		"Gaussian blur 15x15",
+		"Gaussian blur 17x17",
+		"Gaussian blur 19x19",
+		"Gaussian blur 21x21",
+		"Gaussian blur 51x51",
+		"Gaussian blur 101x101"
+	};
+
+	private static final KernelDescriptor[] descriptors = new KernelDescriptor[COUNT + 1];
+
+	private static int index(int number)
+	{
+		return number >= 1 && number <= COUNT ? number : 0;
+	}
+
+	public static String getName(int number)
+	{
+		return NAMES[index(number)];
+	}
+
+	public static synchronized KernelDescriptor get(int number)
+	{
+		int index = index(number);
+		if(descriptors[index] == null)
+		{
+			//Edge detections and the sharpness filter are used without a denominator.
+			descriptors[index] = new KernelDescriptor(NAMES[index], createKernel(index), index < 3 || index > 6);
+		}
+		return descriptors[index];
+	}
+
+	private static int[][] createKernel(int index)
+	{
+		switch(index) {
+		  case 1:
+			  return ImageConvolution.createBoxKernel(3);
+		  case 2:
+			  return ImageConvolution.createBoxKernel(5);
+		  case 3:
+			  return new int[][] {{1,0,-1}, {0,0,0}, {-1,0,1}};
+		  case 4:
+			  return new int[][] {{0,1,0}, {1,-4,1}, {0,1,0}};
+		  case 5:
+			  return new int[][] {{-1,-1,-1}, {-1,8,-1}, {-1,-1,-1}};
+		  case 6:
+			  return new int[][] {{0,-1,0}, {-1,5,-1}, {0,-1,0}};
+		  case 17:
+			  return ImageConvolution.createKernel(51);
+		  case 18:
+			  return ImageConvolution.createKernel(101);
+		  default:
+			  if(index >= 7)
+			  {
+				  //Kernels 7 - 16 are 3x3 - 21x21.
+				  return ImageConvolution.createKernel(2 * (index - 7) + 3);
+			  }
+			  return new int[][] {{1,2,1}, {2,4,2}, {1,2,1}};
+		}
+	}
+}
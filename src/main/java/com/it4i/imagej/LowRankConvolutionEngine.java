@@ -0,0 +1,359 @@
+package com.it4i.imagej;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Engine for kernels of a low rank r, convolving the core with r pairs of
+ * horizontal and vertical passes whose sums go to one shared accumulator. It
+ * costs {@code r*2k} multiply-adds per pixel instead of {@code k*k}.
+ * <p>
+ * The kernel is split into the pairs by exact integer elimination instead of a
+ * floating point SVD. The pairs add up to the kernel multiplied by a common
+ * scale, which is divided out of the accumulated sum, so the sums are exactly
+ * those of the direct loops. The denominator, the clamping and the edges are
+ * handled as in {@link DirectConvolutionEngine}.
+ * </p>
+ */
+public class LowRankConvolutionEngine implements ConvolutionEngine {
+
+	private final int[][] kernel;
+	private final long denom;
+	private final Normalizer normalizer;
+	private final int kenDim;
+	//vertical[i] and horizontal[i] are the weights of the i-th pair, their outer products sum up to scale*kernel.
+	private final long[][] vertical;
+	private final long[][] horizontal;
+	private final long scale;
+
+	public LowRankConvolutionEngine(int[][] kernel, long denom)
+	{
+		this(kernel, denom, ImageConvolution.isOddAndSym(kernel) ? decompose(kernel) : null);
+	}
+
+	//Uses the split cached by the descriptor.
+	public LowRankConvolutionEngine(KernelDescriptor descriptor)
+	{
+		this(descriptor.getKernel(), descriptor.getDenom(), descriptor.getLowRankPairs());
+	}
+
+	private LowRankConvolutionEngine(int[][] kernel, long denom, long[][][] pairs)
+	{
+		if(!ImageConvolution.isOddAndSym(kernel))
+		{
+			throw new IllegalArgumentException("Invalid kernel");
+		}
+		this.kernel = kernel;
+		this.denom = denom;
+		this.normalizer = new Normalizer(denom);
+		this.kenDim = kernel.length;
+
+		if(pairs == null)
+		{
+			throw new IllegalArgumentException("Kernel can not be decomposed in 64-bit integers");
+		}
+		vertical = pairs[0];
+		horizontal = pairs[1];
+		scale = pairs[2][0][0];
+	}
+
+	//True if the kernel can be decomposed and its rank r makes r*2k smaller than k*k.
+	public static boolean isFaster(int[][] kernel)
+	{
+		long[][][] pairs = decompose(kernel);
+		return pairs != null && getCost(pairs[0].length, kernel.length) < FftConvolutionEngine.getDirectCost(kernel.length, false);
+	}
+
+	//Same as above for the split cached by the descriptor.
+	public static boolean isFaster(KernelDescriptor descriptor)
+	{
+		return !descriptor.isSeparable() && descriptor.getLowRankPairs() != null
+				&& getCost(descriptor.getRank(), descriptor.getSize()) < FftConvolutionEngine.getDirectCost(descriptor.getSize(), false);
+	}
+
+	//Estimated multiply-adds per pixel.
+	public static double getCost(int rank, int kenDim)
+	{
+		return 2.0 * rank * kenDim;
+	}
+
+	public int getRank()
+	{
+		return vertical.length;
+	}
+
+	//Splits the kernel into rank-1 pairs. Weights are taken as w[y][x] = kernel[x][y], as in the loops.
+	//The horizontal weights are r independent rows of w and the vertical weights express every row of w
+	//as their combination, w[y] = sum of a[i][y]*w[row i]. These come from the inverse of the r x r block
+	//where the rows cross the matching columns, multiplied by scale to stay integers. Everything is computed
+	//exactly with big integers and the result is checked. Returns {vertical, horizontal, {{scale}}} or null
+	//if the kernel is zero or the weights or the sums of a pixel do not fit in 64 bits.
+	static long[][][] decompose(int[][] kernel)
+	{
+		int kenDim = kernel.length;
+		BigInteger[][] w = new BigInteger[kenDim][kenDim];
+		for(int y = 0; y < kenDim; y++)
+		{
+			for(int x = 0; x < kenDim; x++)
+			{
+				w[y][x] = BigInteger.valueOf(kernel[x][y]);
+			}
+		}
+
+		//Fraction free elimination with full pivoting finds the independent rows and columns.
+		BigInteger[][] rest = new BigInteger[kenDim][];
+		for(int y = 0; y < kenDim; y++)
+		{
+			rest[y] = w[y].clone();
+		}
+		int[] pivotRows = new int[kenDim];
+		int[] pivotColumns = new int[kenDim];
+		int rank = 0;
+		BigInteger previous = BigInteger.ONE;
+		while(true)
+		{
+			int pivotY = -1;
+			int pivotX = -1;
+			for(int y = 0; y < kenDim && pivotY < 0; y++)
+			{
+				for(int x = 0; x < kenDim; x++)
+				{
+					if(rest[y][x].signum() != 0)
+					{
+						pivotY = y;
+						pivotX = x;
+						break;
+					}
+				}
+			}
+			if(pivotY < 0)
+			{
+				break;
+			}
+			pivotRows[rank] = pivotY;
+			pivotColumns[rank] = pivotX;
+			rank++;
+
+			BigInteger pivot = rest[pivotY][pivotX];
+			for(int y = 0; y < kenDim; y++)
+			{
+				if(y == pivotY)
+				{
+					continue;
+				}
+				BigInteger factor = rest[y][pivotX];
+				for(int x = 0; x < kenDim; x++)
+				{
+					rest[y][x] = pivot.multiply(rest[y][x]).subtract(factor.multiply(rest[pivotY][x])).divide(previous);
+				}
+			}
+			Arrays.fill(rest[pivotY], BigInteger.ZERO);
+			previous = pivot;
+		}
+		if(rank == 0)
+		{
+			return null;
+		}
+
+		//Gauss-Jordan on the block next to a unit matrix. Rows are kept integer and divided by their common factor,
+		//the right side times the block always equals the left side, which ends up diagonal.
+		BigInteger[][] block = new BigInteger[rank][2 * rank];
+		for(int i = 0; i < rank; i++)
+		{
+			for(int j = 0; j < rank; j++)
+			{
+				block[i][j] = w[pivotRows[i]][pivotColumns[j]];
+				block[i][rank + j] = i == j ? BigInteger.ONE : BigInteger.ZERO;
+			}
+		}
+		for(int j = 0; j < rank; j++)
+		{
+			int pivotRow = j;
+			while(block[pivotRow][j].signum() == 0)
+			{
+				pivotRow++;
+			}
+			BigInteger[] swap = block[j];
+			block[j] = block[pivotRow];
+			block[pivotRow] = swap;
+			for(int i = 0; i < rank; i++)
+			{
+				if(i == j || block[i][j].signum() == 0)
+				{
+					continue;
+				}
+				BigInteger pivot = block[j][j];
+				BigInteger factor = block[i][j];
+				BigInteger gcd = BigInteger.ZERO;
+				for(int c = 0; c < 2 * rank; c++)
+				{
+					block[i][c] = pivot.multiply(block[i][c]).subtract(factor.multiply(block[j][c]));
+					gcd = gcd.gcd(block[i][c]);
+				}
+				for(int c = 0; c < 2 * rank; c++)
+				{
+					block[i][c] = block[i][c].divide(gcd);
+				}
+			}
+		}
+		//Row i of the inverse is the right side of row i divided by its diagonal value.
+		BigInteger scale = BigInteger.ONE;
+		for(int i = 0; i < rank; i++)
+		{
+			BigInteger diagonal = block[i][i].abs();
+			scale = scale.divide(scale.gcd(diagonal)).multiply(diagonal);
+		}
+		BigInteger[][] inverse = new BigInteger[rank][rank];
+		for(int i = 0; i < rank; i++)
+		{
+			BigInteger factor = scale.divide(block[i][i]);
+			for(int j = 0; j < rank; j++)
+			{
+				inverse[i][j] = block[i][rank + j].multiply(factor);
+			}
+		}
+
+		//scale*a[i][y] = sum over the pivot columns c of w[y][c]*inverse[c][i].
+		BigInteger[][] vertical = new BigInteger[rank][kenDim];
+		BigInteger gcd = scale;
+		for(int i = 0; i < rank; i++)
+		{
+			for(int y = 0; y < kenDim; y++)
+			{
+				BigInteger sum = BigInteger.ZERO;
+				for(int c = 0; c < rank; c++)
+				{
+					sum = sum.add(w[y][pivotColumns[c]].multiply(inverse[c][i]));
+				}
+				vertical[i][y] = sum;
+				gcd = gcd.gcd(sum);
+			}
+		}
+		scale = scale.divide(gcd);
+		for(int i = 0; i < rank; i++)
+		{
+			for(int y = 0; y < kenDim; y++)
+			{
+				vertical[i][y] = vertical[i][y].divide(gcd);
+			}
+		}
+
+		//The pairs must add up to scale*w exactly and the sums of a pixel must fit in a long.
+		BigInteger bound = BigInteger.ZERO;
+		for(int i = 0; i < rank; i++)
+		{
+			BigInteger verticalSum = BigInteger.ZERO;
+			BigInteger horizontalSum = BigInteger.ZERO;
+			for(int y = 0; y < kenDim; y++)
+			{
+				verticalSum = verticalSum.add(vertical[i][y].abs());
+				horizontalSum = horizontalSum.add(w[pivotRows[i]][y].abs());
+			}
+			bound = bound.add(verticalSum.multiply(horizontalSum));
+		}
+		if(bound.multiply(BigInteger.valueOf(255)).bitLength() > 62)
+		{
+			return null;
+		}
+		for(int y = 0; y < kenDim; y++)
+		{
+			for(int x = 0; x < kenDim; x++)
+			{
+				BigInteger sum = BigInteger.ZERO;
+				for(int i = 0; i < rank; i++)
+				{
+					sum = sum.add(vertical[i][y].multiply(w[pivotRows[i]][x]));
+				}
+				if(!sum.equals(scale.multiply(w[y][x])))
+				{
+					return null;
+				}
+			}
+		}
+
+		long[][] verticalPairs = new long[rank][kenDim];
+		long[][] horizontalPairs = new long[rank][kenDim];
+		for(int i = 0; i < rank; i++)
+		{
+			for(int y = 0; y < kenDim; y++)
+			{
+				verticalPairs[i][y] = vertical[i][y].longValue();
+				horizontalPairs[i][y] = w[pivotRows[i]][y].longValue();
+			}
+		}
+		return new long[][][] {verticalPairs, horizontalPairs, {{scale.longValue()}}};
+	}
+
+	@Override
+	public ByteBuffer convolveInterior(ByteBuffer inputArray, int columns, int rows)
+	{
+		ByteBuffer ret = ImageConvolution.newBuffer(inputArray.capacity());
+		int half = kenDim / 2;
+		int rank = vertical.length;
+
+		//Every band makes the horizontal passes for its rows and half a kernel above and below them.
+		RowBandExecutor.forEachBand(half, rows - half, columns * kenDim, (rowStart, rowEnd) -> {
+			int passRows = rowEnd - rowStart + 2 * half;
+			long[][] passes = new long[rank][passRows * columns];
+			for(int i = 0; i < rank; i++)
+			{
+				long[] weights = horizontal[i];
+				long[] pass = passes[i];
+				for(int r = 0; r < passRows; r++)
+				{
+					int rowIndex = (rowStart - half + r) * columns;
+					for(int x = 0; x < kenDim; x++)
+					{
+						long weight = weights[x];
+						if(weight == 0)
+						{
+							continue;
+						}
+						for(int col = half; col < columns - half; col++)
+						{
+							pass[r * columns + col] += weight * (inputArray.get(rowIndex + col + x - half) & 0xFF);
+						}
+					}
+				}
+			}
+
+			//Vertical passes of all pairs add to one accumulator per pixel of the row.
+			long[] acc = new long[columns];
+			for(int row = rowStart; row < rowEnd; row++)
+			{
+				Arrays.fill(acc, 0);
+				for(int i = 0; i < rank; i++)
+				{
+					long[] pass = passes[i];
+					for(int y = 0; y < kenDim; y++)
+					{
+						long weight = vertical[i][y];
+						if(weight == 0)
+						{
+							continue;
+						}
+						int passIndex = (row - rowStart + y) * columns;
+						for(int col = half; col < columns - half; col++)
+						{
+							acc[col] += weight * pass[passIndex + col];
+						}
+					}
+				}
+				for(int col = half; col < columns - half; col++)
+				{
+					ret.put(row * columns + col, (byte)normalizer.normalize(acc[col] / scale));
+				}
+			}
+		});
+
+		ImageConvolution.twoDconvolutionSides(inputArray, ret, columns, rows, kernel, denom);
+		return ret;
+	}
+
+	@Override
+	public void convolveBorder(ByteBuffer inputArray, ByteBuffer out, int columns, int rows, ByteBuffer up, ByteBuffer down)
+	{
+		ImageConvolution.twoDconvolutionBorder(inputArray, out, columns, rows, kernel, denom, up, down);
+	}
+}
@@ -0,0 +1,78 @@
+package com.it4i.imagej;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Frame source backed by pixels already held in memory, used when the
+ * convolution is started from ImageJ. Frames are returned as views of the
+ * array without copying.
+ */
+public class MemoryFrameSource implements FrameSource {
+
+	private final ByteBuffer pixels;
+	private final int columns;
+	private final int rows;
+	private final int numOfFrames;
+	private final PixelType type;
+
+	public MemoryFrameSource(byte[] pixels, int columns, int rows, int numOfFrames)
+	{
+		this(ByteBuffer.wrap(pixels), columns, rows, numOfFrames);
+	}
+
+	public MemoryFrameSource(ByteBuffer pixels, int columns, int rows, int numOfFrames)
+	{
+		this(pixels, columns, rows, numOfFrames, PixelType.UINT8);
+	}
+
+	public MemoryFrameSource(ByteBuffer pixels, int columns, int rows, int numOfFrames, PixelType type)
+	{
+		if(pixels.capacity() < (long)columns * rows * numOfFrames * type.getBytes())
+		{
+			throw new IllegalArgumentException("Buffer holds less than " + numOfFrames + " frames of " + columns + "x" + rows + " " + type.getLabel());
+		}
+		this.pixels = pixels;
+		this.columns = columns;
+		this.rows = rows;
+		this.numOfFrames = numOfFrames;
+		this.type = type;
+	}
+
+	@Override
+	public int getColumns()
+	{
+		return columns;
+	}
+
+	@Override
+	public int getRows()
+	{
+		return rows;
+	}
+
+	@Override
+	public int getNumOfFrames()
+	{
+		return numOfFrames;
+	}
+
+	@Override
+	public PixelType getType()
+	{
+		return type;
+	}
+
+	@Override
+	public ByteBuffer getFrame(int frame)
+	{
+		if(frame < 0 || frame >= numOfFrames)
+		{
+			throw new IndexOutOfBoundsException("Frame " + frame + " is out of range <0, " + numOfFrames + ")");
+		}
+		int frameSize = columns * rows * type.getBytes();
+		ByteBuffer view = pixels.duplicate();
+		view.limit(frame * frameSize + frameSize);
+		view.position(frame * frameSize);
+		return view.slice();
+	}
+}
@@ -0,0 +1,95 @@
+package com.it4i.imagej;
+
+/**
+ * Applies the denominator to the sums of the convolution and clamps them to 8
+ * bits, the same way as {@code acc /= denom} followed by clamping to 0 - 255.
+ * <p>
+ * The division is replaced by a multiplication with a fixed-point reciprocal
+ * of the denominator, {@code m = ceil(2^shift / denom)}, and a shift. Only sums
+ * between 0 and {@code 256 * denom} need to be divided, the others clamp
+ * anyway, and for these the shift is chosen so that the result is exact. For
+ * denominators above 2^23 or below zero the sum is divided.
+ * </p>
+ */
+public class Normalizer {
+
+	//Largest denominator whose reciprocal keeps 256 * denom * m in a long.
+	private static final long MAX_RECIPROCAL_DENOM = 1L << 23;
+
+	private final long denom;
+	private final long limit;
+	private final long multiplier;
+	private final int shift;
+
+	public Normalizer(long denom)
+	{
+		this.denom = denom;
+		if(denom > 0 && denom <= MAX_RECIPROCAL_DENOM)
+		{
+			limit = 256 * denom;
+			//floor(acc * m / 2^shift) equals floor(acc / denom) for acc < 2^shift / (m * denom - 2^shift),
+			//which holds for all acc below the limit once 2^shift >= limit * denom.
+			shift = 64 - Long.numberOfLeadingZeros(limit * denom - 1);
+			multiplier = ((1L << shift) + denom - 1) / denom;
+		}
+		else
+		{
+			limit = 0;
+			multiplier = 0;
+			shift = 0;
+		}
+	}
+
+	public long getDenom()
+	{
+		return denom;
+	}
+
+	//Normalized value of a single sum.
+	public int normalize(long acc)
+	{
+		if(multiplier != 0)
+		{
+			if(acc <= 0)
+			{
+				return 0;
+			}
+			if(acc >= limit)
+			{
+				return 255;
+			}
+			return (int)((acc * multiplier) >>> shift);
+		}
+		if(denom != 0)
+		{
+			acc /= denom;
+		}
+		if(acc > 255)
+		{
+			return 255;
+		}
+		if(acc < 0)
+		{
+			return 0;
+		}
+		return (int)acc;
+	}
+
+	//Normalizes the first length sums into line.
+	public void normalize(int[] acc, byte[] line, int length)
+	{
+		for(int col = 0; col < length; col++)
+		{
+			line[col] = (byte)normalize(acc[col]);
+		}
+	}
+
+	//Normalizes the first length sums into line.
+	public void normalize(long[] acc, byte[] line, int length)
+	{
+		for(int col = 0; col < length; col++)
+		{
+			line[col] = (byte)normalize(acc[col]);
+		}
+	}
+}
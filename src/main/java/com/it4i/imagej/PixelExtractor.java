@@ -0,0 +1,218 @@
+package com.it4i.imagej;
+
+import java.nio.ByteBuffer;
+
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.IterableInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Bulk extraction of pixels from an ImgLib2 image into a flat array (x
+ * fastest, then y, then z), as expected by
+ * {@link ImageConvolution#convolve(byte[], int, int, int, int, PixelType)}.
+ * Pixels wider than a byte are stored in the byte order of {@link PixelType}.
+ * <p>
+ * Images backed by {@link ArrayImg} or {@link PlanarImg} are read directly from
+ * their primitive storage. Any other image is copied by flat iteration
+ * cursors, each working on its own chunk of rows in parallel.
+ * </p>
+ */
+public class PixelExtractor {
+
+	//Length of the array for pixels of the type. Throws if it does not fit a Java array, such images have to be
+	//convolved from a raw file.
+	static int getArrayLength(long pixels, PixelType type)
+	{
+		long bytes = pixels * type.getBytes();
+		if(bytes > Integer.MAX_VALUE)
+		{
+			throw new IllegalArgumentException("Image of " + bytes + " bytes does not fit into a Java array of at most "
+					+ Integer.MAX_VALUE + " bytes. Save it as raw and convolve the file by its path, e.g. with a manifest of com.it4i.imagej.BatchConvolution.");
+		}
+		return (int)bytes;
+	}
+
+	//Returns pixels of a 2D image or a 3D stack. The returned array may be the storage of the image itself,
+	//so it must not be modified. Throws IllegalArgumentException if the image does not fit an array.
+	public static <T extends RealType<T>> byte[] getPixels(Img<T> image)
+	{
+		Img<?> img = image;
+		//Get to the container under the ImgPlus metadata wrappers.
+		while(img instanceof ImgPlus)
+		{
+			img = ((ImgPlus<?>)img).getImg();
+		}
+
+		if(img.numDimensions() <= 3 && img.firstElement() instanceof UnsignedByteType)
+		{
+			if(img instanceof ArrayImg)
+			{
+				Object access = ((ArrayImg<?, ?>)img).update(null);
+				if(access instanceof ByteArray)
+				{
+					//Storage of an ArrayImg is already in the flat order.
+					return ((ByteArray)access).getCurrentStorageArray();
+				}
+			}
+			if(img instanceof PlanarImg)
+			{
+				byte[] planar = getPlanarPixels((PlanarImg<?, ?>)img);
+				if(planar != null)
+				{
+					return planar;
+				}
+			}
+		}
+		return getPixelsByCursor(image);
+	}
+
+	//Returns pixels of the given type as bytes. 8-bit pixels may be the storage of the image itself,
+	//so the array must not be modified. Throws IllegalArgumentException if the image does not fit an array.
+	public static <T extends RealType<T>> byte[] getPixels(Img<T> image, PixelType type)
+	{
+		if(type == PixelType.UINT8)
+		{
+			return getPixels(image);
+		}
+
+		Img<?> img = image;
+		while(img instanceof ImgPlus)
+		{
+			img = ((ImgPlus<?>)img).getImg();
+		}
+		if(img.numDimensions() <= 3)
+		{
+			if(img instanceof ArrayImg)
+			{
+				byte[] out = new byte[getArrayLength(img.size(), type)];
+				if(copyStorage(((ArrayImg<?, ?>)img).update(null), out, 0, type))
+				{
+					return out;
+				}
+			}
+			if(img instanceof PlanarImg)
+			{
+				PlanarImg<?, ?> planar = (PlanarImg<?, ?>)img;
+				byte[] out = new byte[getArrayLength(img.dimension(0) * img.dimension(1) * planar.numSlices(), type)];
+				int planeBytes = (int)(img.dimension(0) * img.dimension(1)) * type.getBytes();
+				boolean copied = true;
+				for(int slice = 0; slice < planar.numSlices() && copied; slice++)
+				{
+					copied = copyStorage(planar.getPlane(slice), out, slice * planeBytes, type);
+				}
+				if(copied)
+				{
+					return out;
+				}
+			}
+		}
+		return getWidePixelsByCursor(image, type);
+	}
+
+	//Copies primitive storage of the type into out at offset. Returns false if the storage is of another type.
+	private static boolean copyStorage(Object access, byte[] out, int offset, PixelType type)
+	{
+		ByteBuffer view = ByteBuffer.wrap(out, offset, out.length - offset).slice().order(PixelType.ORDER);
+		if(type == PixelType.UINT16 && access instanceof ShortArray)
+		{
+			view.asShortBuffer().put(((ShortArray)access).getCurrentStorageArray());
+			return true;
+		}
+		if(type == PixelType.FLOAT32 && access instanceof FloatArray)
+		{
+			view.asFloatBuffer().put(((FloatArray)access).getCurrentStorageArray());
+			return true;
+		}
+		return false;
+	}
+
+	//Concatenates the planes of a PlanarImg. Returns null if the planes are not byte arrays.
+	private static byte[] getPlanarPixels(PlanarImg<?, ?> img)
+	{
+		int slices = img.numSlices();
+		byte[] out = new byte[getArrayLength(img.dimension(0) * img.dimension(1) * slices, PixelType.UINT8)];
+		int planeSize = (int)(img.dimension(0) * img.dimension(1));
+
+		for(int slice = 0; slice < slices; slice++)
+		{
+			Object plane = img.getPlane(slice);
+			if(!(plane instanceof ByteArray))
+			{
+				return null;
+			}
+			System.arraycopy(((ByteArray)plane).getCurrentStorageArray(), 0, out, slice * planeSize, planeSize);
+		}
+		return out;
+	}
+
+	//Copies pixels of any container. Rows of all frames are split into bands, every band uses its own
+	//cursor that is moved to the first pixel of the band.
+	private static <T extends RealType<T>> byte[] getPixelsByCursor(Img<T> image)
+	{
+		final IterableInterval<T> flat = Views.flatIterable(image);
+		final int columns = (int)image.dimension(0);
+		final byte[] out = new byte[getArrayLength(flat.size(), PixelType.UINT8)];
+		final int allRows = (int)(flat.size() / columns);
+
+		RowBandExecutor.forEachBand(0, allRows, columns, (rowStart, rowEnd) -> {
+			Cursor<T> cursor = flat.cursor();
+			cursor.jumpFwd((long)rowStart * columns);
+			for(int i = rowStart * columns; i < rowEnd * columns; i++)
+			{
+				cursor.fwd();
+				out[i] = (byte)(int)cursor.get().getRealDouble();
+			}
+		});
+		return out;
+	}
+
+	//Copies pixels of any container into the type, bands are split as above. Unsigned short and float pixels
+	//are read through their own types, others are converted from doubles.
+	private static <T extends RealType<T>> byte[] getWidePixelsByCursor(Img<T> image, final PixelType type)
+	{
+		final IterableInterval<T> flat = Views.flatIterable(image);
+		final int columns = (int)image.dimension(0);
+		final byte[] out = new byte[getArrayLength(flat.size(), type)];
+		final int allRows = (int)(flat.size() / columns);
+		final boolean native16 = type == PixelType.UINT16 && image.firstElement() instanceof UnsignedShortType;
+		final boolean nativeFloat = type == PixelType.FLOAT32 && image.firstElement() instanceof FloatType;
+
+		RowBandExecutor.forEachBand(0, allRows, columns * type.getBytes(), (rowStart, rowEnd) -> {
+			ByteBuffer view = ByteBuffer.wrap(out).order(PixelType.ORDER);
+			Cursor<T> cursor = flat.cursor();
+			cursor.jumpFwd((long)rowStart * columns);
+			for(int i = rowStart * columns; i < rowEnd * columns; i++)
+			{
+				cursor.fwd();
+				if(native16)
+				{
+					view.putShort(2 * i, (short)((UnsignedShortType)cursor.get()).get());
+				}
+				else if(nativeFloat)
+				{
+					view.putFloat(4 * i, ((FloatType)cursor.get()).get());
+				}
+				else if(type == PixelType.UINT16)
+				{
+					view.putShort(2 * i, (short)(int)cursor.get().getRealDouble());
+				}
+				else
+				{
+					view.putFloat(4 * i, (float)cursor.get().getRealDouble());
+				}
+			}
+		});
+		return out;
+	}
+}
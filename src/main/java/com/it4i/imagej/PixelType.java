@@ -0,0 +1,86 @@
+package com.it4i.imagej;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+import mpi.Datatype;
+import mpi.MPI;
+
+/**
+ * Pixel types the convolution works with. Frames of every type are kept in
+ * byte buffers, row after row, in little-endian {@link #ORDER}, which is also
+ * the layout of the raw files that are read and written.
+ */
+public enum PixelType {
+
+	UINT8("8-bit uint", 1),
+	UINT16("16-bit uint", 2),
+	FLOAT32("32-bit float", 4);
+
+	//Byte order of pixels wider than a byte, in buffers and in raw files.
+	public static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+	private final String label;
+	private final int bytes;
+
+	PixelType(String label, int bytes)
+	{
+		this.label = label;
+		this.bytes = bytes;
+	}
+
+	//Type label of the ImageJ dataset, as returned by getTypeLabelShort().
+	public String getLabel()
+	{
+		return label;
+	}
+
+	public int getBytes()
+	{
+		return bytes;
+	}
+
+	//MPI datatype of one pixel. Looked up only when needed, so the type can be used without MPI.
+	public Datatype getMpiType()
+	{
+		switch(this) {
+		  case UINT16:
+			  return MPI.SHORT;
+		  case FLOAT32:
+			  return MPI.FLOAT;
+		  default:
+			  return MPI.BYTE;
+		}
+	}
+
+	//16-bit view of the whole buffer. Views of a duplicate are big-endian by default, so the order is set explicitly.
+	public static ShortBuffer asShorts(ByteBuffer buffer)
+	{
+		ByteBuffer view = buffer.duplicate();
+		view.clear();
+		return view.order(ORDER).asShortBuffer();
+	}
+
+	//Float view of the whole buffer, see asShorts.
+	public static FloatBuffer asFloats(ByteBuffer buffer)
+	{
+		ByteBuffer view = buffer.duplicate();
+		view.clear();
+		return view.order(ORDER).asFloatBuffer();
+	}
+
+	//Returns the type of the ImageJ type label or null if it is not supported.
+	public static PixelType forLabel(String label)
+	{
+		for(PixelType type : values())
+		{
+			if(type.label.equals(label))
+			{
+				return type;
+			}
+		}
+		return null;
+	}
+}
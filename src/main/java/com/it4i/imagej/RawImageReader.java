@@ -0,0 +1,131 @@
+package com.it4i.imagej;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reader of raw images and image stacks of any {@link PixelType}.
+ * <p>
+ * The file is opened once and mapped into memory. Frames and row ranges are
+ * returned as zero-copy views of the mapping, so reading a frame of a stack no
+ * longer loads the whole file. The views are direct buffers and can be handed
+ * to MPI as they are.
+ * </p>
+ * <p>
+ * A single mapping is limited to 2 GB, therefore bigger files are mapped in
+ * segments holding a whole number of frames. Segments are mapped on first use.
+ * </p>
+ */
+public class RawImageReader implements FrameSource, Closeable {
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final int columns;
+	private final int rows;
+	private final int numOfFrames;
+	private final PixelType type;
+	private final int frameSize;
+	private final int framesPerSegment;
+	private final MappedByteBuffer[] segments;
+
+	public RawImageReader(File f, int columns, int rows, int numOfFrames) throws IOException
+	{
+		this(f, columns, rows, numOfFrames, PixelType.UINT8);
+	}
+
+	public RawImageReader(File f, int columns, int rows, int numOfFrames, PixelType type) throws IOException
+	{
+		this.columns = columns;
+		this.rows = rows;
+		this.numOfFrames = numOfFrames;
+		this.type = type;
+		this.frameSize = columns * rows * type.getBytes();
+		if(columns <= 0 || rows <= 0 || (long)columns * rows * type.getBytes() > Integer.MAX_VALUE)
+		{
+			throw new IllegalArgumentException("Invalid frame dimensions " + columns + "x" + rows);
+		}
+		this.framesPerSegment = Math.max(1, Integer.MAX_VALUE / frameSize);
+		this.segments = new MappedByteBuffer[(numOfFrames + framesPerSegment - 1) / framesPerSegment];
+
+		file = new RandomAccessFile(f, "r");
+		channel = file.getChannel();
+		if(channel.size() < (long)frameSize * numOfFrames)
+		{
+			close();
+			throw new IOException("File " + f.getPath() + " is smaller than " + numOfFrames + " frames of " + columns + "x" + rows);
+		}
+	}
+
+	@Override
+	public int getColumns()
+	{
+		return columns;
+	}
+
+	@Override
+	public int getRows()
+	{
+		return rows;
+	}
+
+	@Override
+	public int getNumOfFrames()
+	{
+		return numOfFrames;
+	}
+
+	@Override
+	public PixelType getType()
+	{
+		return type;
+	}
+
+	//Returns read-only view of the whole frame.
+	@Override
+	public ByteBuffer getFrame(int frame) throws IOException
+	{
+		return getRowRange(frame, 0, rows);
+	}
+
+	//Returns read-only view of rowCount rows of the frame starting with rowStart.
+	public ByteBuffer getRowRange(int frame, int rowStart, int rowCount) throws IOException
+	{
+		if(frame < 0 || frame >= numOfFrames)
+		{
+			throw new IndexOutOfBoundsException("Frame " + frame + " is out of range <0, " + numOfFrames + ")");
+		}
+		if(rowStart < 0 || rowCount < 0 || rowStart + rowCount > rows)
+		{
+			throw new IndexOutOfBoundsException("Rows <" + rowStart + ", " + (rowStart + rowCount) + ") are out of range <0, " + rows + ")");
+		}
+
+		ByteBuffer view = getSegment(frame / framesPerSegment).duplicate();
+		int rowSize = columns * type.getBytes();
+		int offset = (frame % framesPerSegment) * frameSize + rowStart * rowSize;
+		view.limit(offset + rowCount * rowSize);
+		view.position(offset);
+		return view.slice();
+	}
+
+	private synchronized MappedByteBuffer getSegment(int segment) throws IOException
+	{
+		if(segments[segment] == null)
+		{
+			long position = (long)segment * framesPerSegment * frameSize;
+			int frames = Math.min(framesPerSegment, numOfFrames - segment * framesPerSegment);
+			segments[segment] = channel.map(FileChannel.MapMode.READ_ONLY, position, (long)frames * frameSize);
+		}
+		return segments[segment];
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		file.close();
+	}
+}
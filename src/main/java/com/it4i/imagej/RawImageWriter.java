@@ -0,0 +1,98 @@
+package com.it4i.imagej;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writer of raw images and image stacks of any {@link PixelType}.
+ * <p>
+ * Every frame is written to its position in the file as soon as it is
+ * available, so only one frame has to be kept in memory and partial results
+ * are visible on disk while a long stack is still being processed.
+ * </p>
+ * <p>
+ * With {@code syncEvery} greater than zero the file is synced to the storage
+ * device after every {@code syncEvery} written frames. The value can be set by
+ * the {@code imageconvolution.syncFrames} system property.
+ * </p>
+ */
+public class RawImageWriter implements Closeable {
+
+	public static final int DEFAULT_SYNC_EVERY = Integer.getInteger("imageconvolution.syncFrames", 0);
+
+	private final FileChannel channel;
+	private final int frameSize;
+	private final int syncEvery;
+	private int unsyncedFrames = 0;
+
+	public RawImageWriter(File f, int columns, int rows) throws IOException
+	{
+		this(f, columns, rows, DEFAULT_SYNC_EVERY);
+	}
+
+	public RawImageWriter(File f, int columns, int rows, PixelType type) throws IOException
+	{
+		this(f, columns, rows, type, DEFAULT_SYNC_EVERY, true);
+	}
+
+	//Creates the file or truncates the existing one.
+	public RawImageWriter(File f, int columns, int rows, int syncEvery) throws IOException
+	{
+		this(f, columns, rows, syncEvery, true);
+	}
+
+	//With truncate set to false the existing content is kept, so several writers can fill in
+	//their own frames of one file.
+	public RawImageWriter(File f, int columns, int rows, int syncEvery, boolean truncate) throws IOException
+	{
+		this(f, columns, rows, PixelType.UINT8, syncEvery, truncate);
+	}
+
+	public RawImageWriter(File f, int columns, int rows, PixelType type, int syncEvery, boolean truncate) throws IOException
+	{
+		this.frameSize = columns * rows * type.getBytes();
+		this.syncEvery = syncEvery;
+		if(truncate)
+		{
+			channel = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		}
+		else
+		{
+			channel = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		}
+	}
+
+	//Writes the first columns*rows pixels of the buffer as the given frame of the stack.
+	public synchronized void writeFrame(int frame, ByteBuffer data) throws IOException
+	{
+		ByteBuffer src = data.duplicate();
+		src.clear();
+		src.limit(frameSize);
+		long position = (long)frame * frameSize;
+		while(src.hasRemaining())
+		{
+			position += channel.write(src, position);
+		}
+
+		unsyncedFrames++;
+		if(syncEvery > 0 && unsyncedFrames >= syncEvery)
+		{
+			channel.force(false);
+			unsyncedFrames = 0;
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if(syncEvery > 0 && unsyncedFrames > 0)
+		{
+			channel.force(false);
+		}
+		channel.close();
+	}
+}
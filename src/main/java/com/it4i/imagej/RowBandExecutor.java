@@ -0,0 +1,113 @@
+package com.it4i.imagej;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits a range of image rows into bands and convolves them in parallel on a
+ * fork-join pool, so a single MPI rank can use all cores of its node.
+ * <p>
+ * Each band writes only to its own rows of the output buffer, therefore the
+ * bands can share one output buffer without any locking.
+ * </p>
+ * <p>
+ * The number of threads defaults to the number of available processors and can
+ * be changed with the {@code imageconvolution.threads} system property or with
+ * {@link #setParallelism(int)}.
+ * </p>
+ */
+public class RowBandExecutor {
+
+	//Amount of input data touched by a single band. Chosen so that a band fits into L2 cache.
+	public static final int BAND_BYTES = 256 * 1024;
+
+	private static int parallelism = Math.max(1, Integer.getInteger("imageconvolution.threads", Runtime.getRuntime().availableProcessors()));
+	private static ForkJoinPool pool = null;
+
+	//Work done on one band. Rows are given as a half open interval <rowStart, rowEnd).
+	public interface RowBandTask {
+		void run(int rowStart, int rowEnd);
+	}
+
+	public static synchronized void setParallelism(int threads)
+	{
+		if(threads < 1)
+		{
+			throw new IllegalArgumentException("Parallelism must be at least 1, got " + threads);
+		}
+		if(threads != parallelism && pool != null)
+		{
+			pool.shutdown();
+			pool = null;
+		}
+		parallelism = threads;
+	}
+
+	public static synchronized int getParallelism()
+	{
+		return parallelism;
+	}
+
+	private static synchronized ForkJoinPool getPool()
+	{
+		if(pool == null)
+		{
+			pool = new ForkJoinPool(parallelism);
+		}
+		return pool;
+	}
+
+	//Function takes the row interval, size of one input row in bytes and the work to be done.
+	//The interval is cut into cache-sized bands which are processed in parallel. Returns once all bands are done.
+	public static void forEachBand(int rowStart, int rowEnd, int rowBytes, RowBandTask task)
+	{
+		int rowCount = rowEnd - rowStart;
+		if(rowCount <= 0)
+		{
+			return;
+		}
+
+		int bandRows = Math.max(1, BAND_BYTES / Math.max(1, rowBytes));
+		//Not worth forking, run on the calling thread.
+		if(getParallelism() == 1 || rowCount <= bandRows)
+		{
+			task.run(rowStart, rowEnd);
+			return;
+		}
+		getPool().invoke(new BandAction(rowStart, rowEnd, bandRows, task));
+	}
+
+	//Recursively halves the interval until it is a single band.
+	private static class BandAction extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int rowStart;
+		private final int rowEnd;
+		private final int bandRows;
+		private final RowBandTask task;
+
+		BandAction(int rowStart, int rowEnd, int bandRows, RowBandTask task)
+		{
+			this.rowStart = rowStart;
+			this.rowEnd = rowEnd;
+			this.bandRows = bandRows;
+			this.task = task;
+		}
+
+		@Override
+		protected void compute()
+		{
+			int rowCount = rowEnd - rowStart;
+			if(rowCount <= bandRows)
+			{
+				task.run(rowStart, rowEnd);
+				return;
+			}
+			//Split on band boundary so that bands keep their size.
+			int bands = (rowCount + bandRows - 1) / bandRows;
+			int mid = rowStart + (bands / 2) * bandRows;
+			invokeAll(new BandAction(rowStart, mid, bandRows, task), new BandAction(mid, rowEnd, bandRows, task));
+		}
+	}
+}
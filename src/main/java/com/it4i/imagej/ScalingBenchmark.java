@@ -0,0 +1,400 @@
+package com.it4i.imagej;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import mpi.MPI;
+
+/**
+ * Strong and weak scaling of {@link ImageConvolution#convolve} on one machine.
+ * <p>
+ * Usage: {@code ScalingBenchmark columns rows frames ranks kernels [type] [repeats] [output]},
+ * e.g. {@code ScalingBenchmark 4096 4096 1 1,2,4,8 7,13,17 UINT8 3 scaling}.
+ * Ranks and kernels are comma separated lists, type defaults to UINT8, repeats
+ * to 3 and output to scaling. For every kernel and number of ranks a
+ * synthetic image is convolved by {@code mpirun -np ranks}: for strong
+ * scaling the image of columns x rows, for weak scaling an image with rows
+ * times ranks rows, so every rank has the same amount of work. The best of the
+ * repeats is reported, measured on rank 0 between barriers around the
+ * convolution, without the start of MPI and the JVM.
+ * </p>
+ * <p>
+ * Results are written to output.csv and output.json with the wall time, the
+ * Mpixels per second and the speedup and parallel efficiency against the
+ * fewest ranks of the sweep. The json file also has the curves of efficiency
+ * over ranks for every mode and kernel.
+ * </p>
+ * <p>
+ * The mpirun command is set by the imageconvolution.mpirun system property,
+ * its extra arguments, e.g. --oversubscribe, by imageconvolution.mpirunArgs.
+ * All imageconvolution.* properties are passed on to the ranks. Unless
+ * imageconvolution.threads is set, the cores are divided between the ranks.
+ * </p>
+ * <p>
+ * {@code ScalingBenchmark generate path columns rows frames [type]} only
+ * writes a synthetic image.
+ * </p>
+ */
+public class ScalingBenchmark {
+
+	private static final String MPIRUN = System.getProperty("imageconvolution.mpirun", "mpirun");
+	private static final String MPIRUN_ARGS = System.getProperty("imageconvolution.mpirunArgs", "");
+	//Line printed by rank 0 of a run with the time of the convolution in nanoseconds.
+	private static final String TIME_PREFIX = "Scaling time ns: ";
+
+	//One configuration of the sweep, nanos is -1 if it failed.
+	static class Run {
+		final String mode;
+		final int ranks;
+		final int kernel;
+		final int rows;
+		long nanos = -1;
+
+		Run(String mode, int ranks, int kernel, int rows)
+		{
+			this.mode = mode;
+			this.ranks = ranks;
+			this.kernel = kernel;
+			this.rows = rows;
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		if(args.length > 0 && args[0].equals("run"))
+		{
+			runRank(args);
+			return;
+		}
+		if(args.length > 0 && args[0].equals("generate"))
+		{
+			if(args.length < 5)
+			{
+				System.out.println("Format for generate: path columns rows frames [type]");
+				return;
+			}
+			generate(new File(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]),
+					args.length > 5 ? PixelType.valueOf(args[5]) : PixelType.UINT8, 1);
+			return;
+		}
+		if(args.length < 5)
+		{
+			System.out.println("Format: columns rows frames ranks kernels [type] [repeats] [output]");
+			return;
+		}
+
+		int columns = Integer.parseInt(args[0]);
+		int rows = Integer.parseInt(args[1]);
+		int frames = Integer.parseInt(args[2]);
+		int[] rankCounts = parseList(args[3]);
+		int[] kernels = parseList(args[4]);
+		PixelType type = args.length > 5 ? PixelType.valueOf(args[5]) : PixelType.UINT8;
+		int repeats = args.length > 6 ? Integer.parseInt(args[6]) : 3;
+		String output = args.length > 7 ? args[7] : "scaling";
+
+		List<Run> runs = new ArrayList<Run>();
+		for(String mode : new String[] {"strong", "weak"})
+		{
+			for(int kernel : kernels)
+			{
+				for(int ranks : rankCounts)
+				{
+					runs.add(new Run(mode, ranks, kernel, mode.equals("strong") ? rows : rows * ranks));
+				}
+			}
+		}
+
+		File dir = Files.createTempDirectory("scaling").toFile();
+		Map<Integer, File> images = new HashMap<Integer, File>();
+		try
+		{
+			for(Run run : runs)
+			{
+				//Images are generated once per height and shared by all kernels and modes.
+				File image = images.get(run.rows);
+				if(image == null)
+				{
+					image = new File(dir, "input_" + run.rows + ".raw");
+					generate(image, columns, run.rows, frames, type, run.rows);
+					images.put(run.rows, image);
+				}
+				for(int i = 0; i < repeats; i++)
+				{
+					long nanos = launch(image, new File(dir, "result.raw"), columns, run.rows, frames, run.kernel, type, run.ranks);
+					if(nanos < 0)
+					{
+						break;
+					}
+					run.nanos = run.nanos < 0 ? nanos : Math.min(run.nanos, nanos);
+				}
+				System.out.println(run.mode + " scaling, kernel " + run.kernel + ", " + run.ranks + " ranks: "
+						+ (run.nanos < 0 ? "failed" : run.nanos / 1000000 + " ms"));
+			}
+		}
+		finally
+		{
+			for(File image : images.values())
+			{
+				image.delete();
+			}
+			new File(dir, "result.raw").delete();
+			dir.delete();
+		}
+
+		writeCsv(new File(output + ".csv"), runs, columns, frames);
+		writeJson(new File(output + ".json"), runs, columns, rows, frames, type);
+		System.out.println("Results written to " + output + ".csv and " + output + ".json.");
+	}
+
+	private static int[] parseList(String list)
+	{
+		String[] words = list.split(",");
+		int[] values = new int[words.length];
+		for(int i = 0; i < words.length; i++)
+		{
+			values[i] = Integer.parseInt(words[i].trim());
+		}
+		return values;
+	}
+
+	//Writes a raw image of random pixels, frame by frame. Floats are drawn from 0 - 1000.
+	public static void generate(File file, int columns, int rows, int frames, PixelType type, long seed) throws IOException
+	{
+		Random random = new Random(seed);
+		ByteBuffer frame = ByteBuffer.allocate(columns * rows * type.getBytes()).order(PixelType.ORDER);
+		try(RawImageWriter writer = new RawImageWriter(file, columns, rows, type))
+		{
+			for(int frameNum = 0; frameNum < frames; frameNum++)
+			{
+				frame.clear();
+				for(int i = 0; i < columns * rows; i++)
+				{
+					switch(type) {
+					  case UINT16:
+						  frame.putShort((short)random.nextInt(65536));
+						  break;
+					  case FLOAT32:
+						  frame.putFloat(random.nextFloat() * 1000);
+						  break;
+					  default:
+						  frame.put((byte)random.nextInt(256));
+					}
+				}
+				frame.clear();
+				writer.writeFrame(frameNum, frame);
+			}
+		}
+	}
+
+	//Convolves the image with mpirun and returns the time reported by rank 0, -1 if the run failed.
+	private static long launch(File image, File result, int columns, int rows, int frames, int kernel, PixelType type, int ranks)
+			throws IOException, InterruptedException
+	{
+		List<String> command = new ArrayList<String>();
+		command.add(MPIRUN);
+		for(String arg : MPIRUN_ARGS.trim().split("\\s+"))
+		{
+			if(!arg.isEmpty())
+			{
+				command.add(arg);
+			}
+		}
+		command.add("-np");
+		command.add(Integer.toString(ranks));
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		if(System.getProperty("java.library.path") != null)
+		{
+			command.add("-Djava.library.path=" + System.getProperty("java.library.path"));
+		}
+		for(String name : System.getProperties().stringPropertyNames())
+		{
+			if(name.startsWith("imageconvolution."))
+			{
+				command.add("-D" + name + "=" + System.getProperty(name));
+			}
+		}
+		if(System.getProperty("imageconvolution.threads") == null)
+		{
+			command.add("-Dimageconvolution.threads=" + Math.max(1, Runtime.getRuntime().availableProcessors() / ranks));
+		}
+		command.add(ScalingBenchmark.class.getName());
+		command.add("run");
+		command.add(image.getPath());
+		command.add(Integer.toString(columns));
+		command.add(Integer.toString(rows));
+		command.add(Integer.toString(frames));
+		command.add(Integer.toString(kernel));
+		command.add(type.name());
+		command.add(result.getPath());
+
+		result.delete();
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		long nanos = -1;
+		StringBuilder log = new StringBuilder();
+		try(BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8)))
+		{
+			String line;
+			while((line = in.readLine()) != null)
+			{
+				log.append(line).append('\n');
+				if(line.startsWith(TIME_PREFIX))
+				{
+					nanos = Long.parseLong(line.substring(TIME_PREFIX.length()).trim());
+				}
+			}
+		}
+		//A run that returned early prints its time as well, only a complete result counts.
+		boolean complete = result.length() == (long)columns * rows * frames * type.getBytes();
+		if(process.waitFor() != 0 || nanos < 0 || !complete)
+		{
+			System.out.print(log);
+			return -1;
+		}
+		return nanos;
+	}
+
+	//Started by mpirun on every rank: convolves the image and prints the time on rank 0.
+	private static void runRank(String[] args) throws Exception
+	{
+		MPI.Init(args);
+		try
+		{
+			MPI.COMM_WORLD.barrier();
+			long startTime = System.nanoTime();
+			ImageConvolution.convolve(args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]),
+					Integer.parseInt(args[5]), PixelType.valueOf(args[6]), false, new File(args[7]));
+			MPI.COMM_WORLD.barrier();
+			if(MPI.COMM_WORLD.getRank() == 0)
+			{
+				System.out.println(TIME_PREFIX + (System.nanoTime() - startTime));
+			}
+		}
+		finally
+		{
+			MPI.Finalize();
+		}
+	}
+
+	//Successful run of the same mode and kernel with the fewest ranks.
+	private static Run getBase(List<Run> runs, Run run)
+	{
+		Run base = null;
+		for(Run other : runs)
+		{
+			if(other.mode.equals(run.mode) && other.kernel == run.kernel && other.nanos > 0
+					&& (base == null || other.ranks < base.ranks))
+			{
+				base = other;
+			}
+		}
+		return base;
+	}
+
+	//Speedup against the base run. Weak scaling does ranks / base ranks times more work in the same time when ideal.
+	private static double getSpeedup(Run base, Run run)
+	{
+		double speedup = (double)base.nanos / run.nanos;
+		return run.mode.equals("weak") ? speedup * run.ranks / base.ranks : speedup;
+	}
+
+	private static double getEfficiency(Run base, Run run)
+	{
+		return getSpeedup(base, run) * base.ranks / run.ranks;
+	}
+
+	private static double getMpixels(Run run, int columns, int frames)
+	{
+		return (double)columns * run.rows * frames / run.nanos * 1000;
+	}
+
+	static void writeCsv(File file, List<Run> runs, int columns, int frames) throws IOException
+	{
+		try(PrintWriter out = new PrintWriter(file, "UTF-8"))
+		{
+			out.println("mode,kernel,ranks,columns,rows,frames,wall_ms,mpixels_per_s,speedup,efficiency");
+			for(Run run : runs)
+			{
+				Run base = getBase(runs, run);
+				if(run.nanos < 0 || base == null)
+				{
+					out.println(run.mode + "," + run.kernel + "," + run.ranks + "," + columns + "," + run.rows + "," + frames + ",,,,");
+					continue;
+				}
+				out.println(String.format(Locale.ROOT, "%s,%d,%d,%d,%d,%d,%.3f,%.3f,%.3f,%.3f", run.mode, run.kernel, run.ranks, columns, run.rows, frames,
+						run.nanos / 1e6, getMpixels(run, columns, frames), getSpeedup(base, run), getEfficiency(base, run)));
+			}
+		}
+	}
+
+	static void writeJson(File file, List<Run> runs, int columns, int rows, int frames, PixelType type) throws IOException
+	{
+		//Curves of every mode and kernel, in the order of the sweep.
+		Map<String, List<Run>> curves = new LinkedHashMap<String, List<Run>>();
+		for(Run run : runs)
+		{
+			String key = run.mode + " " + run.kernel;
+			if(!curves.containsKey(key))
+			{
+				curves.put(key, new ArrayList<Run>());
+			}
+			curves.get(key).add(run);
+		}
+
+		try(PrintWriter out = new PrintWriter(file, "UTF-8"))
+		{
+			out.println("{");
+			out.println("  \"image\": {\"columns\": " + columns + ", \"rows\": " + rows + ", \"frames\": " + frames + ", \"type\": \"" + type + "\"},");
+			out.println("  \"runs\": [");
+			for(int i = 0; i < runs.size(); i++)
+			{
+				Run run = runs.get(i);
+				Run base = getBase(runs, run);
+				boolean ok = run.nanos > 0 && base != null;
+				out.print("    {\"mode\": \"" + run.mode + "\", \"kernel\": " + run.kernel + ", \"ranks\": " + run.ranks + ", \"rows\": " + run.rows
+						+ ", \"wallMs\": " + (ok ? String.format(Locale.ROOT, "%.3f", run.nanos / 1e6) : "null")
+						+ ", \"mpixelsPerS\": " + (ok ? String.format(Locale.ROOT, "%.3f", getMpixels(run, columns, frames)) : "null")
+						+ ", \"speedup\": " + (ok ? String.format(Locale.ROOT, "%.3f", getSpeedup(base, run)) : "null")
+						+ ", \"efficiency\": " + (ok ? String.format(Locale.ROOT, "%.3f", getEfficiency(base, run)) : "null") + "}");
+				out.println(i < runs.size() - 1 ? "," : "");
+			}
+			out.println("  ],");
+			out.println("  \"curves\": [");
+			int curve = 0;
+			for(List<Run> points : curves.values())
+			{
+				StringBuilder ranks = new StringBuilder();
+				StringBuilder wall = new StringBuilder();
+				StringBuilder efficiency = new StringBuilder();
+				for(Run run : points)
+				{
+					Run base = getBase(runs, run);
+					boolean ok = run.nanos > 0 && base != null;
+					String separator = ranks.length() > 0 ? ", " : "";
+					ranks.append(separator).append(run.ranks);
+					wall.append(separator).append(ok ? String.format(Locale.ROOT, "%.3f", run.nanos / 1e6) : "null");
+					efficiency.append(separator).append(ok ? String.format(Locale.ROOT, "%.3f", getEfficiency(base, run)) : "null");
+				}
+				out.print("    {\"mode\": \"" + points.get(0).mode + "\", \"kernel\": " + points.get(0).kernel + ", \"ranks\": [" + ranks
+						+ "], \"wallMs\": [" + wall + "], \"efficiency\": [" + efficiency + "]}");
+				out.println(++curve < curves.size() ? "," : "");
+			}
+			out.println("  ]");
+			out.println("}");
+		}
+	}
+}
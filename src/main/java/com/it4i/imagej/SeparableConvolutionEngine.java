@@ -0,0 +1,83 @@
+package com.it4i.imagej;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Engine for kernels of rank 1, convolving the rows with the horizontal vector
+ * and then the columns with the vertical one. Denominator is applied in each
+ * of the two passes.
+ * <p>
+ * The horizontal pass of the strip is done in the interior phase and kept for
+ * the vertical pass of the top and bottom rows in the border phase. Cores of
+ * both passes are convolved by {@link FlatConvolutionCore}.
+ * </p>
+ */
+public class SeparableConvolutionEngine implements ConvolutionEngine {
+
+	private final int[][] kernel;
+	private final long denom;
+	private final int[] vectorX;
+	private final int[] vectorY;
+	private final Normalizer normalizer;
+	private ByteBuffer horizontal = null;
+
+	public SeparableConvolutionEngine(int[][] kernel, long denom)
+	{
+		if(!ImageConvolution.isOddAndSym(kernel))
+		{
+			throw new IllegalArgumentException("Invalid kernel");
+		}
+		this.kernel = kernel;
+		this.denom = denom;
+		vectorX = new int[kernel.length];
+		vectorY = new int[kernel.length];
+		for(int i = 0; i < kernel.length; i++)
+		{
+			vectorX[i] = kernel[i][0];
+			vectorY[i] = kernel[0][i];
+		}
+		normalizer = new Normalizer(denom);
+	}
+
+	//Uses the 1D factors and the denominator of a pass cached by the descriptor.
+	public SeparableConvolutionEngine(KernelDescriptor descriptor)
+	{
+		this.kernel = descriptor.getKernel();
+		this.denom = descriptor.getPassDenom();
+		vectorX = descriptor.getVectorX();
+		vectorY = descriptor.getVectorY();
+		normalizer = new Normalizer(denom);
+	}
+
+	@Override
+	public ByteBuffer convolveInterior(ByteBuffer inputArray, int columns, int rows)
+	{
+		byte[] rowPass = new byte[inputArray.capacity()];
+		FlatConvolutionCore.horizontalCore(FlatConvolutionCore.toArray(inputArray), rowPass, columns, rows, vectorX, normalizer);
+		//Sides are written through the buffer straight into the array.
+		horizontal = ByteBuffer.wrap(rowPass);
+		ImageConvolution.twoDconvolutionHorPassSides(inputArray, horizontal, columns, rows, kernel, denom);
+
+		ByteBuffer ret = ImageConvolution.newBuffer(inputArray.capacity());
+		FlatConvolutionCore.verticalCore(rowPass, ret, columns, rows, vectorY, normalizer);
+		return ret;
+	}
+
+	@Override
+	public void convolveBorder(ByteBuffer inputArray, ByteBuffer out, int columns, int rows, ByteBuffer up, ByteBuffer down)
+	{
+		int overlay = kernel.length / 2;
+		ByteBuffer horUp = null;
+		ByteBuffer horDown = null;
+		if(up != null)
+		{
+			horUp = ImageConvolution.twoDconvolutionHorPass(up, columns, overlay, kernel, denom);
+		}
+		if(down != null)
+		{
+			horDown = ImageConvolution.twoDconvolutionHorPass(down, columns, overlay, kernel, denom);
+		}
+		ImageConvolution.twoDconvolutionFastVerBorder(horizontal, out, columns, rows, kernel, denom, horUp, horDown);
+		horizontal = null;
+	}
+}
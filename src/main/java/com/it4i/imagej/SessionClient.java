@@ -0,0 +1,112 @@
+package com.it4i.imagej;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Client of a running {@link ConvolutionSession}, used by the ImageJ command
+ * when the {@code imageconvolution.session} system property holds the port of
+ * the session.
+ * <p>
+ * The image is written into a temporary raw file and loaded by the session
+ * only when it differs from the one the session holds, so running the command
+ * again with another kernel sends just the kernel number.
+ * </p>
+ */
+public class SessionClient {
+
+	//Key of the image loaded by the last load command and the file it was written to.
+	private static String loadedKey = null;
+	private static File rawFile = null;
+
+	//Key of the image for convolve, a SHA-256 digest of the pixels with the dimensions and the type. Pixels edited
+	//since the last run give another key, so the image is loaded again.
+	public static String getKey(byte[] pixels, int columns, int rows, int frames, PixelType type)
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			//Every Java platform has SHA-256.
+			throw new IllegalStateException(e);
+		}
+		StringBuilder key = new StringBuilder(columns + "x" + rows + "x" + frames + ":" + type + ":");
+		for(byte value : digest.digest(pixels))
+		{
+			key.append(String.format("%02x", value));
+		}
+		return key.toString();
+	}
+
+	//Convolves pixels with the kernel in the session. Key identifies the image, pixels are written and loaded only if it changes
+	//or the session no longer holds it, e.g. after a restart or a load by another client. The key goes with the convolve too,
+	//so the session rejects it if the image changed in between. After any failure the image is loaded again by the next run.
+	public static synchronized String convolve(int port, String key, byte[] pixels, int columns, int rows, int frames, PixelType type,
+			int kernelNumber, File result) throws IOException
+	{
+		try(Socket socket = new Socket(InetAddress.getLoopbackAddress(), port))
+		{
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+
+			if(!key.equals(loadedKey) || !request(in, out, "status").endsWith(" " + key))
+			{
+				load(in, out, key, pixels, columns, rows, frames, type);
+			}
+			return request(in, out, "convolve\t" + kernelNumber + "\t" + result.getAbsolutePath() + "\t" + key);
+		}
+		catch(IOException | RuntimeException e)
+		{
+			loadedKey = null;
+			throw e;
+		}
+	}
+
+	//Writes the pixels into the raw file and loads it into the session.
+	private static void load(BufferedReader in, PrintWriter out, String key, byte[] pixels, int columns, int rows, int frames, PixelType type)
+			throws IOException
+	{
+		if(rawFile == null)
+		{
+			rawFile = File.createTempFile("imageconvolution", ".raw");
+			rawFile.deleteOnExit();
+		}
+		try(OutputStream stream = new FileOutputStream(rawFile))
+		{
+			stream.write(pixels);
+		}
+		loadedKey = null;
+		request(in, out, "load\t" + rawFile.getAbsolutePath() + "\t" + columns + "\t" + rows + "\t" + frames + "\t" + type.name() + "\t" + key);
+		loadedKey = key;
+	}
+
+	//Sends one command and returns the reply without the OK. Words of the commands are separated by tabs, which do not
+	//appear in the paths of Fiji or the temp directory, unlike spaces. Errors of the session are thrown.
+	private static String request(BufferedReader in, PrintWriter out, String command) throws IOException
+	{
+		out.println(command);
+		String reply = in.readLine();
+		if(reply == null)
+		{
+			throw new IOException("Session closed the connection");
+		}
+		if(!reply.startsWith("OK"))
+		{
+			throw new IOException("Session failed: " + reply);
+		}
+		return reply.substring(2).trim();
+	}
+}
@@ -0,0 +1,61 @@
+package com.it4i.imagej;
+
+/**
+ * Split of the rows of a frame into horizontal strips, one per node, for
+ * {@code scatterv} and {@code gatherv}. The first {@code rows % parts} strips
+ * get one row more than the others, so the frame does not need any padding.
+ */
+public class StripDecomposition {
+
+	private final int columns;
+	private final int[] stripRows;
+	private final int[] counts;
+	private final int[] displs;
+
+	public StripDecomposition(int columns, int rows, int parts)
+	{
+		this.columns = columns;
+		stripRows = new int[parts];
+		counts = new int[parts];
+		displs = new int[parts];
+
+		int displ = 0;
+		for(int part = 0; part < parts; part++)
+		{
+			stripRows[part] = rows / parts + (part < rows % parts ? 1 : 0);
+			counts[part] = stripRows[part] * columns;
+			displs[part] = displ;
+			displ += counts[part];
+		}
+	}
+
+	//Number of rows of the strip.
+	public int getRows(int part)
+	{
+		return stripRows[part];
+	}
+
+	//Index of the first row of the strip in the frame.
+	public int getFirstRow(int part)
+	{
+		return displs[part] / columns;
+	}
+
+	//Number of rows of the thinnest strip.
+	public int getMinRows()
+	{
+		return stripRows[stripRows.length - 1];
+	}
+
+	//Number of pixels of every strip, sendcount/recvcount argument of scatterv/gatherv.
+	public int[] getCounts()
+	{
+		return counts;
+	}
+
+	//Offset of every strip in the frame, displs argument of scatterv/gatherv.
+	public int[] getDispls()
+	{
+		return displs;
+	}
+}
@@ -0,0 +1,358 @@
+package com.it4i.imagej;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import mpi.MPI;
+import mpi.MPIException;
+import mpi.Request;
+import mpi.Status;
+
+/**
+ * Dynamic split of the frames for nodes of unequal speed. Instead of one
+ * strip per node, every frame is cut into many tiles of whole rows, each with
+ * half a kernel of rows above and below it. Node 0 holds the frame and hands
+ * the tiles out on request: a node asks for the next tile whenever it is done
+ * with the previous one and returns its result with the request, which node 0
+ * places into the frame by the offset of the tile. Fast nodes so take more
+ * tiles and the frame no longer waits for the slowest node.
+ * <p>
+ * Node 0 convolves tiles too and serves the requests between them. The halo
+ * makes a tile a small image of its own, only its rows on the border of the
+ * frame are mirrored, so the result equals the whole frame convolved at once.
+ * </p>
+ * <p>
+ * Enabled by the imageconvolution.tilesPerNode system property, the number of
+ * tiles per node and frame. After the run every node reports its tiles and
+ * pixels per second, compared with the time the even split of the strips
+ * would have taken at these speeds.
+ * </p>
+ */
+public class TileScheduler {
+
+	//Tiles per node and frame, 0 keeps the even split of the strips.
+	public static final int TILES_PER_NODE = Integer.getInteger("imageconvolution.tilesPerNode", 0);
+
+	private static final int REQUEST_TAG = 110;
+	private static final int ASSIGN_TAG = 111;
+	private static final int RESULT_TAG = 112;
+	private static final int TILE_TAG = 113;
+
+	//Messages between node 0 and the workers. Implemented over MPI, tests pass messages between threads.
+	interface Link {
+		//Next request on node 0 as {source, frame, tile}. Returns null if wait is false and no request has arrived.
+		int[] receiveRequest(boolean wait) throws MPIException;
+
+		//Asks node 0 for a tile of the frame, tile is the previous tile of the frame or -1.
+		void sendRequest(int frame, int tile) throws MPIException;
+
+		void sendAssign(int worker, int tile) throws MPIException;
+
+		int receiveAssign() throws MPIException;
+
+		//Sends or receives count pixels of a tile or of its result.
+		void sendPixels(ByteBuffer pixels, int count, int rank, boolean result) throws MPIException;
+
+		void receivePixels(ByteBuffer pixels, int count, int rank, boolean result) throws MPIException;
+	}
+
+	private final Link link;
+	private final ConvolutionEngine engine;
+	private final PixelType type;
+	private final int columns;
+	private final int rows;
+	private final int overlay;
+	private final int tileRows;
+	private final int tileCount;
+	private final int rowBytes;
+	//Workers that already asked for a tile of the next frame while node 0 was finishing this one.
+	private final List<Integer> nextFrameWorkers = new ArrayList<Integer>();
+
+	//Work of this node: tiles, pixels and nanoseconds spent convolving them.
+	final long[] work = new long[3];
+
+	TileScheduler(Link link, ConvolutionEngine engine, PixelType type, int columns, int rows, int overlay, int tileRows)
+	{
+		this.link = link;
+		this.engine = engine;
+		this.type = type;
+		this.columns = columns;
+		this.rows = rows;
+		this.overlay = overlay;
+		this.tileRows = tileRows;
+		//Rows left over are added to the last tile, so no tile is lower than tileRows.
+		this.tileCount = Math.max(1, rows / tileRows);
+		this.rowBytes = columns * type.getBytes();
+	}
+
+	//Rows of a tile for the frame split between nodes. A tile with the halo on one side is at least as high as the kernel.
+	static int getTileRows(int rows, int nodes, int tilesPerNode, int overlay)
+	{
+		return Math.max(overlay + 1, rows / Math.max(1, nodes * tilesPerNode));
+	}
+
+	//Convolves all frames of the source split into tiles. Source and writer are needed only on rank 0.
+	public static void convolve(FrameSource source, RawImageWriter writer, ConvolutionEngine engine,
+			int columns, int rows, int numOfFrames, int overlay, PixelType type) throws MPIException, IOException {
+		int world_rank = MPI.COMM_WORLD.getRank(),
+        world_size = MPI.COMM_WORLD.getSize();
+
+		int tileRows = getTileRows(rows, world_size, TILES_PER_NODE, overlay);
+		TileScheduler scheduler = new TileScheduler(new MpiLink(type), engine, type, columns, rows, overlay, tileRows);
+		if(world_rank == 0)
+		{
+			System.out.println("Using " + scheduler.tileCount + " tiles of " + tileRows + " rows per frame.");
+		}
+
+		long startTime = System.nanoTime();
+		if(world_rank == 0)
+		{
+			//Next frames are read and previous ones written in the background while the tiles are handed out.
+			FramePipeline pipeline = new FramePipeline(source, writer, columns, rows, type, 0, numOfFrames, FramePipeline.DEFAULT_DEPTH);
+			try
+			{
+				for(int frameNum = 0; frameNum < numOfFrames; frameNum++)
+				{
+					ByteBuffer in = pipeline.getFrame(frameNum);
+					ByteBuffer ret = pipeline.getResultBuffer();
+					scheduler.serveFrame(frameNum, in, ret, world_size - 1);
+					pipeline.releaseFrame(in);
+					pipeline.writeFrame(frameNum, ret);
+				}
+			}
+			finally
+			{
+				pipeline.close();
+			}
+		}
+		else
+		{
+			ByteBuffer tile = scheduler.newTileBuffer();
+			for(int frameNum = 0; frameNum < numOfFrames; frameNum++)
+			{
+				scheduler.workFrame(frameNum, tile);
+			}
+		}
+		long elapsedTime = System.nanoTime() - startTime;
+
+		long[] allWork = new long[world_rank == 0 ? 3 * world_size : 3];
+		MPI.COMM_WORLD.gather(scheduler.work, 3, MPI.LONG, allWork, 3, MPI.LONG, 0);
+		if(world_rank == 0)
+		{
+			report(allWork, world_size, (long)columns * rows * numOfFrames, elapsedTime);
+		}
+	}
+
+	//Buffer for the biggest tile with its halo, the last tile takes the rows left over.
+	ByteBuffer newTileBuffer()
+	{
+		return ImageConvolution.newBuffer((2 * tileRows + 2 * overlay) * rowBytes);
+	}
+
+	//First row of the tile in the frame.
+	private int getFirstRow(int tile)
+	{
+		return tile * tileRows;
+	}
+
+	private int getRows(int tile)
+	{
+		return tile == tileCount - 1 ? rows - getFirstRow(tile) : tileRows;
+	}
+
+	//First row of the tile with its halo. There is no halo beyond the border of the frame.
+	private int getHaloRow(int tile)
+	{
+		return Math.max(0, getFirstRow(tile) - overlay);
+	}
+
+	private int getHaloRows(int tile)
+	{
+		return Math.min(rows, getFirstRow(tile) + getRows(tile) + overlay) - getHaloRow(tile);
+	}
+
+	//Convolves the tile with its halo and returns the whole convolved buffer.
+	private ByteBuffer convolveTile(int tile, ByteBuffer withHalo)
+	{
+		long start = System.nanoTime();
+		ByteBuffer convolved = engine.convolve(withHalo, columns, getHaloRows(tile), null, null);
+		work[0]++;
+		work[1] += (long)getRows(tile) * columns;
+		work[2] += System.nanoTime() - start;
+		return convolved;
+	}
+
+	//Hands the tiles of the frame out to the workers and convolves tiles of its own while nobody asks.
+	//A request carries the frame and the previous tile of the worker in it, -1 for none, followed by its result.
+	//The reply is the next tile or -1 once all tiles are handed out, the worker then asks for the next frame.
+	//Such requests may come before this frame is done, they are kept and served first by the next frame.
+	void serveFrame(int frameNum, ByteBuffer in, ByteBuffer ret, int workers) throws MPIException
+	{
+		List<Integer> waiting = new ArrayList<Integer>(nextFrameWorkers);
+		nextFrameWorkers.clear();
+		int next = 0;
+		int released = 0;
+		while(released < workers)
+		{
+			int worker;
+			int done = -1;
+			if(!waiting.isEmpty())
+			{
+				worker = waiting.remove(0);
+			}
+			else
+			{
+				//Pending requests are served first, so no worker waits for more than one tile of node 0.
+				int[] request = link.receiveRequest(next >= tileCount);
+				if(request == null)
+				{
+					int tile = next++;
+					ByteBuffer convolved = convolveTile(tile, ImageConvolution.slice(in, getHaloRow(tile) * rowBytes, getHaloRows(tile) * rowBytes));
+					placeTile(tile, convolved, ret);
+					continue;
+				}
+				worker = request[0];
+				if(request[1] != frameNum)
+				{
+					//Worker released from this frame, it carries no result.
+					nextFrameWorkers.add(worker);
+					continue;
+				}
+				done = request[2];
+			}
+			if(done >= 0)
+			{
+				link.receivePixels(ImageConvolution.slice(ret, getFirstRow(done) * rowBytes, getRows(done) * rowBytes), getRows(done) * columns, worker, true);
+			}
+			int tile = next < tileCount ? next++ : -1;
+			link.sendAssign(worker, tile);
+			if(tile < 0)
+			{
+				released++;
+			}
+			else
+			{
+				link.sendPixels(ImageConvolution.slice(in, getHaloRow(tile) * rowBytes, getHaloRows(tile) * rowBytes), getHaloRows(tile) * columns, worker, false);
+			}
+		}
+	}
+
+	//Copies the rows of the tile without its halo into the frame.
+	private void placeTile(int tile, ByteBuffer convolved, ByteBuffer ret)
+	{
+		int length = getRows(tile) * rowBytes;
+		ImageConvolution.slice(ret, getFirstRow(tile) * rowBytes, length)
+				.put(ImageConvolution.slice(convolved, (getFirstRow(tile) - getHaloRow(tile)) * rowBytes, length));
+	}
+
+	//Asks node 0 for tiles of the frame until it has none left.
+	void workFrame(int frameNum, ByteBuffer buffer) throws MPIException
+	{
+		int done = -1;
+		ByteBuffer convolved = null;
+		while(true)
+		{
+			link.sendRequest(frameNum, done);
+			if(done >= 0)
+			{
+				link.sendPixels(ImageConvolution.slice(convolved, (getFirstRow(done) - getHaloRow(done)) * rowBytes, getRows(done) * rowBytes),
+						getRows(done) * columns, 0, true);
+			}
+			int tile = link.receiveAssign();
+			if(tile < 0)
+			{
+				return;
+			}
+			ByteBuffer withHalo = ImageConvolution.slice(buffer, 0, getHaloRows(tile) * rowBytes);
+			link.receivePixels(withHalo, getHaloRows(tile) * columns, 0, false);
+			convolved = convolveTile(tile, withHalo);
+			done = tile;
+		}
+	}
+
+	private static class MpiLink implements Link {
+
+		private final PixelType type;
+		//Request of node 0 posted for any worker, kept until it arrives.
+		private final IntBuffer request = MPI.newIntBuffer(2);
+		private Request pending = null;
+
+		MpiLink(PixelType type)
+		{
+			this.type = type;
+		}
+
+		@Override
+		public int[] receiveRequest(boolean wait) throws MPIException
+		{
+			if(pending == null)
+			{
+				pending = MPI.COMM_WORLD.iRecv(request, 2, MPI.INT, MPI.ANY_SOURCE, REQUEST_TAG);
+			}
+			Status status = wait ? pending.waitStatus() : pending.testStatus();
+			if(status == null)
+			{
+				return null;
+			}
+			pending = null;
+			return new int[] {status.getSource(), request.get(0), request.get(1)};
+		}
+
+		@Override
+		public void sendRequest(int frame, int tile) throws MPIException
+		{
+			MPI.COMM_WORLD.send(new int[] {frame, tile}, 2, MPI.INT, 0, REQUEST_TAG);
+		}
+
+		@Override
+		public void sendAssign(int worker, int tile) throws MPIException
+		{
+			MPI.COMM_WORLD.send(new int[] {tile}, 1, MPI.INT, worker, ASSIGN_TAG);
+		}
+
+		@Override
+		public int receiveAssign() throws MPIException
+		{
+			int[] assign = new int[1];
+			MPI.COMM_WORLD.recv(assign, 1, MPI.INT, 0, ASSIGN_TAG);
+			return assign[0];
+		}
+
+		@Override
+		public void sendPixels(ByteBuffer pixels, int count, int rank, boolean result) throws MPIException
+		{
+			MPI.COMM_WORLD.send(pixels, count, type.getMpiType(), rank, result ? RESULT_TAG : TILE_TAG);
+		}
+
+		@Override
+		public void receivePixels(ByteBuffer pixels, int count, int rank, boolean result) throws MPIException
+		{
+			MPI.COMM_WORLD.recv(pixels, count, type.getMpiType(), rank, result ? RESULT_TAG : TILE_TAG);
+		}
+	}
+
+	//Prints the work of every node and the time an even split would have taken, the slowest node convolving
+	//its share of the pixels at its measured speed.
+	static void report(long[] allWork, int nodes, long totalPixels, long elapsedTime)
+	{
+		double evenSplit = 0;
+		for(int rank = 0; rank < nodes; rank++)
+		{
+			long tiles = allWork[3 * rank];
+			long pixels = allWork[3 * rank + 1];
+			long nanos = allWork[3 * rank + 2];
+			double pixelsPerSecond = nanos > 0 ? pixels * 1e9 / nanos : 0;
+			System.out.println(String.format("Node %d: %d tiles, %d pixels, busy %d ms, %.1f Mpixels/s.",
+					rank, tiles, pixels, nanos / 1000000, pixelsPerSecond / 1e6));
+			if(pixelsPerSecond > 0)
+			{
+				evenSplit = Math.max(evenSplit, (double)totalPixels / nodes / pixelsPerSecond * 1000);
+			}
+		}
+		System.out.println(String.format("Tiles done in %d ms, an even split would take about %.0f ms at these speeds.",
+				elapsedTime / 1000000, evenSplit));
+	}
+}
@@ -0,0 +1,51 @@
+package com.it4i.imagej;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Engine for unsigned 16-bit pixels. Sums are divided by the denominator and
+ * clamped to 0 - 65535, the same way 8-bit sums are clamped to 0 - 255.
+ */
+public class UnsignedShortConvolutionEngine extends WideConvolutionEngine {
+
+	public static final int MAX_VALUE = 65535;
+
+	public UnsignedShortConvolutionEngine(KernelDescriptor descriptor)
+	{
+		super(descriptor, PixelType.UINT16, MAX_VALUE);
+	}
+
+	@Override
+	protected void load(ByteBuffer in, int offset, double[] target, int targetOffset, int length)
+	{
+		ShortBuffer pixels = PixelType.asShorts(in);
+		for(int i = 0; i < length; i++)
+		{
+			target[targetOffset + i] = pixels.get(offset + i) & 0xFFFF;
+		}
+	}
+
+	@Override
+	protected void store(double[] sums, ByteBuffer out, int offset, int length)
+	{
+		ShortBuffer pixels = PixelType.asShorts(out);
+		for(int i = 0; i < length; i++)
+		{
+			long acc = Math.round(sums[i]);
+			if(denom != 0)
+			{
+				acc /= denom;
+			}
+			if(acc > MAX_VALUE)
+			{
+				acc = MAX_VALUE;
+			}
+			if(acc < 0)
+			{
+				acc = 0;
+			}
+			pixels.put(offset + i, (short)acc);
+		}
+	}
+}
@@ -0,0 +1,347 @@
+package com.it4i.imagej;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import mpi.MPI;
+import mpi.MPIException;
+import mpi.Request;
+
+/**
+ * 3D convolution of a stack with a separable kernel, smoothing across the
+ * slices as well as within them. Every slice is convolved in x and y by the 2D
+ * engine of the kernel, the z pass then sums kernel.length of these passed
+ * slices weighted by the 1D factor of the kernel and divides them by its sum.
+ * <p>
+ * Slices are split into slabs, one per node. The first and the last half
+ * kernel of passed slices of a slab are exchanged with the neighbouring nodes
+ * as z-halos, so no slice is passed in x and y twice. Slices are read, passed
+ * and written one by one: a node holds its edge slices, the halos and one
+ * kernel extent of passed slices, not its whole slab. Slices beyond the ends
+ * of the stack are mirrored through the convolved slice.
+ * </p>
+ * <p>
+ * Every node reads its own slices, so the source must be available on all
+ * nodes. Otherwise the whole stack is convolved by node 0.
+ * </p>
+ */
+public class VolumeConvolution {
+
+	private final FrameSource source;
+	private final ConvolutionEngine engine;
+	private final PixelType type;
+	private final int columns;
+	private final int rows;
+	private final int slices;
+	private final int frameBytes;
+	private final int[] vector;
+	private final Normalizer normalizer;
+	private final long denom;
+	private final int kenDim;
+	private final int half;
+	//Slab of this node, <first, last).
+	private final int first;
+	private final int last;
+
+	//Passed edge slices of the slab, sent to the neighbours, and the halos received from them.
+	private ByteBuffer firstSlices;
+	private ByteBuffer lastSlices;
+	private ByteBuffer upHalo;
+	private ByteBuffer downHalo;
+	private final List<Request> downRequests = new ArrayList<Request>();
+	//Passed slices between the edges, slot slice % kenDim holds the slice ringSlices[slot].
+	private final ByteBuffer[] ring;
+	private final int[] ringSlices;
+
+	private VolumeConvolution(FrameSource source, KernelDescriptor descriptor, PixelType type, int columns, int rows, int slices, int first, int last)
+	{
+		this.source = source;
+		this.type = type;
+		this.columns = columns;
+		this.rows = rows;
+		this.slices = slices;
+		this.frameBytes = columns * rows * type.getBytes();
+		this.engine = ImageConvolution.createEngine(descriptor, columns, rows, type, false);
+		this.vector = descriptor.getVectorX();
+		long sum = 0;
+		for(int weight : vector)
+		{
+			sum += weight;
+		}
+		this.denom = descriptor.hasDenom() ? sum : 0;
+		this.normalizer = new Normalizer(denom);
+		this.kenDim = vector.length;
+		this.half = kenDim / 2;
+		this.first = first;
+		this.last = last;
+		this.ring = new ByteBuffer[kenDim];
+		this.ringSlices = new int[kenDim];
+		Arrays.fill(ringSlices, -1);
+	}
+
+	//Convolves the stack and saves the result into resultFile. With sourceOnEveryNode set every node reads its own slab,
+	//otherwise source is read only on rank 0 and the other nodes stay idle.
+	public static void convolve(FrameSource source, boolean sourceOnEveryNode, int columns, int rows, int slices, int kernelNumber,
+			PixelType type, File resultFile, long startTime) throws MPIException, IOException {
+
+		int world_rank = MPI.COMM_WORLD.getRank(),
+        world_size = MPI.COMM_WORLD.getSize();
+
+		KernelDescriptor descriptor = KernelRegistry.get(kernelNumber);
+		if(!descriptor.isSeparable())
+		{
+			if(world_rank == 0)
+			{
+				System.out.println("3D convolution needs a separable kernel, " + descriptor.getName() + " is not.");
+			}
+			return;
+		}
+
+		//Every slab has at least half a kernel of slices, so the halos come from the nearest neighbours only.
+		int half = descriptor.getSize() / 2;
+		int nodes = sourceOnEveryNode ? Math.max(1, Math.min(world_size, slices / Math.max(1, half))) : 1;
+		StripDecomposition slabs = new StripDecomposition(1, slices, nodes);
+		if(world_rank == 0)
+		{
+			System.out.println("Convolving " + slices + " slices in 3D on " + nodes + " nodes.");
+		}
+
+		//Every node of a slab writes its own slices.
+		RawImageWriter writer = ImageConvolution.openWriter(resultFile, columns, rows, type, nodes);
+		try
+		{
+			if(world_rank < nodes)
+			{
+				int first = slabs.getFirstRow(world_rank);
+				VolumeConvolution volume = new VolumeConvolution(source, descriptor, type, columns, rows, slices, first, first + slabs.getRows(world_rank));
+				volume.run(writer, world_rank, nodes);
+			}
+		}
+		finally
+		{
+			if(writer != null)
+			{
+				writer.close();
+			}
+		}
+
+		//Result is complete only when all nodes are done.
+		MPI.COMM_WORLD.barrier();
+		long elapsedTime = System.nanoTime() - startTime;
+		if(world_rank == 0)
+		{
+			System.out.println("Total execution time for 3D kernel " + descriptor.getSize() + "x" + descriptor.getSize() + "x" + descriptor.getSize()
+					+ " in Java in millis: " + elapsedTime/1000000);
+		}
+	}
+
+	private void run(RawImageWriter writer, int rank, int nodes) throws MPIException, IOException
+	{
+		//Edge slices are passed first, so they travel to the neighbours while the rest of the slab is passed.
+		int edge = Math.min(half, last - first);
+		Request[] sends = new Request[2];
+		List<Request> upRequests = new ArrayList<Request>();
+		if(half > 0)
+		{
+			firstSlices = passSlices(first, edge);
+			lastSlices = passSlices(last - edge, edge);
+			int haloPixels = half * columns * rows;
+			if(rank > 0)
+			{
+				upHalo = MPI.newByteBuffer(half * frameBytes);
+				upRequests.add(MPI.COMM_WORLD.iRecv(upHalo, haloPixels, type.getMpiType(), rank - 1, 98));
+				sends[0] = MPI.COMM_WORLD.iSend(firstSlices, haloPixels, type.getMpiType(), rank - 1, 98);
+			}
+			if(rank < nodes - 1)
+			{
+				downHalo = MPI.newByteBuffer(half * frameBytes);
+				downRequests.add(MPI.COMM_WORLD.iRecv(downHalo, haloPixels, type.getMpiType(), rank + 1, 98));
+				sends[1] = MPI.COMM_WORLD.iSend(lastSlices, haloPixels, type.getMpiType(), rank + 1, 98);
+			}
+		}
+		if(!upRequests.isEmpty())
+		{
+			Request.waitAll(upRequests.toArray(new Request[upRequests.size()]));
+		}
+
+		ByteBuffer out = MPI.newByteBuffer(frameBytes);
+		ByteBuffer[] window = new ByteBuffer[kenDim];
+		for(int slice = first; slice < last; slice++)
+		{
+			for(int dz = 0; dz < kenDim; dz++)
+			{
+				window[dz] = getPassed(mirror(slice, dz - half));
+			}
+			passZ(window, out);
+			writer.writeFrame(slice, out);
+		}
+
+		for(Request send : sends)
+		{
+			if(send != null)
+			{
+				send.waitFor();
+			}
+		}
+	}
+
+	//Passes count slices starting with slice in x and y into one buffer. Slab shorter than the halo is passed whole,
+	//its missing slices are never read.
+	private ByteBuffer passSlices(int slice, int count) throws IOException
+	{
+		ByteBuffer slab = MPI.newByteBuffer(half * frameBytes);
+		for(int i = 0; i < count; i++)
+		{
+			ByteBuffer passed = engine.convolve(source.getFrame(slice + i), columns, rows, null, null);
+			ImageConvolution.slice(slab, i * frameBytes, frameBytes).put(ImageConvolution.slice(passed, 0, frameBytes));
+		}
+		return slab;
+	}
+
+	//Slice read for the convolved slice with the offset dz, mirrored through it beyond the ends of the stack.
+	private int mirror(int slice, int dz)
+	{
+		int mirrored = slice + dz;
+		if(mirrored < 0 || mirrored >= slices)
+		{
+			mirrored = Math.max(0, Math.min(slices - 1, slice - dz));
+		}
+		return mirrored;
+	}
+
+	//Returns the slice passed in x and y, from the edges, the halos or the ring. Slices of the ring are passed on first use.
+	private ByteBuffer getPassed(int slice) throws MPIException, IOException
+	{
+		if(slice < first)
+		{
+			return ImageConvolution.slice(upHalo, (slice - first + half) * frameBytes, frameBytes);
+		}
+		if(slice >= last)
+		{
+			if(!downRequests.isEmpty())
+			{
+				Request.waitAll(downRequests.toArray(new Request[downRequests.size()]));
+				downRequests.clear();
+			}
+			return ImageConvolution.slice(downHalo, (slice - last) * frameBytes, frameBytes);
+		}
+		if(slice < first + half)
+		{
+			return ImageConvolution.slice(firstSlices, (slice - first) * frameBytes, frameBytes);
+		}
+		if(slice >= last - half)
+		{
+			return ImageConvolution.slice(lastSlices, (slice - last + half) * frameBytes, frameBytes);
+		}
+		int slot = slice % kenDim;
+		if(ringSlices[slot] != slice)
+		{
+			ring[slot] = engine.convolve(source.getFrame(slice), columns, rows, null, null);
+			ringSlices[slot] = slice;
+		}
+		return ring[slot];
+	}
+
+	//Sums the passed slices of the window weighted by the kernel vector into out.
+	private void passZ(final ByteBuffer[] window, final ByteBuffer out)
+	{
+		RowBandExecutor.forEachBand(0, rows, columns * type.getBytes() * kenDim, (rowStart, rowEnd) -> {
+			int from = rowStart * columns;
+			int length = (rowEnd - rowStart) * columns;
+			switch(type) {
+			  case UINT16:
+				  passZShort(window, out, from, length);
+				  break;
+			  case FLOAT32:
+				  passZFloat(window, out, from, length);
+				  break;
+			  default:
+				  passZByte(window, out, from, length);
+			}
+		});
+	}
+
+	private void passZByte(ByteBuffer[] window, ByteBuffer out, int from, int length)
+	{
+		long[] acc = new long[length];
+		for(int dz = 0; dz < kenDim; dz++)
+		{
+			long weight = vector[dz];
+			if(weight == 0)
+			{
+				continue;
+			}
+			ByteBuffer slice = window[dz];
+			for(int i = 0; i < length; i++)
+			{
+				acc[i] += weight * (slice.get(from + i) & 0xFF);
+			}
+		}
+		for(int i = 0; i < length; i++)
+		{
+			out.put(from + i, (byte)normalizer.normalize(acc[i]));
+		}
+	}
+
+	private void passZShort(ByteBuffer[] window, ByteBuffer out, int from, int length)
+	{
+		long[] acc = new long[length];
+		for(int dz = 0; dz < kenDim; dz++)
+		{
+			long weight = vector[dz];
+			if(weight == 0)
+			{
+				continue;
+			}
+			ShortBuffer slice = PixelType.asShorts(window[dz]);
+			for(int i = 0; i < length; i++)
+			{
+				acc[i] += weight * (slice.get(from + i) & 0xFFFF);
+			}
+		}
+		ShortBuffer pixels = PixelType.asShorts(out);
+		for(int i = 0; i < length; i++)
+		{
+			long value = acc[i];
+			if(denom != 0)
+			{
+				value /= denom;
+			}
+			pixels.put(from + i, (short)Math.max(0, Math.min(UnsignedShortConvolutionEngine.MAX_VALUE, value)));
+		}
+	}
+
+	private void passZFloat(ByteBuffer[] window, ByteBuffer out, int from, int length)
+	{
+		double[] acc = new double[length];
+		for(int dz = 0; dz < kenDim; dz++)
+		{
+			double weight = vector[dz];
+			if(weight == 0)
+			{
+				continue;
+			}
+			FloatBuffer slice = PixelType.asFloats(window[dz]);
+			for(int i = 0; i < length; i++)
+			{
+				acc[i] += weight * slice.get(from + i);
+			}
+		}
+		FloatBuffer pixels = PixelType.asFloats(out);
+		for(int i = 0; i < length; i++)
+		{
+			double value = acc[i];
+			if(denom != 0)
+			{
+				value /= denom;
+			}
+			pixels.put(from + i, (float)value);
+		}
+	}
+}
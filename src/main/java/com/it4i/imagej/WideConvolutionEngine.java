@@ -0,0 +1,254 @@
+package com.it4i.imagej;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Convolution of strips of the pixel types wider than a byte. Subclasses only
+ * read and write their primitive type, the sums are made here in doubles.
+ * <p>
+ * The strip is loaded once into a double array with room for half a kernel of
+ * rows above and below it, where the recv buffers are loaded in the border
+ * phase. Kernels whose low-rank split needs fewer operations are convolved as a
+ * sum of separable passes, the others directly. Sums of integer pixels stay
+ * exact, the split is used only while they fit in the 53 bits of a double.
+ * The denominator is applied once to the whole 2D sum.
+ * </p>
+ * <p>
+ * Pixels outside the image are mirrored through the convolved pixel, along
+ * each axis on its own, so the separable passes give the same sums as the
+ * direct loops.
+ * </p>
+ */
+public abstract class WideConvolutionEngine implements ConvolutionEngine {
+
+	//Sums of integers below 2^53 are exact in a double.
+	private static final double EXACT_LIMIT = 9007199254740992.0;
+
+	protected final PixelType type;
+	protected final long denom;
+	private final int[][] kernel;
+	private final int kenDim;
+	private final int half;
+	//Low-rank split of the kernel, see LowRankConvolutionEngine. Null if the kernel is convolved directly.
+	private final long[][] vertical;
+	private final long[][] horizontal;
+	private final double scale;
+
+	//Strip with half a kernel of rows above and below it, kept between the phases.
+	private double[] source;
+	private int sourceColumns;
+	private int sourceRows;
+
+	//maxValue is the biggest pixel of an integer type, 0 for floating point pixels.
+	protected WideConvolutionEngine(KernelDescriptor descriptor, PixelType type, long maxValue)
+	{
+		this.type = type;
+		this.denom = descriptor.getDenom();
+		this.kernel = descriptor.getKernel();
+		this.kenDim = kernel.length;
+		this.half = kenDim / 2;
+
+		long[][][] pairs = descriptor.getLowRankPairs();
+		boolean usePairs = pairs != null
+				&& LowRankConvolutionEngine.getCost(descriptor.getRank(), kenDim) < FftConvolutionEngine.getDirectCost(kenDim, false);
+		if(usePairs && maxValue > 0)
+		{
+			//Largest sum of a pixel made by the passes.
+			double bound = 0;
+			for(int i = 0; i < pairs[0].length; i++)
+			{
+				double verticalSum = 0;
+				double horizontalSum = 0;
+				for(int y = 0; y < kenDim; y++)
+				{
+					verticalSum += Math.abs(pairs[0][i][y]);
+					horizontalSum += Math.abs(pairs[1][i][y]);
+				}
+				bound += verticalSum * horizontalSum;
+			}
+			usePairs = bound * maxValue < EXACT_LIMIT;
+		}
+		vertical = usePairs ? pairs[0] : null;
+		horizontal = usePairs ? pairs[1] : null;
+		scale = usePairs ? pairs[2][0][0] : 1;
+	}
+
+	public PixelType getType()
+	{
+		return type;
+	}
+
+	//True if the kernel is convolved as a sum of separable passes.
+	public boolean isLowRank()
+	{
+		return vertical != null;
+	}
+
+	//Reads length pixels of in starting with pixel offset into target.
+	protected abstract void load(ByteBuffer in, int offset, double[] target, int targetOffset, int length);
+
+	//Applies the denominator to length sums and writes them as pixels of out starting with pixel offset.
+	protected abstract void store(double[] sums, ByteBuffer out, int offset, int length);
+
+	@Override
+	public ByteBuffer convolveInterior(ByteBuffer inputArray, int columns, int rows)
+	{
+		int size = (rows + 2 * half) * columns;
+		if(source == null || source.length != size)
+		{
+			source = new double[size];
+		}
+		sourceColumns = columns;
+		sourceRows = rows;
+		load(inputArray, 0, source, half * columns, rows * columns);
+
+		ByteBuffer ret = ImageConvolution.newBuffer(rows * columns * type.getBytes());
+		convolveRows(ret, half, rows - half, false, false);
+		return ret;
+	}
+
+	@Override
+	public void convolveBorder(ByteBuffer inputArray, ByteBuffer out, int columns, int rows, ByteBuffer up, ByteBuffer down)
+	{
+		if(up != null)
+		{
+			load(up, 0, source, 0, half * columns);
+		}
+		if(down != null)
+		{
+			load(down, 0, source, (half + rows) * columns, half * columns);
+		}
+		//Strips lower than the kernel have no interior, the top and bottom rows then meet.
+		int top = Math.min(half, rows);
+		convolveRows(out, 0, top, up != null, down != null);
+		convolveRows(out, Math.max(top, rows - half), rows, up != null, down != null);
+	}
+
+	//Convolves rows <rowStart, rowEnd) of the strip into out.
+	private void convolveRows(ByteBuffer out, int rowStart, int rowEnd, boolean hasUp, boolean hasDown)
+	{
+		int columns = sourceColumns;
+		RowBandExecutor.forEachBand(rowStart, rowEnd, columns * kenDim * type.getBytes(), (bandStart, bandEnd) -> {
+			double[] sums = new double[columns];
+			if(vertical == null)
+			{
+				for(int row = bandStart; row < bandEnd; row++)
+				{
+					Arrays.fill(sums, 0);
+					for(int y = 0; y < kenDim; y++)
+					{
+						int rowIndex = sourceRow(row, y - half, hasUp, hasDown) * columns;
+						for(int x = 0; x < kenDim; x++)
+						{
+							if(kernel[x][y] != 0)
+							{
+								addRow(sums, source, rowIndex, kernel[x][y], x - half, columns);
+							}
+						}
+					}
+					store(sums, out, row * columns, columns);
+				}
+				return;
+			}
+
+			//Horizontal passes are made once for every row of the source the band reads.
+			int first = Integer.MAX_VALUE;
+			int last = Integer.MIN_VALUE;
+			for(int row = bandStart; row < bandEnd; row++)
+			{
+				for(int y = 0; y < kenDim; y++)
+				{
+					int srcRow = sourceRow(row, y - half, hasUp, hasDown);
+					first = Math.min(first, srcRow);
+					last = Math.max(last, srcRow);
+				}
+			}
+			int rank = vertical.length;
+			double[][] passes = new double[rank][(last - first + 1) * columns];
+			for(int i = 0; i < rank; i++)
+			{
+				for(int srcRow = first; srcRow <= last; srcRow++)
+				{
+					Arrays.fill(sums, 0);
+					for(int x = 0; x < kenDim; x++)
+					{
+						if(horizontal[i][x] != 0)
+						{
+							addRow(sums, source, srcRow * columns, horizontal[i][x], x - half, columns);
+						}
+					}
+					System.arraycopy(sums, 0, passes[i], (srcRow - first) * columns, columns);
+				}
+			}
+
+			//Vertical passes of all pairs add to one sum per pixel, which is then divided by the scale of the split.
+			for(int row = bandStart; row < bandEnd; row++)
+			{
+				Arrays.fill(sums, 0);
+				for(int i = 0; i < rank; i++)
+				{
+					for(int y = 0; y < kenDim; y++)
+					{
+						double weight = vertical[i][y];
+						if(weight == 0)
+						{
+							continue;
+						}
+						double[] pass = passes[i];
+						int passIndex = (sourceRow(row, y - half, hasUp, hasDown) - first) * columns;
+						for(int col = 0; col < columns; col++)
+						{
+							sums[col] += weight * pass[passIndex + col];
+						}
+					}
+				}
+				for(int col = 0; col < columns; col++)
+				{
+					sums[col] /= scale;
+				}
+				store(sums, out, row * columns, columns);
+			}
+		});
+	}
+
+	//Adds weight times the row shifted by dx to sums. Pixels beyond the ends of the row are mirrored through the summed pixel.
+	private static void addRow(double[] sums, double[] source, int rowIndex, double weight, int dx, int columns)
+	{
+		int from = Math.max(0, -dx);
+		int to = Math.min(columns, columns - dx);
+		for(int col = from; col < to; col++)
+		{
+			sums[col] += weight * source[rowIndex + col + dx];
+		}
+		for(int col = 0; col < Math.min(from, columns); col++)
+		{
+			sums[col] += weight * source[rowIndex + mirror(col, dx, columns)];
+		}
+		for(int col = Math.max(to, 0); col < columns; col++)
+		{
+			sums[col] += weight * source[rowIndex + mirror(col, dx, columns)];
+		}
+	}
+
+	//Mirrored position of index + offset, clamped to the range if the range is shorter than the kernel.
+	private static int mirror(int index, int offset, int length)
+	{
+		int mirrored = index - offset;
+		return Math.max(0, Math.min(length - 1, mirrored));
+	}
+
+	//Row of the loaded source read by the pixels of row with the vertical offset dy. Rows above and below the strip
+	//come from the recv buffers, without them they are mirrored.
+	private int sourceRow(int row, int dy, boolean hasUp, boolean hasDown)
+	{
+		int srcRow = row + dy;
+		int lowest = hasUp ? -half : 0;
+		int highest = hasDown ? sourceRows + half - 1 : sourceRows - 1;
+		if(srcRow < lowest || srcRow > highest)
+		{
+			srcRow = Math.max(lowest, Math.min(highest, row - dy));
+		}
+		return srcRow + half;
+	}
+}
@@ -0,0 +1,79 @@
+package com.it4i.imagej;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Convolves single images of a batch the way a node does it alone.
+ */
+public class BatchConvolutionTest {
+
+	private static File writeImage(int columns, int rows, int frames) throws IOException
+	{
+		byte[] pixels = new byte[columns * rows * frames];
+		new Random(columns).nextBytes(pixels);
+		File file = File.createTempFile("batch", ".raw");
+		file.deleteOnExit();
+		try(FileOutputStream out = new FileOutputStream(file))
+		{
+			out.write(pixels);
+		}
+		return file;
+	}
+
+	@Test
+	public void wholeImage() throws IOException
+	{
+		File input = writeImage(40, 30, 2);
+		File output = File.createTempFile("batch", ".raw");
+		output.deleteOnExit();
+		assertTrue(BatchConvolution.convolveWhole(new BatchConvolution.Entry(input.getPath(), 40, 30, 2, 9, output, PixelType.UINT8)));
+
+		byte[] pixels = Files.readAllBytes(input.toPath());
+		byte[] result = Files.readAllBytes(output.toPath());
+		assertEquals(pixels.length, result.length);
+		ConvolutionEngine engine = ImageConvolution.createEngine(KernelRegistry.get(9), 40, 30, false);
+		for(int frame = 0; frame < 2; frame++)
+		{
+			ByteBuffer in = ImageConvolution.newBuffer(40 * 30);
+			in.put(pixels, frame * 40 * 30, 40 * 30);
+			in.clear();
+			ByteBuffer expected = engine.convolve(in, 40, 30, null, null);
+			for(int i = 0; i < 40 * 30; i++)
+			{
+				assertEquals(expected.get(i), result[frame * 40 * 30 + i]);
+			}
+		}
+	}
+
+	//The 21x21 kernel needs 20 rows, the image fails instead of the engine throwing.
+	@Test
+	public void kernelTooBig() throws IOException
+	{
+		File input = writeImage(40, 16, 1);
+		File output = File.createTempFile("batch", ".raw");
+		output.deleteOnExit();
+		assertFalse(BatchConvolution.convolveWhole(new BatchConvolution.Entry(input.getPath(), 40, 16, 1, 16, output, PixelType.UINT8)));
+	}
+
+	//Convolve limits only the rows of a whole frame, half the 5x5 kernel fits 4 rows.
+	@Test
+	public void lowImage() throws IOException
+	{
+		File input = writeImage(40, 4, 2);
+		File output = File.createTempFile("batch", ".raw");
+		output.deleteOnExit();
+		assertTrue(BatchConvolution.convolveWhole(new BatchConvolution.Entry(input.getPath(), 40, 4, 2, 8, output, PixelType.UINT8)));
+		assertEquals(40 * 4 * 2, output.length());
+	}
+}
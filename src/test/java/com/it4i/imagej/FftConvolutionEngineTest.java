@@ -0,0 +1,69 @@
+package com.it4i.imagej;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares the FFT engine to the loops on strips lower than the kernel, as the
+ * strips of a frame split between many nodes are.
+ */
+public class FftConvolutionEngineTest {
+
+	private static ByteBuffer randomBuffer(int length, long seed)
+	{
+		byte[] pixels = new byte[length];
+		new Random(seed).nextBytes(pixels);
+		ByteBuffer buffer = ImageConvolution.newBuffer(length);
+		buffer.put(pixels);
+		buffer.clear();
+		return buffer;
+	}
+
+	private static void assertSame(ByteBuffer expected, ByteBuffer actual, int length)
+	{
+		for(int i = 0; i < length; i++)
+		{
+			assertEquals("pixel " + i, expected.get(i), actual.get(i));
+		}
+	}
+
+	//4096 columns and 16 rows with the 17x17 kernel, alone and with the rows of the neighbours.
+	@Test
+	public void separableShortStrip()
+	{
+		KernelDescriptor descriptor = KernelRegistry.get(14);
+		int[][] kernel = descriptor.getKernel();
+		int columns = 4096;
+		int rows = 16;
+		int overlay = kernel.length / 2;
+		assertTrue(rows < kernel.length);
+		assertTrue(FftConvolutionEngine.getCost(kernel.length, true, columns, rows) > 0);
+
+		ByteBuffer in = randomBuffer(columns * rows, 14);
+		ByteBuffer up = randomBuffer(columns * overlay, 1);
+		ByteBuffer down = randomBuffer(columns * overlay, 2);
+		FftConvolutionEngine engine = new FftConvolutionEngine(kernel, descriptor.getPassDenom(), true);
+		assertSame(ImageConvolution.twoDconvolutionFastHor(in, columns, rows, kernel, descriptor.getPassDenom(), null, null),
+				engine.convolve(in, columns, rows, null, null), columns * rows);
+		assertSame(ImageConvolution.twoDconvolutionFastHor(in, columns, rows, kernel, descriptor.getPassDenom(), up, down),
+				engine.convolve(in, columns, rows, up, down), columns * rows);
+	}
+
+	@Test
+	public void tiledShortStrip()
+	{
+		KernelDescriptor descriptor = KernelRegistry.get(14);
+		int[][] kernel = descriptor.getKernel();
+		int columns = 1024;
+		int rows = 16;
+		ByteBuffer in = randomBuffer(columns * rows, 16);
+		assertTrue(FftConvolutionEngine.getCost(kernel.length, false, columns, rows) > 0);
+		assertSame(ImageConvolution.twoDconvolution(in, columns, rows, kernel, descriptor.getDenom(), null, null),
+				new FftConvolutionEngine(kernel, descriptor.getDenom(), false).convolve(in, columns, rows, null, null), columns * rows);
+	}
+}
@@ -0,0 +1,147 @@
+package com.it4i.imagej;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the interior of the direct loops and the low-rank split against sums
+ * taken in longs, for the 101x101 kernel and for weights whose sums overflow an
+ * int accumulator.
+ */
+public class FlatConvolutionCoreTest {
+
+	private static byte[] randomPixels(int length, long seed)
+	{
+		byte[] pixels = new byte[length];
+		new Random(seed).nextBytes(pixels);
+		return pixels;
+	}
+
+	//Compares the core to sums in longs for the pixels at least half a kernel away from the edges.
+	private static void checkCore(byte[] pixels, int columns, int rows, int[][] kernel, long denom)
+	{
+		int kenDim = kernel.length;
+		int half = kenDim / 2;
+		int[] weights = FlatConvolutionCore.flatten(kernel);
+		ByteBuffer ret = ImageConvolution.newBuffer(columns * rows);
+		FlatConvolutionCore.convolveCore(pixels, ret, columns, rows, weights, kenDim, new Normalizer(denom));
+
+		for(int row = half; row < rows - half; row++)
+		{
+			for(int col = half; col < columns - half; col++)
+			{
+				long acc = 0;
+				for(int y = 0; y < kenDim; y++)
+				{
+					for(int x = 0; x < kenDim; x++)
+					{
+						acc += (long)kernel[x][y] * (pixels[(row + y - half) * columns + col + x - half] & 0xFF);
+					}
+				}
+				acc /= denom;
+				int expected = (int)Math.max(0, Math.min(255, acc));
+				assertEquals("row " + row + ", col " + col, expected, ret.get(row * columns + col) & 0xFF);
+			}
+		}
+	}
+
+	@Test
+	public void gaussian101()
+	{
+		KernelDescriptor descriptor = KernelRegistry.get(18);
+		assertEquals(101, descriptor.getSize());
+		checkCore(randomPixels(140 * 120, 18), 140, 120, descriptor.getKernel(), descriptor.getDenom());
+	}
+
+	//Constant frames make every window sum the largest value, the result is the frame itself.
+	@Test
+	public void gaussian101Saturated()
+	{
+		KernelDescriptor descriptor = KernelRegistry.get(18);
+		byte[] pixels = new byte[110 * 104];
+		Arrays.fill(pixels, (byte)255);
+		checkCore(pixels, 110, 104, descriptor.getKernel(), descriptor.getDenom());
+	}
+
+	//Weights that overflow an int sum go to the long accumulators.
+	@Test
+	public void wideSums()
+	{
+		Random random = new Random(101);
+		int kenDim = 101;
+		int[][] kernel = new int[kenDim][kenDim];
+		long denom = 0;
+		for(int x = 0; x < kenDim; x++)
+		{
+			for(int y = 0; y < kenDim; y++)
+			{
+				kernel[x][y] = (1 << 20) + random.nextInt(1 << 10) - (1 << 9);
+				denom += kernel[x][y];
+			}
+		}
+		kernel[kenDim / 2][kenDim / 2] = -(1 << 24);
+		assertTrue(FlatConvolutionCore.needsWideSums(FlatConvolutionCore.flatten(kernel)));
+		checkCore(randomPixels(130 * 110, 7), 130, 110, kernel, denom);
+	}
+
+	//The pairs of the low-rank split add up to the kernel multiplied by the scale.
+	@Test
+	public void lowRankDecomposition()
+	{
+		for(int number = 1; number <= KernelRegistry.COUNT; number++)
+		{
+			int[][] kernel = KernelRegistry.get(number).getKernel();
+			long[][][] pairs = LowRankConvolutionEngine.decompose(kernel);
+			if(pairs == null)
+			{
+				continue;
+			}
+			long[][] vertical = pairs[0];
+			long[][] horizontal = pairs[1];
+			long scale = pairs[2][0][0];
+			for(int y = 0; y < kernel.length; y++)
+			{
+				for(int x = 0; x < kernel.length; x++)
+				{
+					long sum = 0;
+					for(int i = 0; i < vertical.length; i++)
+					{
+						sum += vertical[i][y] * horizontal[i][x];
+					}
+					assertEquals("kernel " + number + ", x " + x + ", y " + y, scale * kernel[x][y], sum);
+				}
+			}
+		}
+	}
+
+	//A non-separable kernel has rank above one and the engine gives the sums of the direct loops.
+	@Test
+	public void lowRankEngine()
+	{
+		for(int number = 4; number <= 6; number++)
+		{
+			KernelDescriptor descriptor = KernelRegistry.get(number);
+			long[][][] pairs = LowRankConvolutionEngine.decompose(descriptor.getKernel());
+			assertNotNull(pairs);
+			assertTrue(pairs[0].length > 1);
+			int columns = 64;
+			int rows = 48;
+			ByteBuffer in = ImageConvolution.newBuffer(columns * rows);
+			in.put(randomPixels(columns * rows, number));
+			in.clear();
+			ByteBuffer expected = new DirectConvolutionEngine(descriptor).convolve(in, columns, rows, null, null);
+			ByteBuffer actual = new LowRankConvolutionEngine(descriptor.getKernel(), descriptor.getDenom()).convolve(in, columns, rows, null, null);
+			for(int i = 0; i < columns * rows; i++)
+			{
+				assertEquals("kernel " + number + ", pixel " + i, expected.get(i), actual.get(i));
+			}
+		}
+	}
+}
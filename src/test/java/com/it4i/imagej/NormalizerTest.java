@@ -0,0 +1,137 @@
+package com.it4i.imagej;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link Normalizer} gives the same value as {@code acc /= denom}
+ * followed by clamping to 0 - 255, for the reciprocal and the division path.
+ */
+public class NormalizerTest {
+
+	//Value of the loops before the normalizer was added.
+	private static int reference(long acc, long denom)
+	{
+		if(denom != 0)
+		{
+			acc /= denom;
+		}
+		return (int)Math.max(0, Math.min(255, acc));
+	}
+
+	private static void check(Normalizer normalizer, long acc)
+	{
+		assertEquals("denom " + normalizer.getDenom() + ", acc " + acc, reference(acc, normalizer.getDenom()), normalizer.normalize(acc));
+	}
+
+	//Every sum between -denom and the clamping limit for all small denominators.
+	@Test
+	public void exhaustiveSmallDenominators()
+	{
+		for(long denom = 1; denom <= 512; denom++)
+		{
+			Normalizer normalizer = new Normalizer(denom);
+			for(long acc = -denom; acc <= 257 * denom; acc++)
+			{
+				check(normalizer, acc);
+			}
+		}
+	}
+
+	//Every sum below the clamping limit for the denominators of the registry.
+	@Test
+	public void exhaustiveRegistryDenominators()
+	{
+		for(int number = 1; number <= KernelRegistry.COUNT; number++)
+		{
+			KernelDescriptor descriptor = KernelRegistry.get(number);
+			for(long denom : new long[] {descriptor.getDenom(), descriptor.getPassDenom()})
+			{
+				if(denom <= 0 || denom > 1 << 16)
+				{
+					continue;
+				}
+				Normalizer normalizer = new Normalizer(denom);
+				for(long acc = -1; acc <= 256 * denom; acc++)
+				{
+					check(normalizer, acc);
+				}
+			}
+		}
+	}
+
+	//Random denominators up to 2^23 with random sums and the sums around each multiple of the denominator.
+	@Test
+	public void randomDenominators()
+	{
+		Random random = new Random(23);
+		for(int i = 0; i < 2000; i++)
+		{
+			long denom = 1 + random.nextInt(1 << 23);
+			Normalizer normalizer = new Normalizer(denom);
+			for(int j = 0; j < 1000; j++)
+			{
+				check(normalizer, (long)(random.nextDouble() * 258 * denom) - denom);
+			}
+			for(long k = 0; k <= 257; k++)
+			{
+				check(normalizer, k * denom - 1);
+				check(normalizer, k * denom);
+				check(normalizer, k * denom + denom - 1);
+			}
+		}
+		Normalizer largest = new Normalizer(1 << 23);
+		for(long k = 0; k <= 257; k++)
+		{
+			check(largest, (k << 23) - 1);
+			check(largest, k << 23);
+		}
+	}
+
+	//Denominators without a reciprocal are divided.
+	@Test
+	public void fallbackDenominators()
+	{
+		Random random = new Random(5);
+		for(long denom : new long[] {0, -1, -7, -(1L << 30), (1L << 23) + 1, 1L << 40})
+		{
+			Normalizer normalizer = new Normalizer(denom);
+			for(int j = 0; j < 10000; j++)
+			{
+				check(normalizer, random.nextLong() >> random.nextInt(64));
+			}
+			check(normalizer, 0);
+			check(normalizer, 255);
+			check(normalizer, Long.MAX_VALUE);
+			check(normalizer, Long.MIN_VALUE + 1);
+		}
+	}
+
+	//The array variants normalize each sum the same way.
+	@Test
+	public void arrays()
+	{
+		Random random = new Random(7);
+		Normalizer normalizer = new Normalizer(273);
+		int[] acc = new int[512];
+		long[] wideAcc = new long[acc.length];
+		for(int col = 0; col < acc.length; col++)
+		{
+			acc[col] = random.nextInt(300 * 273) - 273;
+			wideAcc[col] = acc[col] * 1000L;
+		}
+		byte[] line = new byte[acc.length];
+		byte[] wideLine = new byte[acc.length];
+		normalizer.normalize(acc, line, acc.length - 1);
+		new Normalizer(273000).normalize(wideAcc, wideLine, acc.length - 1);
+		for(int col = 0; col < acc.length - 1; col++)
+		{
+			assertEquals(reference(acc[col], 273), line[col] & 0xFF);
+			assertEquals(reference(wideAcc[col], 273000), wideLine[col] & 0xFF);
+		}
+		assertEquals(0, line[acc.length - 1]);
+	}
+}
@@ -0,0 +1,38 @@
+package com.it4i.imagej;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Checks the array sizes of the extracted pixels, which are computed in longs.
+ */
+public class PixelExtractorTest {
+
+	@Test
+	public void arrayLength()
+	{
+		assertEquals(2048 * 2048 * 2, PixelExtractor.getArrayLength(2048L * 2048, PixelType.UINT16));
+		assertEquals(Integer.MAX_VALUE, PixelExtractor.getArrayLength(Integer.MAX_VALUE, PixelType.UINT8));
+		assertEquals(Integer.MAX_VALUE - 3, PixelExtractor.getArrayLength((Integer.MAX_VALUE - 3) / 4, PixelType.FLOAT32));
+	}
+
+	//2048x2048x600 16-bit pixels wrapped to a positive but too short int.
+	@Test
+	public void stackTooBig()
+	{
+		for(long pixels : new long[] {2048L * 2048 * 600, Integer.MAX_VALUE / 2 + 1, 1L << 40})
+		{
+			try
+			{
+				PixelExtractor.getArrayLength(pixels, PixelType.UINT16);
+				fail(pixels + " pixels should not fit");
+			}
+			catch(IllegalArgumentException e)
+			{
+				//Expected.
+			}
+		}
+	}
+}
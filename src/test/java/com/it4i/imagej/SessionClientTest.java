@@ -0,0 +1,174 @@
+package com.it4i.imagej;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the key of an image, the words of the commands and that the client
+ * loads the image again whenever the session does not hold it.
+ */
+public class SessionClientTest {
+
+	//Answers the commands like ConvolutionSession, without convolving. Forgets the input on restart.
+	private static class FakeSession extends Thread {
+
+		final ServerSocket server;
+		final List<String> commands = new ArrayList<String>();
+		volatile String[] lastConvolve = null;
+		volatile String loadedKey = null;
+		volatile boolean failConvolve = false;
+
+		FakeSession() throws IOException
+		{
+			server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+			setDaemon(true);
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				while(true)
+				{
+					try(Socket client = server.accept())
+					{
+						BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+						PrintWriter out = new PrintWriter(client.getOutputStream(), true);
+						String line;
+						while((line = in.readLine()) != null)
+						{
+							String[] words = ConvolutionSession.split(line);
+							synchronized(commands)
+							{
+								commands.add(words[0]);
+							}
+							if(words[0].equals("load"))
+							{
+								loadedKey = words[6];
+								out.println("OK loaded");
+							}
+							else if(words[0].equals("status"))
+							{
+								out.println(loadedKey == null ? "OK nothing loaded" : "OK loaded x " + loadedKey);
+							}
+							else if(failConvolve || !words[3].equals(loadedKey))
+							{
+								out.println("ERROR failed");
+							}
+							else
+							{
+								lastConvolve = words;
+								out.println("OK done");
+							}
+						}
+					}
+				}
+			}
+			catch(IOException e)
+			{
+				//Closed by the test.
+			}
+		}
+
+		List<String> takeCommands()
+		{
+			synchronized(commands)
+			{
+				List<String> taken = new ArrayList<String>(commands);
+				commands.clear();
+				return taken;
+			}
+		}
+	}
+
+	@Test
+	public void keyFollowsPixels()
+	{
+		byte[] pixels = new byte[64 * 48 * 2];
+		new Random(3).nextBytes(pixels);
+		String key = SessionClient.getKey(pixels, 64, 48, 2, PixelType.UINT8);
+		assertEquals(key, SessionClient.getKey(pixels.clone(), 64, 48, 2, PixelType.UINT8));
+
+		//One edited pixel, the same pixels with other dimensions or another type.
+		pixels[1000]++;
+		assertFalse(key.equals(SessionClient.getKey(pixels, 64, 48, 2, PixelType.UINT8)));
+		pixels[1000]--;
+		assertFalse(key.equals(SessionClient.getKey(pixels, 48, 64, 2, PixelType.UINT8)));
+		assertFalse(key.equals(SessionClient.getKey(pixels, 64, 48, 1, PixelType.UINT16)));
+	}
+
+	//Tabs separate the words of the client, spaces those typed by hand.
+	@Test
+	public void commandWords()
+	{
+		assertEquals("[load, /tmp/my images/a.raw, 64, 48, 2, UINT8]",
+				Arrays.toString(ConvolutionSession.split("load\t/tmp/my images/a.raw\t64\t48\t2\tUINT8\n")));
+		assertEquals("[convolve, 9, out.raw]", Arrays.toString(ConvolutionSession.split("  convolve 9   out.raw ")));
+	}
+
+	@Test
+	public void reloadsWhenSessionForgets() throws IOException
+	{
+		FakeSession session = new FakeSession();
+		session.start();
+		try
+		{
+			int port = session.server.getLocalPort();
+			byte[] pixels = new byte[16 * 8];
+			String key = SessionClient.getKey(pixels, 16, 8, 1, PixelType.UINT8);
+			File result = new File("some dir/result file.raw");
+
+			SessionClient.convolve(port, key, pixels, 16, 8, 1, PixelType.UINT8, 3, result);
+			assertEquals("[load, convolve]", session.takeCommands().toString());
+			assertEquals(result.getAbsolutePath(), session.lastConvolve[2]);
+			SessionClient.convolve(port, key, pixels, 16, 8, 1, PixelType.UINT8, 4, result);
+			assertEquals("[status, convolve]", session.takeCommands().toString());
+
+			//Restarted session, or another client loaded another image.
+			session.loadedKey = null;
+			SessionClient.convolve(port, key, pixels, 16, 8, 1, PixelType.UINT8, 4, result);
+			assertEquals("[status, load, convolve]", session.takeCommands().toString());
+			session.loadedKey = "other";
+			SessionClient.convolve(port, key, pixels, 16, 8, 1, PixelType.UINT8, 4, result);
+			assertEquals("[status, load, convolve]", session.takeCommands().toString());
+
+			//A failed run loads the image again next time.
+			session.failConvolve = true;
+			try
+			{
+				SessionClient.convolve(port, key, pixels, 16, 8, 1, PixelType.UINT8, 4, result);
+				fail("Convolve should fail");
+			}
+			catch(IOException e)
+			{
+				//Expected.
+			}
+			session.failConvolve = false;
+			session.takeCommands();
+			SessionClient.convolve(port, key, pixels, 16, 8, 1, PixelType.UINT8, 4, result);
+			assertEquals("[load, convolve]", session.takeCommands().toString());
+		}
+		finally
+		{
+			session.server.close();
+		}
+	}
+}
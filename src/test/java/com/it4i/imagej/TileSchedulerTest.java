@@ -0,0 +1,244 @@
+package com.it4i.imagej;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Runs the tile protocol of {@link TileScheduler} between threads, node 0 and
+ * three workers over many frames, with random delays so that workers ask for
+ * tiles of the next frame while node 0 is still finishing the current one.
+ */
+public class TileSchedulerTest {
+
+	private static final int WORKERS = 3;
+	private static final int FRAMES = 20;
+
+	//Queues in the order MPI keeps messages of one sender and tag.
+	private static class Channels {
+
+		final BlockingQueue<int[]> requests = new LinkedBlockingQueue<int[]>();
+		final List<BlockingQueue<Integer>> assigns = new ArrayList<BlockingQueue<Integer>>();
+		final List<BlockingQueue<byte[]>> tiles = new ArrayList<BlockingQueue<byte[]>>();
+		final List<BlockingQueue<byte[]>> results = new ArrayList<BlockingQueue<byte[]>>();
+
+		Channels(int nodes)
+		{
+			for(int rank = 0; rank < nodes; rank++)
+			{
+				assigns.add(new LinkedBlockingQueue<Integer>());
+				tiles.add(new LinkedBlockingQueue<byte[]>());
+				results.add(new LinkedBlockingQueue<byte[]>());
+			}
+		}
+	}
+
+	private static class ThreadLink implements TileScheduler.Link {
+
+		private final Channels channels;
+		private final int rank;
+		private final int pixelBytes;
+
+		ThreadLink(Channels channels, int rank, PixelType type)
+		{
+			this.channels = channels;
+			this.rank = rank;
+			this.pixelBytes = type.getBytes();
+		}
+
+		private static void pause()
+		{
+			try
+			{
+				Thread.sleep(ThreadLocalRandom.current().nextInt(3));
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private static <T> T take(BlockingQueue<T> queue)
+		{
+			try
+			{
+				T message = queue.poll(30, TimeUnit.SECONDS);
+				if(message == null)
+				{
+					throw new AssertionError("Protocol stuck");
+				}
+				return message;
+			}
+			catch(InterruptedException e)
+			{
+				throw new AssertionError(e);
+			}
+		}
+
+		@Override
+		public int[] receiveRequest(boolean wait)
+		{
+			pause();
+			return wait ? take(channels.requests) : channels.requests.poll();
+		}
+
+		@Override
+		public void sendRequest(int frame, int tile)
+		{
+			pause();
+			channels.requests.add(new int[] {rank, frame, tile});
+		}
+
+		@Override
+		public void sendAssign(int worker, int tile)
+		{
+			channels.assigns.get(worker).add(tile);
+		}
+
+		@Override
+		public int receiveAssign()
+		{
+			return take(channels.assigns.get(rank));
+		}
+
+		@Override
+		public void sendPixels(ByteBuffer pixels, int count, int rank, boolean result)
+		{
+			byte[] message = new byte[count * pixelBytes];
+			pixels.duplicate().get(message);
+			(result ? channels.results.get(this.rank) : channels.tiles.get(rank)).add(message);
+		}
+
+		@Override
+		public void receivePixels(ByteBuffer pixels, int count, int rank, boolean result)
+		{
+			byte[] message = take(result ? channels.results.get(rank) : channels.tiles.get(this.rank));
+			assertEquals(count * pixelBytes, message.length);
+			pixels.duplicate().put(message);
+		}
+	}
+
+	private static void checkFrames(int kernel, PixelType type, int columns, int rows, int tilesPerNode) throws Exception
+	{
+		KernelDescriptor descriptor = KernelRegistry.get(kernel);
+		int overlay = descriptor.getSize() / 2;
+		int tileRows = TileScheduler.getTileRows(rows, WORKERS + 1, tilesPerNode, overlay);
+		int frameBytes = columns * rows * type.getBytes();
+
+		Random random = new Random(kernel);
+		List<ByteBuffer> frames = new ArrayList<ByteBuffer>();
+		List<ByteBuffer> expected = new ArrayList<ByteBuffer>();
+		ConvolutionEngine reference = ImageConvolution.createEngine(descriptor, columns, rows, type, false);
+		for(int frameNum = 0; frameNum < FRAMES; frameNum++)
+		{
+			byte[] pixels = new byte[frameBytes];
+			random.nextBytes(pixels);
+			if(type == PixelType.FLOAT32)
+			{
+				for(int i = 0; i < pixels.length; i += 4)
+				{
+					pixels[i + 3] = (byte)(pixels[i + 3] & 0x3F);
+				}
+			}
+			ByteBuffer frame = ImageConvolution.newBuffer(frameBytes);
+			frame.put(pixels);
+			frame.clear();
+			frames.add(frame);
+			expected.add(reference.convolve(frame, columns, rows, null, null));
+		}
+
+		Channels channels = new Channels(WORKERS + 1);
+		List<TileScheduler> workers = new ArrayList<TileScheduler>();
+		List<Throwable> failures = new ArrayList<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int rank = 1; rank <= WORKERS; rank++)
+		{
+			TileScheduler worker = new TileScheduler(new ThreadLink(channels, rank, type),
+					ImageConvolution.createEngine(descriptor, columns, rows, type, false), type, columns, rows, overlay, tileRows);
+			workers.add(worker);
+			Thread thread = new Thread(() -> {
+				try
+				{
+					ByteBuffer tile = worker.newTileBuffer();
+					for(int frameNum = 0; frameNum < FRAMES; frameNum++)
+					{
+						worker.workFrame(frameNum, tile);
+					}
+				}
+				catch(Throwable e)
+				{
+					synchronized(failures)
+					{
+						failures.add(e);
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+
+		TileScheduler master = new TileScheduler(new ThreadLink(channels, 0, type),
+				ImageConvolution.createEngine(descriptor, columns, rows, type, false), type, columns, rows, overlay, tileRows);
+		for(int frameNum = 0; frameNum < FRAMES; frameNum++)
+		{
+			ByteBuffer ret = ImageConvolution.newBuffer(frameBytes);
+			master.serveFrame(frameNum, frames.get(frameNum), ret, WORKERS);
+			for(int i = 0; i < frameBytes; i++)
+			{
+				if(ret.get(i) != expected.get(frameNum).get(i))
+				{
+					fail("kernel " + kernel + ", " + type.getLabel() + ", frame " + frameNum + ", byte " + i + " differs");
+				}
+			}
+		}
+		for(Thread thread : threads)
+		{
+			thread.join(30000);
+		}
+		if(!failures.isEmpty())
+		{
+			throw new AssertionError(failures.get(0));
+		}
+
+		//Every tile of every frame is convolved exactly once.
+		long tiles = master.work[0];
+		long pixels = master.work[1];
+		for(TileScheduler worker : workers)
+		{
+			tiles += worker.work[0];
+			pixels += worker.work[1];
+		}
+		assertEquals(FRAMES * Math.max(1, rows / tileRows), tiles);
+		assertEquals((long)FRAMES * columns * rows, pixels);
+		assertEquals(true, channels.requests.isEmpty());
+	}
+
+	@Test
+	public void manyTilesPerNode() throws Exception
+	{
+		checkFrames(3, PixelType.UINT8, 64, 97, 4);
+	}
+
+	@Test
+	public void fewerTilesThanNodes() throws Exception
+	{
+		checkFrames(9, PixelType.UINT8, 48, 40, 1);
+	}
+
+	@Test
+	public void widerPixels() throws Exception
+	{
+		checkFrames(2, PixelType.UINT16, 40, 61, 3);
+		checkFrames(2, PixelType.FLOAT32, 40, 61, 3);
+	}
+}